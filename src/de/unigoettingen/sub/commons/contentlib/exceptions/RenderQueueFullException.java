@@ -0,0 +1,57 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.exceptions;
+
+/************************************************************************************
+ * Exception thrown if a render request could not be admitted to the render scheduler, because its queue is full or the request waited longer than
+ * the configured queue timeout. The request should be answered with 503 and the given Retry-After value.
+ ************************************************************************************/
+public class RenderQueueFullException extends ContentLibException {
+
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 12013010101L;
+
+    private final int retryAfter;
+
+    /**
+     * Instantiates a new render queue full exception.
+     * 
+     * @param inMessage the in message
+     * @param retryAfter seconds after which the client should try again
+     */
+    public RenderQueueFullException(final String inMessage, final int retryAfter) {
+        super(inMessage);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return seconds after which the client should try again
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+}
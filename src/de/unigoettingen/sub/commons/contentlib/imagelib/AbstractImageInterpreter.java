@@ -25,12 +25,25 @@
  */
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
 import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Iterator;
 
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
@@ -57,6 +70,8 @@ public abstract class AbstractImageInterpreter {
     int samplesPerPixel = 0;
 
     byte rawbytes[];
+    File sourceFile = null; // file the image is read from; if set, rawbytes are only read when they are needed
+    boolean decodeGreyscale = false; // decode colour images as grey, if the reader supports it
 
     /***************************************************************************
      * Getter for xResolution
@@ -185,6 +200,25 @@ public abstract class AbstractImageInterpreter {
         }
     }
 
+    /**
+     * writes an already encoded image to the output stream and, if given, to the file. This way an image is encoded only once, even if the bytes
+     * are needed for more than one target
+     * 
+     * @param data the encoded image
+     * @param fos the file to write to, may be null
+     * @param outStream the stream to write to
+     * @throws IOException
+     */
+    protected void writeEncodedImage(byte[] data, FileOutputStream fos, OutputStream outStream) throws IOException {
+        outStream.write(data);
+        outStream.flush();
+        if (fos != null) {
+            fos.write(data);
+            fos.flush();
+            fos.close();
+        }
+    }
+
     /**
      * retrieve a byte array of the data
      * 
@@ -192,9 +226,33 @@ public abstract class AbstractImageInterpreter {
      */
 
     public byte[] getImageByteStream() {
+        if ((rawbytes == null) && (sourceFile != null)) {
+            try {
+                rawbytes = FileUtils.readFileToByteArray(sourceFile);
+            } catch (IOException e) {
+                LOGGER.error("IO-Error occured", e);
+            }
+        }
         return rawbytes;
     }
 
+    /**
+     * creates a new {@link ImageInputStream} for the image; images read from a file are read directly from the file, without copying the file
+     * into memory
+     * 
+     * @return the {@link ImageInputStream} or null, if there is neither a file nor a byte stream
+     * @throws IOException
+     */
+    protected ImageInputStream createImageInputStream() throws IOException {
+        if (sourceFile != null) {
+            return new FileImageInputStream(sourceFile);
+        }
+        if (rawbytes != null) {
+            return new MemoryCacheImageInputStream(new ByteArrayInputStream(rawbytes));
+        }
+        return null;
+    }
+
     /**
      * @param samplesperpixel the samplesperpixel to set
      */
@@ -202,6 +260,16 @@ public abstract class AbstractImageInterpreter {
         this.samplesPerPixel = samplesperpixel;
     }
 
+    /**
+     * decode colour images as greyscale; readers which can decode a grey image directly (like the jpeg reader, which then decodes only the
+     * luminance) are asked for it, other images are decoded in colour
+     * 
+     * @param decodeGreyscale true, if the image should be decoded as greyscale
+     */
+    public void setDecodeGreyscale(boolean decodeGreyscale) {
+        this.decodeGreyscale = decodeGreyscale;
+    }
+
     /**
      * @return
      */
@@ -209,6 +277,81 @@ public abstract class AbstractImageInterpreter {
         return this.renderedimage;
     }
 
+    /**
+     * returns the full image, cropped to the region, by default; interpreters which can decode a reduced image override this method
+     * 
+     * @param sourceRegion region of the source image in pixels; null for the whole image
+     * @param subsampling decode every n-th pixel in both directions; 1 for all pixels
+     * @return the rendered image
+     */
+    public RenderedImage getRenderedImage(Rectangle sourceRegion, int subsampling) {
+        RenderedImage image = getRenderedImage();
+        if ((image == null) || (sourceRegion == null)) {
+            return image;
+        }
+        return ImageManipulator.crop(image, sourceRegion);
+    }
+
+    /**
+     * decodes the image file or the rawbytes with the given reader, reading only the given region and every n-th pixel of it
+     * 
+     * @param reader the {@link ImageReader} to use
+     * @param param the {@link ImageReadParam} of the reader, region and subsampling are set on it
+     * @param sourceRegion region of the source image in pixels; null for the whole image
+     * @param subsampling decode every n-th pixel in both directions; 1 for all pixels
+     * @return the decoded image or null, if the reader could not decode the image
+     */
+    protected RenderedImage readRenderedImage(ImageReader reader, ImageReadParam param, Rectangle sourceRegion, int subsampling) {
+        ImageInputStream iis = null;
+        try {
+            iis = createImageInputStream();
+            if (iis == null) {
+                return null;
+            }
+            if (sourceRegion != null) {
+                param.setSourceRegion(sourceRegion);
+            }
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            reader.setInput(iis, true);
+            if (decodeGreyscale) {
+                setGreyDestination(reader, param);
+            }
+            return reader.read(0, param);
+        } catch (Exception e) {
+            LOGGER.debug("Failed to read reduced image with " + reader.getClass().getSimpleName() + ": " + e.toString());
+            return null;
+        } finally {
+            reader.dispose();
+            if (iis != null) {
+                try {
+                    iis.close();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to close image stream", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * sets a grey destination type on the read parameters, if the reader offers one for the image
+     * 
+     * @param reader the {@link ImageReader} with its input set
+     * @param param the {@link ImageReadParam} of the reader
+     * @throws IOException
+     */
+    private void setGreyDestination(ImageReader reader, ImageReadParam param) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            ImageTypeSpecifier type = types.next();
+            if (type.getNumBands() == 1 && type.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY) {
+                param.setDestinationType(type);
+                return;
+            }
+        }
+    }
+
     /**
      * Indicates wether the image's bytestream is directly embeddable.
      * 
@@ -0,0 +1,281 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.imagelib;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/************************************************************************************
+ * Renderer for bitonal images working directly on the packed bits of the decoded image. Scaling down to grey is a box filter: each grey pixel is
+ * the share of set bits in its box of the source image, counted a byte at a time with a lookup table. Rotations by right angles are done while the
+ * grey pixels are written, so they cost nothing; an image which is not scaled is rotated in the packed form and stays bitonal.
+ ************************************************************************************/
+public final class BitonalRenderer {
+    private static final Logger LOGGER = Logger.getLogger(BitonalRenderer.class);
+
+    /* number of set bits of every byte */
+    private static final byte[] BIT_COUNT = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            BIT_COUNT[i] = (byte) Integer.bitCount(i);
+        }
+    }
+
+    private BitonalRenderer() {
+    }
+
+    /************************************************************************************
+     * check if an image can be rendered from its packed bits: a single band with one bit per pixel, stored in bytes
+     * 
+     * @param image the decoded source image
+     * @return true, if the image is bitonal and packed
+     ************************************************************************************/
+    public static boolean isApplicable(RenderedImage image) {
+        return image.getSampleModel() instanceof MultiPixelPackedSampleModel && image.getSampleModel().getNumBands() == 1
+                && image.getSampleModel().getSampleSize(0) == 1 && image.getSampleModel().getDataType() == DataBuffer.TYPE_BYTE
+                && image.getColorModel() != null;
+    }
+
+    /************************************************************************************
+     * scale a bitonal image down to grey and rotate it by a right angle; if the image isn't scaled and a bitonal result is allowed, the packed
+     * image is only rotated
+     * 
+     * @param image the decoded source image, see {@link #isApplicable(RenderedImage)}
+     * @param scaleX horizontal scale factor, at most 1
+     * @param scaleY vertical scale factor, at most 1
+     * @param angle 0, 90, 180 or 270 degrees clockwise
+     * @param allowBitonal true, if an image which is not scaled may be returned as bitonal image
+     * @return the rendered image, {@link BufferedImage#TYPE_BYTE_GRAY} or bitonal with the color model of the source
+     ************************************************************************************/
+    public static BufferedImage render(RenderedImage image, float scaleX, float scaleY, int angle, boolean allowBitonal) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int targetWidth = Math.max(1, Math.min(width, Math.round(width * scaleX)));
+        int targetHeight = Math.max(1, Math.min(height, Math.round(height * scaleY)));
+        Raster raster = getRaster(image);
+        int rotation = ((angle % 360) + 360) % 360;
+        LOGGER.debug("bitonal render: " + width + "x" + height + " -> " + targetWidth + "x" + targetHeight + ", angle " + rotation);
+        if (allowBitonal && targetWidth == width && targetHeight == height) {
+            return rotatePacked(raster, image.getColorModel(), rotation);
+        }
+        return scaleToGrey(raster, image.getColorModel(), targetWidth, targetHeight, rotation);
+    }
+
+    /************************************************************************************
+     * the raster of the image, without copying it if possible
+     ************************************************************************************/
+    private static Raster getRaster(RenderedImage image) {
+        if (image instanceof BufferedImage) {
+            return ((BufferedImage) image).getRaster();
+        }
+        if (image.getNumXTiles() == 1 && image.getNumYTiles() == 1) {
+            return image.getTile(image.getMinTileX(), image.getMinTileY());
+        }
+        return image.getData();
+    }
+
+    /************************************************************************************
+     * box filter: every target pixel gets the share of set bits in its box of source pixels; the boxes cover the whole source image without
+     * overlapping
+     ************************************************************************************/
+    private static BufferedImage scaleToGrey(Raster raster, ColorModel cm, int targetWidth, int targetHeight, int rotation) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int grey0 = cm.getRGB(0) & 0xff;
+        int grey1 = cm.getRGB(1) & 0xff;
+
+        boolean swap = rotation == 90 || rotation == 270;
+        BufferedImage target = new BufferedImage(swap ? targetHeight : targetWidth, swap ? targetWidth : targetHeight, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] targetData = ((DataBufferByte) target.getRaster().getDataBuffer()).getData();
+        int targetStride = target.getWidth();
+
+        // first source column and row of every box; the last entry is the end of the image
+        int[] boxX = new int[targetWidth + 1];
+        for (int i = 0; i <= targetWidth; i++) {
+            boxX[i] = (int) ((long) i * width / targetWidth);
+        }
+        int[] boxY = new int[targetHeight + 1];
+        for (int i = 0; i <= targetHeight; i++) {
+            boxY[i] = (int) ((long) i * height / targetHeight);
+        }
+
+        PackedRows rows = new PackedRows(raster);
+        int[] counts = new int[targetWidth];
+        for (int ty = 0; ty < targetHeight; ty++) {
+            Arrays.fill(counts, 0);
+            for (int y = boxY[ty]; y < boxY[ty + 1]; y++) {
+                int rowStart = rows.getRowStart(y);
+                for (int tx = 0; tx < targetWidth; tx++) {
+                    counts[tx] += rows.countBits(rowStart, boxX[tx], boxX[tx + 1]);
+                }
+            }
+            int boxHeight = boxY[ty + 1] - boxY[ty];
+            for (int tx = 0; tx < targetWidth; tx++) {
+                int area = (boxX[tx + 1] - boxX[tx]) * boxHeight;
+                int grey = grey0 + ((grey1 - grey0) * counts[tx] + area / 2) / area;
+                int dx;
+                int dy;
+                if (rotation == 90) {
+                    dx = targetHeight - 1 - ty;
+                    dy = tx;
+                } else if (rotation == 180) {
+                    dx = targetWidth - 1 - tx;
+                    dy = targetHeight - 1 - ty;
+                } else if (rotation == 270) {
+                    dx = ty;
+                    dy = targetWidth - 1 - tx;
+                } else {
+                    dx = tx;
+                    dy = ty;
+                }
+                targetData[dy * targetStride + dx] = (byte) grey;
+            }
+        }
+        return target;
+    }
+
+    /************************************************************************************
+     * rotate the packed image by a right angle, the result keeps the color model of the source
+     ************************************************************************************/
+    private static BufferedImage rotatePacked(Raster raster, ColorModel cm, int rotation) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        boolean swap = rotation == 90 || rotation == 270;
+        int targetWidth = swap ? height : width;
+        int targetHeight = swap ? width : height;
+        WritableRaster targetRaster = cm.createCompatibleWritableRaster(targetWidth, targetHeight);
+        if (!(targetRaster.getSampleModel() instanceof MultiPixelPackedSampleModel)) {
+            targetRaster = Raster.createPackedRaster(DataBuffer.TYPE_BYTE, targetWidth, targetHeight, 1, 1, null);
+        }
+        byte[] targetData = ((DataBufferByte) targetRaster.getDataBuffer()).getData();
+        int targetStride = ((MultiPixelPackedSampleModel) targetRaster.getSampleModel()).getScanlineStride();
+
+        PackedRows rows = new PackedRows(raster);
+        for (int y = 0; y < height; y++) {
+            int rowStart = rows.getRowStart(y);
+            if (rotation == 0) {
+                for (int x = 0; x < width; x += 8) {
+                    targetData[y * targetStride + (x >> 3)] = (byte) rows.getByte(rowStart, x);
+                }
+                continue;
+            }
+            for (int x = 0; x < width; x++) {
+                if (!rows.getBit(rowStart, x)) {
+                    continue;
+                }
+                int dx;
+                int dy;
+                if (rotation == 90) {
+                    dx = height - 1 - y;
+                    dy = x;
+                } else if (rotation == 180) {
+                    dx = width - 1 - x;
+                    dy = height - 1 - y;
+                } else {
+                    dx = y;
+                    dy = width - 1 - x;
+                }
+                targetData[dy * targetStride + (dx >> 3)] |= 0x80 >> (dx & 7);
+            }
+        }
+        if (!(cm instanceof IndexColorModel)) {
+            cm = new IndexColorModel(1, 2, new byte[] { 0, (byte) 255 }, new byte[] { 0, (byte) 255 }, new byte[] { 0, (byte) 255 });
+        }
+        return new BufferedImage(cm, targetRaster, false, null);
+    }
+
+    /************************************************************************************
+     * access to the rows of a packed raster with one bit per pixel, the first pixel in the highest bit
+     ************************************************************************************/
+    private static final class PackedRows {
+        private final byte[] data;
+        private final int stride;
+        private final int bitOffset;
+        private final int offset;
+
+        private PackedRows(Raster raster) {
+            MultiPixelPackedSampleModel sm = (MultiPixelPackedSampleModel) raster.getSampleModel();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            int translateX = raster.getMinX() - raster.getSampleModelTranslateX();
+            int translateY = raster.getMinY() - raster.getSampleModelTranslateY();
+            this.data = buffer.getData();
+            this.stride = sm.getScanlineStride();
+            this.bitOffset = sm.getDataBitOffset() + translateX;
+            this.offset = buffer.getOffset() + translateY * stride;
+        }
+
+        /* index of the first byte of the row, relative to the raster */
+        private int getRowStart(int y) {
+            return offset + y * stride;
+        }
+
+        private boolean getBit(int rowStart, int x) {
+            int bit = x + bitOffset;
+            return (data[rowStart + (bit >> 3)] & (0x80 >> (bit & 7))) != 0;
+        }
+
+        /* the 8 pixels starting at x, pixels after the end of the row are taken from the padding bits */
+        private int getByte(int rowStart, int x) {
+            int bit = x + bitOffset;
+            int index = rowStart + (bit >> 3);
+            int shift = bit & 7;
+            int value = (data[index] & 0xff) << shift;
+            if (shift != 0 && index + 1 < data.length) {
+                value |= (data[index + 1] & 0xff) >> (8 - shift);
+            }
+            return value & 0xff;
+        }
+
+        /* number of set bits of the pixels from x0 (inclusive) to x1 (exclusive) */
+        private int countBits(int rowStart, int x0, int x1) {
+            int from = x0 + bitOffset;
+            int to = x1 + bitOffset;
+            int first = rowStart + (from >> 3);
+            int last = rowStart + ((to - 1) >> 3);
+            int headMask = 0xff >> (from & 7);
+            int tailMask = 0xff << (7 - ((to - 1) & 7)) & 0xff;
+            if (first == last) {
+                return BIT_COUNT[data[first] & headMask & tailMask];
+            }
+            int count = BIT_COUNT[data[first] & headMask] + BIT_COUNT[data[last] & tailMask];
+            for (int i = first + 1; i < last; i++) {
+                count += BIT_COUNT[data[i] & 0xff];
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.imagelib;
+
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.util.stream.StreamUtils;
+
+/************************************************************************************
+ * Detects colour scans which are effectively greyscale, like 24 bit scans of black and white print, so that they can be decoded, rendered and
+ * encoded with a single channel. A reduced version of the image is decoded and its pixels are checked; interpreters which can't decode a reduced
+ * image return the full image, of which only a grid of pixels of the same size is checked. The image only counts as grey if every checked pixel
+ * has a chroma (the largest difference between its red, green and blue values) up to the threshold, so that small coloured details like stamps
+ * or rubricated initials keep their colour. The result is kept per source file together with its modification time and length, so
+ * every source is only checked once.
+ ************************************************************************************/
+public final class ChromaDetector {
+    private static final Logger LOGGER = Logger.getLogger(ChromaDetector.class);
+
+    /* number of pixels checked along the longest side of the image */
+    private static final int SAMPLE_SIZE = 512;
+    /* number of source files whose result is kept */
+    private static final int MAX_SOURCES = 50000;
+
+    private static final Map<String, SourceColour> SOURCES = Collections.synchronizedMap(new LinkedHashMap<String, SourceColour>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SourceColour> eldest) {
+            return size() > MAX_SOURCES;
+        }
+    });
+
+    private ChromaDetector() {
+    }
+
+    /************************************************************************************
+     * check if a colour source image is effectively greyscale; only local files are checked, as the result is kept per file
+     * 
+     * @param url {@link URL} of the source image
+     * @param interpreter the {@link ImageInterpreter} of the source image, the image must not be decoded yet
+     * @param threshold maximal chroma of grey pixels, between 0 and 255
+     * @return true, if the image is effectively greyscale
+     ************************************************************************************/
+    public static boolean isNearGrey(URL url, ImageInterpreter interpreter, int threshold) {
+        if (url == null || !"file".equalsIgnoreCase(url.getProtocol()) || interpreter.getSamplesperpixel() < 3) {
+            return false;
+        }
+        try {
+            File file = StreamUtils.getFileFromUrl(url);
+            String key = file.getAbsolutePath();
+            SourceColour colour = SOURCES.get(key);
+            if (colour == null || colour.lastModified != file.lastModified() || colour.length != file.length() || colour.threshold != threshold) {
+                long start = System.currentTimeMillis();
+                int subsampling = Math.max(1, Math.max(interpreter.getWidth(), interpreter.getHeight()) / SAMPLE_SIZE);
+                RenderedImage image = interpreter.getRenderedImage(null, subsampling);
+                boolean grey = image != null && isNearGrey(image, threshold);
+                colour = new SourceColour(file.lastModified(), file.length(), threshold, grey);
+                SOURCES.put(key, colour);
+                LOGGER.debug("source image " + key + " is " + (grey ? "greyscale" : "coloured") + " (" + (System.currentTimeMillis() - start)
+                        + " ms)");
+            }
+            return colour.grey;
+        } catch (IOException e) {
+            LOGGER.debug("can't check colours of " + url + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.debug("can't check colours of " + url + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    /************************************************************************************
+     * check if an image is effectively greyscale by checking its pixels; of images larger than the sample size only every n-th pixel of every n-th
+     * line is checked
+     * 
+     * @param image the image, usually a reduced version of the source image
+     * @param threshold maximal chroma of grey pixels, between 0 and 255
+     * @return true, if no checked pixel is coloured
+     ************************************************************************************/
+    public static boolean isNearGrey(RenderedImage image, int threshold) {
+        ColorModel cm = image.getColorModel();
+        if (cm == null) {
+            return false;
+        }
+        if (ImageManipulator.isGrey(cm)) {
+            return true;
+        }
+        int step = Math.max(1, Math.max(image.getWidth(), image.getHeight()) / SAMPLE_SIZE);
+        Object pixel = null;
+        for (int y = image.getMinY(); y < image.getMinY() + image.getHeight(); y += step) {
+            Raster line = image.getData(new Rectangle(image.getMinX(), y, image.getWidth(), 1));
+            for (int x = image.getMinX(); x < image.getMinX() + image.getWidth(); x += step) {
+                pixel = line.getDataElements(x, y, pixel);
+                int rgb = cm.getRGB(pixel);
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                int chroma = Math.max(r, Math.max(g, b)) - Math.min(r, Math.min(g, b));
+                if (chroma > threshold) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /************************************************************************************
+     * result of the check of a source file
+     ************************************************************************************/
+    private static final class SourceColour {
+        private final long lastModified;
+        private final long length;
+        private final int threshold;
+        private final boolean grey;
+
+        private SourceColour(long lastModified, long length, int threshold, boolean grey) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.threshold = threshold;
+            this.grey = grey;
+        }
+    }
+}
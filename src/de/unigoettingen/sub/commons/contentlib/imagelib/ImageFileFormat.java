@@ -26,12 +26,18 @@
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
 import java.awt.image.RenderedImage;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.Locale;
 
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageInterpreterException;
 import de.unigoettingen.sub.commons.util.stream.StreamUtils;
 
@@ -106,6 +112,10 @@ public enum ImageFileFormat {
      ************************************************************************************/
     public static ImageInterpreter getInterpreter(URL url, String httpproxyhost, String httpproxyport, String httpproxyuser, String httpproxypasswd)
             throws ImageInterpreterException, IOException {
+        URL fileUrl = StreamUtils.resolveFileOrErrorFile(url);
+        if (fileUrl != url) {
+            return getInterpreter(fileUrl, httpproxyhost, httpproxyport, httpproxyuser, httpproxypasswd);
+        }
 
         String mimetype = StreamUtils.getMimeTypeFromUrl(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypasswd);
         ImageFileFormat iff = getImageFileFormatFromMimeType(mimetype);
@@ -113,6 +123,10 @@ public enum ImageFileFormat {
             // check extension
             iff = getImageFileFormatFromFileExtension(url.toString());
         }
+        if (url.getProtocol().equalsIgnoreCase("file")) {
+            // files are read directly, without copying them into memory first
+            return iff.getInterpreter(StreamUtils.getFileFromUrl(url));
+        }
         InputStream myInputStream = StreamUtils.getInputStreamFromUrl(url);
         ImageInterpreter myInterpreter = iff.getInterpreter(myInputStream);
         if (myInputStream != null) {
@@ -121,6 +135,77 @@ public enum ImageFileFormat {
         return myInterpreter;
     }
 
+    /************************************************************************************
+     * get the {@link ImageInfo} (size, resolution, color depth) of the image at the given {@link URL} by reading only the file header. The file format
+     * is detected from the first bytes of the file. Files are read with random access, other urls are only read as far as the header goes.
+     * 
+     * @param url as URL
+     * @param httpproxyhost the host for the proxy
+     * @param httpproxyport the port for the proxy
+     * @param httpproxyuser the user name for the proxy
+     * @param httpproxypasswd the password for the proxy
+     * @return the {@link ImageInfo} or null, if the header couldn't be read
+     * @throws IOException
+     ************************************************************************************/
+    public static ImageInfo getImageInfo(URL url, String httpproxyhost, String httpproxyport, String httpproxyuser, String httpproxypasswd)
+            throws IOException {
+        URL fileUrl = StreamUtils.resolveFileOrErrorFile(url);
+        if (fileUrl != url) {
+            // the error file is delivered instead of the image
+            return getImageInfo(fileUrl, httpproxyhost, httpproxyport, httpproxyuser, httpproxypasswd);
+        }
+        ImageInputStream iis = null;
+        InputStream inStream = null;
+        try {
+            if (url.getProtocol().equalsIgnoreCase("file")) {
+                iis = new FileImageInputStream(StreamUtils.getFileFromUrl(url));
+            } else {
+                inStream = StreamUtils.getInputStreamFromUrl(url, null, httpproxyhost, httpproxyport, httpproxyuser, httpproxypasswd);
+                if (inStream == null) {
+                    return null;
+                }
+                iis = new MemoryCacheImageInputStream(inStream);
+            }
+            ImageFileFormat iff = ImageInfo.detectFormat(iis);
+            if (iff == null) {
+                return null;
+            }
+            return iff.getImageInfo(iis);
+        } catch (EOFException e) {
+            // header is incomplete
+            return null;
+        } finally {
+            if (iis != null) {
+                iis.close();
+            }
+            if (inStream != null) {
+                inStream.close();
+            }
+        }
+    }
+
+    /************************************************************************************
+     * get the {@link ImageInfo} for file format by reading only the header from the given {@link ImageInputStream}
+     * 
+     * @param iis the stream to read, positioned at the start of the file
+     * @return the {@link ImageInfo} or null, if the header is not valid
+     * @throws IOException
+     ************************************************************************************/
+    public ImageInfo getImageInfo(ImageInputStream iis) throws IOException {
+        switch (this) {
+            case TIFF:
+                return ImageInfo.readTiff(iis);
+            case PNG:
+                return ImageInfo.readPng(iis);
+            case JPG:
+                return ImageInfo.readJpeg(iis);
+            case JP2:
+                return ImageInfo.readJp2(iis);
+            default:
+                return null;
+        }
+    }
+
     /************************************************************************************
      * get {@link ImageInterpreter} for file format by using {@link FileInputStream} as parameter
      * 
@@ -143,6 +228,29 @@ public enum ImageFileFormat {
         }
     }
 
+    /************************************************************************************
+     * get {@link ImageInterpreter} for file format by using a {@link File} as parameter; the file is read with random access and its content is
+     * only loaded into memory if it is needed as a whole
+     * 
+     * @return requested ImageInterpreter for file format
+     * @param file the image file
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    public ImageInterpreter getInterpreter(File file) throws ImageInterpreterException {
+        switch (this) {
+            case TIFF:
+                return new TiffInterpreter(file);
+            case PNG:
+                return new PngInterpreter(file);
+            case JPG:
+                return new JpegInterpreter(file);
+            case JP2:
+                return new JpegTwoThousandInterpreter(file);
+            default:
+                return new JpegInterpreter(file);
+        }
+    }
+
     /************************************************************************************
      * get {@link ImageInterpreter} for file format by using {@link RenderedImage} as parameter
      * 
@@ -0,0 +1,466 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.imagelib;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import javax.imageio.stream.ImageInputStream;
+
+/************************************************************************************
+ * basic information about an image (size, resolution and color information), read from the file header only without decoding the image. Use
+ * {@link ImageFileFormat#getImageInfo(java.net.URL, String, String, String, String)} to get it.
+ ************************************************************************************/
+public class ImageInfo {
+
+    /** resolution used if the image has no resolution information, same as in the {@link ImageInterpreter}s */
+    private static final float DEFAULT_RESOLUTION = 100f;
+
+    private ImageFileFormat format;
+    private int width;
+    private int height;
+    private float xResolution = DEFAULT_RESOLUTION;
+    private float yResolution = DEFAULT_RESOLUTION;
+    private int colordepth = 1;
+    private int samplesperpixel = 1;
+
+    private ImageInfo(ImageFileFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * @return the file format of the image
+     */
+    public ImageFileFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the horizontal resolution in dpi
+     */
+    public float getXResolution() {
+        return xResolution;
+    }
+
+    /**
+     * @return the vertical resolution in dpi
+     */
+    public float getYResolution() {
+        return yResolution;
+    }
+
+    /**
+     * @return the bits per sample
+     */
+    public int getColordepth() {
+        return colordepth;
+    }
+
+    /**
+     * @return the samples per pixel
+     */
+    public int getSamplesperpixel() {
+        return samplesperpixel;
+    }
+
+    @Override
+    public String toString() {
+        return format + " " + width + "x" + height + " " + xResolution + "/" + yResolution + "dpi " + samplesperpixel + "x" + colordepth + "bit";
+    }
+
+    /* -------------------------------- format detection -------------------------------- */
+
+    /************************************************************************************
+     * detect the file format from the first bytes of the stream; the stream is reset to the start afterwards
+     * 
+     * @param iis the stream to read
+     * @return the file format or null, if it is none of the supported formats
+     * @throws IOException
+     ************************************************************************************/
+    static ImageFileFormat detectFormat(ImageInputStream iis) throws IOException {
+        byte[] magic = new byte[12];
+        iis.mark();
+        int read = iis.read(magic);
+        iis.reset();
+        if (read < 4) {
+            return null;
+        }
+        int b0 = magic[0] & 0xFF;
+        int b1 = magic[1] & 0xFF;
+        int b2 = magic[2] & 0xFF;
+        int b3 = magic[3] & 0xFF;
+        if ((b0 == 'I' && b1 == 'I' && b2 == 42 && b3 == 0) || (b0 == 'M' && b1 == 'M' && b2 == 0 && b3 == 42)) {
+            return ImageFileFormat.TIFF;
+        }
+        if (b0 == 0xFF && b1 == 0xD8) {
+            return ImageFileFormat.JPG;
+        }
+        if (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') {
+            return ImageFileFormat.PNG;
+        }
+        if ((b0 == 0xFF && b1 == 0x4F && b2 == 0xFF && b3 == 0x51) || (read >= 8 && magic[4] == 'j' && magic[5] == 'P' && magic[6] == ' ')) {
+            return ImageFileFormat.JP2;
+        }
+        return null;
+    }
+
+    /* -------------------------------- TIFF -------------------------------- */
+
+    /************************************************************************************
+     * read the first image file directory of a TIFF
+     * 
+     * @param iis the stream to read, positioned at the start of the file
+     * @return the {@link ImageInfo} or null, if the header is not valid
+     * @throws IOException
+     ************************************************************************************/
+    static ImageInfo readTiff(ImageInputStream iis) throws IOException {
+        ImageInfo info = new ImageInfo(ImageFileFormat.TIFF);
+        int order = iis.readUnsignedShort();
+        iis.setByteOrder(order == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        if (iis.readUnsignedShort() != 42) {
+            // BigTIFF or no TIFF at all
+            return null;
+        }
+        long ifdOffset = iis.readUnsignedInt();
+        iis.seek(ifdOffset);
+        int entries = iis.readUnsignedShort();
+        long xResOffset = -1;
+        long yResOffset = -1;
+        long bitsOffset = -1;
+        int resUnit = 2;
+        for (int i = 0; i < entries; i++) {
+            long entryStart = iis.getStreamPosition();
+            int tag = iis.readUnsignedShort();
+            int type = iis.readUnsignedShort();
+            long count = iis.readUnsignedInt();
+            // SHORT values are stored in the first two bytes of the value field, LONG values use all four
+            long value = type == 3 ? iis.readUnsignedShort() : iis.readUnsignedInt();
+            switch (tag) {
+                case 256:
+                    info.width = (int) value;
+                    break;
+                case 257:
+                    info.height = (int) value;
+                    break;
+                case 258:
+                    if (count > 2) {
+                        // more than two values don't fit in the value field
+                        iis.seek(entryStart + 8);
+                        bitsOffset = iis.readUnsignedInt();
+                    } else {
+                        info.colordepth = (int) value;
+                    }
+                    break;
+                case 277:
+                    info.samplesperpixel = (int) value;
+                    break;
+                case 282:
+                    xResOffset = value;
+                    break;
+                case 283:
+                    yResOffset = value;
+                    break;
+                case 296:
+                    resUnit = (int) value;
+                    break;
+                default:
+                    break;
+            }
+            iis.seek(entryStart + 12);
+        }
+        if (bitsOffset >= 0) {
+            iis.seek(bitsOffset);
+            info.colordepth = iis.readUnsignedShort();
+        }
+        float factor = resUnit == 3 ? 2.54f : 1f; // centimeter or inch
+        if (xResOffset >= 0) {
+            info.xResolution = readRational(iis, xResOffset) * factor;
+            info.yResolution = info.xResolution;
+        }
+        if (yResOffset >= 0) {
+            info.yResolution = readRational(iis, yResOffset) * factor;
+        }
+        return info.checkResolution();
+    }
+
+    private static float readRational(ImageInputStream iis, long offset) throws IOException {
+        iis.seek(offset);
+        long numerator = iis.readUnsignedInt();
+        long denominator = iis.readUnsignedInt();
+        return denominator == 0 ? 0 : (float) numerator / denominator;
+    }
+
+    /* -------------------------------- JPEG -------------------------------- */
+
+    /************************************************************************************
+     * read the JFIF and SOF segments of a JPEG, stops at the first SOF segment
+     * 
+     * @param iis the stream to read, positioned at the start of the file
+     * @return the {@link ImageInfo} or null, if the header is not valid
+     * @throws IOException
+     ************************************************************************************/
+    static ImageInfo readJpeg(ImageInputStream iis) throws IOException {
+        ImageInfo info = new ImageInfo(ImageFileFormat.JPG);
+        iis.setByteOrder(ByteOrder.BIG_ENDIAN);
+        if (iis.readUnsignedShort() != 0xFFD8) {
+            return null;
+        }
+        while (true) {
+            int b = iis.read();
+            if (b != 0xFF) {
+                return null;
+            }
+            int marker = iis.read();
+            while (marker == 0xFF) {
+                // fill bytes
+                marker = iis.read();
+            }
+            if (marker < 0 || marker == 0xD9 || marker == 0xDA) {
+                // end of image or start of scan before any frame header
+                return null;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // markers without segment
+                continue;
+            }
+            int length = iis.readUnsignedShort();
+            long segmentStart = iis.getStreamPosition();
+            if (marker == 0xE0 && length >= 14) {
+                byte[] identifier = new byte[5];
+                iis.readFully(identifier);
+                if ("JFIF\0".equals(new String(identifier, "ISO-8859-1"))) {
+                    iis.skipBytes(2); // version
+                    int units = iis.readUnsignedByte();
+                    int xdensity = iis.readUnsignedShort();
+                    int ydensity = iis.readUnsignedShort();
+                    if (units == 1) {
+                        info.xResolution = xdensity;
+                        info.yResolution = ydensity;
+                    } else if (units == 2) {
+                        info.xResolution = xdensity * 2.54f;
+                        info.yResolution = ydensity * 2.54f;
+                    }
+                }
+            } else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                // start of frame
+                info.colordepth = iis.readUnsignedByte();
+                info.height = iis.readUnsignedShort();
+                info.width = iis.readUnsignedShort();
+                info.samplesperpixel = iis.readUnsignedByte();
+                return info.checkResolution();
+            }
+            iis.seek(segmentStart + length - 2);
+        }
+    }
+
+    /* -------------------------------- PNG -------------------------------- */
+
+    /************************************************************************************
+     * read the IHDR and pHYs chunks of a PNG, stops at the first IDAT chunk
+     * 
+     * @param iis the stream to read, positioned at the start of the file
+     * @return the {@link ImageInfo} or null, if the header is not valid
+     * @throws IOException
+     ************************************************************************************/
+    static ImageInfo readPng(ImageInputStream iis) throws IOException {
+        ImageInfo info = new ImageInfo(ImageFileFormat.PNG);
+        iis.setByteOrder(ByteOrder.BIG_ENDIAN);
+        iis.skipBytes(8); // signature
+        boolean headerFound = false;
+        while (true) {
+            long length = iis.readUnsignedInt();
+            byte[] type = new byte[4];
+            iis.readFully(type);
+            String chunk = new String(type, "ISO-8859-1");
+            long dataStart = iis.getStreamPosition();
+            if ("IHDR".equals(chunk)) {
+                info.width = (int) iis.readUnsignedInt();
+                info.height = (int) iis.readUnsignedInt();
+                info.colordepth = iis.readUnsignedByte();
+                int colorType = iis.readUnsignedByte();
+                switch (colorType) {
+                    case 2:
+                        info.samplesperpixel = 3; // RGB
+                        break;
+                    case 4:
+                        info.samplesperpixel = 2; // grey with alpha
+                        break;
+                    case 6:
+                        info.samplesperpixel = 4; // RGB with alpha
+                        break;
+                    default:
+                        info.samplesperpixel = 1; // grey or palette
+                        break;
+                }
+                headerFound = true;
+            } else if ("pHYs".equals(chunk)) {
+                long ppuX = iis.readUnsignedInt();
+                long ppuY = iis.readUnsignedInt();
+                int unit = iis.readUnsignedByte();
+                if (unit == 1) {
+                    // pixels per meter
+                    info.xResolution = ppuX * 0.0254f;
+                    info.yResolution = ppuY * 0.0254f;
+                }
+            } else if ("IDAT".equals(chunk) || "IEND".equals(chunk)) {
+                return headerFound ? info.checkResolution() : null;
+            }
+            iis.seek(dataStart + length + 4); // skip data and crc
+        }
+    }
+
+    /* -------------------------------- JPEG 2000 -------------------------------- */
+
+    /************************************************************************************
+     * read the image header and resolution boxes of a JP2 file, or the SIZ marker segment of a raw codestream
+     * 
+     * @param iis the stream to read, positioned at the start of the file
+     * @return the {@link ImageInfo} or null, if the header is not valid
+     * @throws IOException
+     ************************************************************************************/
+    static ImageInfo readJp2(ImageInputStream iis) throws IOException {
+        ImageInfo info = new ImageInfo(ImageFileFormat.JP2);
+        iis.setByteOrder(ByteOrder.BIG_ENDIAN);
+        iis.mark();
+        int soc = iis.readUnsignedShort();
+        iis.reset();
+        if (soc == 0xFF4F) {
+            return readCodestream(iis, info) ? info.checkResolution() : null;
+        }
+        if (readJp2Boxes(iis, info, -1)) {
+            return info.checkResolution();
+        }
+        return null;
+    }
+
+    /**
+     * read the boxes up to the given end, descending into the header and resolution super boxes
+     * 
+     * @return true, if the image size was found
+     */
+    private static boolean readJp2Boxes(ImageInputStream iis, ImageInfo info, long end) throws IOException {
+        boolean sizeFound = false;
+        while (end < 0 || iis.getStreamPosition() < end) {
+            long boxStart = iis.getStreamPosition();
+            long length = iis.readUnsignedInt();
+            byte[] type = new byte[4];
+            iis.readFully(type);
+            String box = new String(type, "ISO-8859-1");
+            if (length == 1) {
+                length = iis.readLong();
+            }
+            if (length != 0 && length < 8) {
+                // broken box
+                return sizeFound;
+            }
+            long boxEnd = length == 0 ? -1 : boxStart + length;
+            if ("jp2h".equals(box) || "res ".equals(box)) {
+                sizeFound |= readJp2Boxes(iis, info, boxEnd);
+                if ("jp2h".equals(box)) {
+                    return sizeFound;
+                }
+            } else if ("ihdr".equals(box)) {
+                info.height = (int) iis.readUnsignedInt();
+                info.width = (int) iis.readUnsignedInt();
+                info.samplesperpixel = iis.readUnsignedShort();
+                int bpc = iis.readUnsignedByte();
+                if (bpc != 255) {
+                    info.colordepth = (bpc & 0x7F) + 1;
+                }
+                sizeFound = true;
+            } else if ("resc".equals(box) || ("resd".equals(box) && info.xResolution == DEFAULT_RESOLUTION)) {
+                // capture resolution is preferred over display resolution; values are in grid points per meter
+                int vrcn = iis.readUnsignedShort();
+                int vrcd = iis.readUnsignedShort();
+                int hrcn = iis.readUnsignedShort();
+                int hrcd = iis.readUnsignedShort();
+                int vrce = iis.readByte();
+                int hrce = iis.readByte();
+                if (vrcd != 0 && hrcd != 0) {
+                    info.yResolution = (float) (vrcn / (double) vrcd * Math.pow(10, vrce) * 0.0254);
+                    info.xResolution = (float) (hrcn / (double) hrcd * Math.pow(10, hrce) * 0.0254);
+                }
+            } else if ("jp2c".equals(box)) {
+                return readCodestream(iis, info);
+            }
+            if (boxEnd < 0) {
+                return sizeFound;
+            }
+            iis.seek(boxEnd);
+        }
+        return sizeFound;
+    }
+
+    /**
+     * read the SIZ marker segment at the start of a codestream
+     * 
+     * @return true, if the image size was found
+     */
+    private static boolean readCodestream(ImageInputStream iis, ImageInfo info) throws IOException {
+        if (iis.readUnsignedShort() != 0xFF4F || iis.readUnsignedShort() != 0xFF51) {
+            return false;
+        }
+        iis.skipBytes(2 + 2); // Lsiz, Rsiz
+        long xsiz = iis.readUnsignedInt();
+        long ysiz = iis.readUnsignedInt();
+        long xosiz = iis.readUnsignedInt();
+        long yosiz = iis.readUnsignedInt();
+        iis.skipBytes(4 * 4); // tile size and offset
+        info.width = (int) (xsiz - xosiz);
+        info.height = (int) (ysiz - yosiz);
+        info.samplesperpixel = iis.readUnsignedShort();
+        info.colordepth = (iis.readUnsignedByte() & 0x7F) + 1;
+        return true;
+    }
+
+    /**
+     * use the default resolution, if the image has no valid resolution information
+     */
+    private ImageInfo checkResolution() {
+        if (xResolution <= 1.0 || yResolution <= 1.0) {
+            xResolution = DEFAULT_RESOLUTION;
+            yResolution = DEFAULT_RESOLUTION;
+        }
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        return this;
+    }
+}
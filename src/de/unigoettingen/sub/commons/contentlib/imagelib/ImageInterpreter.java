@@ -25,6 +25,7 @@
  */
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
+import java.awt.Rectangle;
 import java.awt.image.RenderedImage;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
@@ -131,6 +132,24 @@ public interface ImageInterpreter {
      */
     public RenderedImage getRenderedImage();
 
+    /**
+     * Gets the rendered image, decoding only the given region of the source image and only every n-th pixel of it. The returned image always
+     * contains only the given region; interpreters which can't decode a reduced image crop it from the full image, so callers must check the
+     * size of the returned image for the subsampling.
+     * 
+     * @param sourceRegion region of the source image in pixels; null for the whole image
+     * @param subsampling decode every n-th pixel in both directions; 1 for all pixels
+     * @return the rendered image
+     */
+    public RenderedImage getRenderedImage(Rectangle sourceRegion, int subsampling);
+
+    /**
+     * Decode colour images as greyscale, if the image reader supports it. Has to be set before the image is decoded.
+     * 
+     * @param decodeGreyscale true, if the image should be decoded as greyscale
+     */
+    public void setDecodeGreyscale(boolean decodeGreyscale);
+
     /**
      * Pdf bytestream embeddable.
      * 
@@ -154,6 +173,13 @@ public interface ImageInterpreter {
 
     public byte[] writeToStreamAndByteArray(OutputStream outStream);
 
+    /**
+     * encode the content of the RenderedImage into a byte array
+     * 
+     * @return the encoded image, null if there is no image or it can't be encoded
+     */
+    public byte[] writeToByteArray();
+
     /**
      * Gets the writer compression type.
      * 
@@ -26,6 +26,7 @@
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.image.RenderedImage;
 import java.io.OutputStream;
 import java.net.URL;
@@ -38,6 +39,7 @@ import org.apache.log4j.Logger;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManagerException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManipulatorException;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManipulator.MergingMode;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
 
 /************************************************************************************
  * central Image Manager for all kinds of image handlings, wraps all functionalities of the {@link ImageManipulator}
@@ -51,6 +53,7 @@ public class ImageManager {
 
     ImageInterpreter myInterpreter = null;
     OutputStream outputStream = null;
+    URL sourceUrl = null;
 
     public static final Integer SCALE_BY_WIDTH = 1;
     public static final Integer SCALE_BY_HEIGHT = 2;
@@ -124,6 +127,7 @@ public class ImageManager {
             throws ImageManagerException {
         try {
             this.myInterpreter = ImageFileFormat.getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
+            this.sourceUrl = url;
             LOGGER.debug("url: " + url);
         } catch (Exception e) {
             LOGGER.error("Error while getting ImageInterpreter. Reason: " + e.getMessage());
@@ -174,6 +178,7 @@ public class ImageManager {
         this.parameters = inParameters;
         try {
             this.myInterpreter = ImageFileFormat.getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
+            this.sourceUrl = url;
         } catch (Exception e) {
             LOGGER.error("Error while getting ImageInterpreter", e);
         }
@@ -285,6 +290,31 @@ public class ImageManager {
      */
     public RenderedImage scaleImageByPixel(int pixelx, int pixely, int externalscalemethod, int angle, List<String> coordinates, Color inColor,
             Watermark inWatermark, boolean watermarkscale, int watermarkposition) throws ImageManipulatorException {
+        return scaleImageByPixel(pixelx, pixely, externalscalemethod, angle, coordinates, inColor, inWatermark, watermarkscale, watermarkposition,
+                null);
+    }
+
+    /**
+     * Crops, scales and rotates an image. Works like {@link #scaleImageByPixel(int, int, int, int, List, Color, Watermark, boolean, int)}, but only
+     * the given region of the source image is used; all sizes refer to the region instead of the whole image. Highlighting coordinates are still
+     * given in pixels of the whole source image. <br/>
+     * Interpreters which support it decode only the region of the source image.
+     * 
+     * @param pixelx horizontal size of the new image in pixel; or the scale factor in percent, depending on the scale method
+     * @param pixely vertical size of the new image in pixel; or the scale factor in percent, depending on the scale method
+     * @param externalscalemethod defines the scaling method
+     * @param angle angle for rotation; value will be betwetween 0 and 360
+     * @param coordinates a LinkedList containing String. Those strings are representing coordinates: x1,y1,x2,y2 for boxes
+     * @param inColor color for drawing those boxes
+     * @param inWatermark Watermark to be added to the scaled and rotated image
+     * @param watermarkscale method for adjusting the size of the watermark
+     * @param watermarkposition tells if watermark should be added to TOP,BOTTOM,RIGHT or LEFT of the image
+     * @param region region of the source image in pixels; null for the whole image
+     * @return the generated {@link RenderedImage}
+     * @throws ImageManipulatorException
+     */
+    public RenderedImage scaleImageByPixel(int pixelx, int pixely, int externalscalemethod, int angle, List<String> coordinates, Color inColor,
+            Watermark inWatermark, boolean watermarkscale, int watermarkposition, Rectangle region) throws ImageManipulatorException {
         RenderedImage inImage = null;
         RenderedImage outImage = null;
         List<String> draw_coordinates = null;
@@ -301,87 +331,39 @@ public class ImageManager {
         // throw new ImageManipulatorException("Can't rotate angle, when box cordinates are used!");
         // }
 
-        // get image
-        if (this.myInterpreter != null) {
-            inImage = this.myInterpreter.getRenderedImage();
-            if (angle > 0 && angle != 180) {
-                inImage = ImageManipulator.fromRenderedToBuffered(inImage);
-            }
-        }
-
-        if (inImage == null) {
+        if (this.myInterpreter == null) {
             throw new ImageManipulatorException("Can't get RenderedImage from ImageInterpreter");
         }
 
         // ----------------------------------------------------------------------------------------------------
-        if (externalscalemethod == SCALE_TO_BOX) {
-            // pixely = neue höhe
-            // pixelx = neue breite
-            internalScaling_x = (float) pixelx / (float) this.myInterpreter.getWidth();
-            internalScaling_y = (float) pixely / (float) this.myInterpreter.getHeight();
-
-            LOGGER.debug("x: " + internalScaling_x + " y: " + internalScaling_y);
-            if (internalScaling_x > internalScaling_y) {
-
-                internalScaling_x = internalScaling_y;
-            } else {
-                internalScaling_y = internalScaling_x;
-            }
-            double width = (double) this.myInterpreter.getWidth() * (double) internalScaling_x;
-            internalScaling_x = (float) ((double) internalScaling_x * Math.round(width) / width);
-            double height = (double) this.myInterpreter.getHeight() * (double) internalScaling_y;
-            internalScaling_y = (float) ((double) internalScaling_y * Math.round(height) / height);
-
-            LOGGER.debug("new values: " + internalScaling_x);
-            LOGGER.debug("new x " + +this.myInterpreter.getWidth() * internalScaling_x);
-            LOGGER.debug("new y " + this.myInterpreter.getHeight() * internalScaling_y);
-
-        }
-
+        // the size of the source is the size of the requested region
         // ----------------------------------------------------------------------------------------------------
-        // calculate internal scaling factor
-        else if (externalscalemethod == SCALE_BY_WIDTH) {
-            internalScaling_x = (float) pixelx / (float) this.myInterpreter.getWidth();
-            if (pixely == 0) {
-                // scale proportionally
-                internalScaling_y = internalScaling_x;
-            } else {
-                internalScaling_y = (float) pixely / (float) this.myInterpreter.getHeight();
+        Rectangle sourceRegion = null;
+        int sourceWidth = this.myInterpreter.getWidth();
+        int sourceHeight = this.myInterpreter.getHeight();
+        List<String> sourceCoordinates = coordinates;
+        if (region != null) {
+            sourceRegion = region.intersection(new Rectangle(0, 0, sourceWidth, sourceHeight));
+            if (sourceRegion.isEmpty()) {
+                throw new ImageManipulatorException("Region " + region + " is outside of the image (" + sourceWidth + "x" + sourceHeight + ")");
             }
-            // ----------------------------------------------------------------------------------------------------
-        } else if (externalscalemethod == SCALE_BY_HEIGHT) {
-            internalScaling_y = (float) pixely / (float) this.myInterpreter.getHeight();
-            if (pixelx == 0) {
-                // scale proportionally
-                internalScaling_x = internalScaling_y;
-            } else {
-                internalScaling_x = (float) pixelx / (float) this.myInterpreter.getWidth();
+            sourceWidth = sourceRegion.width;
+            sourceHeight = sourceRegion.height;
+            if (coordinates != null) {
+                sourceCoordinates = ImageManipulator.translateCoordinates(coordinates, -sourceRegion.x, -sourceRegion.y);
             }
-            // ----------------------------------------------------------------------------------------------------
-        } else if (externalscalemethod == SCALE_BY_PERCENT) {
-            float xres = this.myInterpreter.getXResolution(); // get x resolution
-            float yres = this.myInterpreter.getYResolution(); // get y resolution
-
-            float intpercentx = ((float) pixelx / 100);
-            float intpercenty = ((float) pixely / 100);
-
-            internalScaling_x = (this.myInterpreter.getXResolution() / xres);
-            // internalScaling_x = (DPI_DEFAULT / xres);
-            internalScaling_x = internalScaling_x * intpercentx;
-            internalScaling_y = (this.myInterpreter.getXResolution() / yres);
-            // internalScaling_y = (DPI_DEFAULT / yres);
-            internalScaling_y = internalScaling_y * intpercenty;
-
-        } else {
-            // no known scale mechanism
-            throw new ImageManipulatorException("no known scale mechanism");
         }
 
+        float[] scaling = getScaling(sourceWidth, sourceHeight, this.myInterpreter.getXResolution(), this.myInterpreter.getYResolution(), pixelx,
+                pixely, externalscalemethod);
+        internalScaling_x = scaling[0];
+        internalScaling_y = scaling[1];
+
         // ----------------------------------------------------------------------------------------------------
         // calculate the new coordinates
         // ----------------------------------------------------------------------------------------------------
         if (coordinates != null) {
-            draw_coordinates = ImageManipulator.scaleCoordinates(coordinates, internalScaling_x, internalScaling_y);
+            draw_coordinates = ImageManipulator.scaleCoordinates(sourceCoordinates, internalScaling_x, internalScaling_y);
         }
 
         // ----------------------------------------------------------------------------------------------------
@@ -398,6 +380,79 @@ public class ImageManager {
             // it's color
             scalemethod = this.parameters.get(COLORSCALEMETHOD);
         }
+
+        // ----------------------------------------------------------------------------------------------------
+        // colour scans which are effectively grey are decoded and rendered as grey images
+        // ----------------------------------------------------------------------------------------------------
+        boolean nearGrey = false;
+        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+        if (config.getGreyDetectionUse() && ChromaDetector.isNearGrey(this.sourceUrl, this.myInterpreter, config.getGreyDetectionThreshold())) {
+            nearGrey = true;
+            this.myInterpreter.setDecodeGreyscale(true);
+        }
+
+        // ----------------------------------------------------------------------------------------------------
+        // get image; when scaling down, only every n-th pixel is decoded. Bitonal images are not subsampled,
+        // as subsampling to grey needs all pixels
+        // ----------------------------------------------------------------------------------------------------
+        int subsampling = 1;
+        if (scalemethod != SUBSAMPLETOGREY) {
+            subsampling = getSubsampling(internalScaling_x, internalScaling_y);
+        }
+        inImage = this.myInterpreter.getRenderedImage(sourceRegion, subsampling);
+        if (inImage == null) {
+            throw new ImageManipulatorException("Can't get RenderedImage from ImageInterpreter");
+        }
+        if ((inImage.getWidth() != sourceWidth) || (inImage.getHeight() != sourceHeight)) {
+            // scale the reduced image to the same target size
+            LOGGER.debug("decoded reduced image " + inImage.getWidth() + "x" + inImage.getHeight() + " instead of " + sourceWidth + "x"
+                    + sourceHeight);
+            internalScaling_x = internalScaling_x * sourceWidth / inImage.getWidth();
+            internalScaling_y = internalScaling_y * sourceHeight / inImage.getHeight();
+        }
+
+        // ----------------------------------------------------------------------------------------------------
+        // 8 bit images are scaled, rotated, highlighted and watermarked in a single pass into the target image;
+        // bitonal images are scaled to grey first and rendered like grey images. Grey and bitonal images stay single channel.
+        // ----------------------------------------------------------------------------------------------------
+        // images with one sample per pixel may also use a colour palette
+        boolean greyscale = nearGrey || this.myInterpreter.getSamplesperpixel() == 1
+                && (this.myInterpreter.getColordepth() == 1 || ImageManipulator.isGrey(inImage.getColorModel()));
+        RenderPlan plan = null;
+        if (scalemethod == SUBSAMPLETOGREY && internalScaling_x <= 1 && internalScaling_y <= 1 && BitonalRenderer.isApplicable(inImage)) {
+            // packed bitonal images are reduced from their bits; right angles are rotated by the bitonal renderer unless
+            // highlights or a watermark have to be drawn into the unrotated grey image
+            boolean decorated = coordinates != null || inWatermark != null || angle % 90 != 0;
+            RenderedImage greyImage = BitonalRenderer.render(inImage, internalScaling_x, internalScaling_y, decorated ? 0 : angle, !decorated);
+            if (!decorated) {
+                return greyImage;
+            }
+            plan = new RenderPlan(greyImage);
+        } else if (scalemethod == SUBSAMPLETOGREY) {
+            RenderedImage greyImage = ImageManipulator.scaleSubsampleBinaryToGrey(inImage, internalScaling_x, internalScaling_y);
+            if (RenderPlan.isApplicable(greyImage)) {
+                plan = new RenderPlan(greyImage);
+            }
+        } else if (RenderPlan.isApplicable(inImage)) {
+            plan = new RenderPlan(inImage);
+            plan.setScaling(internalScaling_x, internalScaling_y);
+            plan.setScaleMethod(scalemethod);
+        }
+        if (plan != null) {
+            plan.setGreyscale(greyscale);
+            plan.setRotation(angle);
+            if (coordinates != null) {
+                plan.setHighlights(draw_coordinates, inColor);
+            }
+            if (inWatermark != null) {
+                plan.setWatermark(inWatermark, watermarkscale, watermarkposition);
+            }
+            return plan.render();
+        }
+
+        if (angle > 0 && angle != 180) {
+            inImage = ImageManipulator.fromRenderedToBuffered(inImage);
+        }
         // check value of scale method and scale
         if (scalemethod == SUBSAMPLETOGREY) {
             outImage = ImageManipulator.scaleSubsampleBinaryToGrey(inImage, internalScaling_x, internalScaling_y);
@@ -482,6 +537,106 @@ public class ImageManager {
         return outImage;
     }
 
+    /**
+     * Calculates the horizontal and vertical scale factors for an image of the given size, the same way as
+     * {@link #scaleImageByPixel(int, int, int, int, List, Color, Watermark, boolean, int, Rectangle)} does.
+     * 
+     * @param sourceWidth width of the source image (or of the source region)
+     * @param sourceHeight height of the source image (or of the source region)
+     * @param xResolution horizontal resolution of the source image
+     * @param yResolution vertical resolution of the source image
+     * @param pixelx requested width or percent value
+     * @param pixely requested height or percent value
+     * @param externalscalemethod one of the SCALE_* constants
+     * @return horizontal and vertical scale factor
+     * @throws ImageManipulatorException if the scale method is unknown
+     */
+    public static float[] getScaling(int sourceWidth, int sourceHeight, float xResolution, float yResolution, int pixelx, int pixely,
+            int externalscalemethod) throws ImageManipulatorException {
+        float internalScaling_y = 0;
+        float internalScaling_x = 0;
+
+        // ----------------------------------------------------------------------------------------------------
+        if (externalscalemethod == SCALE_TO_BOX) {
+            // pixely = neue höhe
+            // pixelx = neue breite
+            internalScaling_x = (float) pixelx / (float) sourceWidth;
+            internalScaling_y = (float) pixely / (float) sourceHeight;
+
+            LOGGER.debug("x: " + internalScaling_x + " y: " + internalScaling_y);
+            if (internalScaling_x > internalScaling_y) {
+
+                internalScaling_x = internalScaling_y;
+            } else {
+                internalScaling_y = internalScaling_x;
+            }
+            double width = (double) sourceWidth * (double) internalScaling_x;
+            internalScaling_x = (float) ((double) internalScaling_x * Math.round(width) / width);
+            double height = (double) sourceHeight * (double) internalScaling_y;
+            internalScaling_y = (float) ((double) internalScaling_y * Math.round(height) / height);
+
+            LOGGER.debug("new values: " + internalScaling_x);
+            LOGGER.debug("new x " + +sourceWidth * internalScaling_x);
+            LOGGER.debug("new y " + sourceHeight * internalScaling_y);
+
+        }
+
+        // ----------------------------------------------------------------------------------------------------
+        // calculate internal scaling factor
+        else if (externalscalemethod == SCALE_BY_WIDTH) {
+            internalScaling_x = (float) pixelx / (float) sourceWidth;
+            if (pixely == 0) {
+                // scale proportionally
+                internalScaling_y = internalScaling_x;
+            } else {
+                internalScaling_y = (float) pixely / (float) sourceHeight;
+            }
+            // ----------------------------------------------------------------------------------------------------
+        } else if (externalscalemethod == SCALE_BY_HEIGHT) {
+            internalScaling_y = (float) pixely / (float) sourceHeight;
+            if (pixelx == 0) {
+                // scale proportionally
+                internalScaling_x = internalScaling_y;
+            } else {
+                internalScaling_x = (float) pixelx / (float) sourceWidth;
+            }
+            // ----------------------------------------------------------------------------------------------------
+        } else if (externalscalemethod == SCALE_BY_PERCENT) {
+            float xres = xResolution; // get x resolution
+            float yres = yResolution; // get y resolution
+
+            float intpercentx = ((float) pixelx / 100);
+            float intpercenty = ((float) pixely / 100);
+
+            internalScaling_x = (xResolution / xres);
+            // internalScaling_x = (DPI_DEFAULT / xres);
+            internalScaling_x = internalScaling_x * intpercentx;
+            internalScaling_y = (xResolution / yres);
+            // internalScaling_y = (DPI_DEFAULT / yres);
+            internalScaling_y = internalScaling_y * intpercenty;
+
+        } else {
+            // no known scale mechanism
+            throw new ImageManipulatorException("no known scale mechanism");
+        }
+        return new float[] { internalScaling_x, internalScaling_y };
+    }
+
+    /**
+     * Calculates how many source pixels can be skipped while decoding, so that the decoded image is still at least as large as the scaled image.
+     * 
+     * @param scalex horizontal scale factor
+     * @param scaley vertical scale factor
+     * @return decode every n-th pixel; 1 for all pixels
+     */
+    private static int getSubsampling(float scalex, float scaley) {
+        float scale = Math.max(scalex, scaley);
+        if ((scale <= 0) || (scale >= 0.5f)) {
+            return 1;
+        }
+        return (int) Math.floor(1 / scale);
+    }
+
     /**
      * @return the httpproxyhost
      */
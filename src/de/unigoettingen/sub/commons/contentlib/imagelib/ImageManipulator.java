@@ -29,9 +29,12 @@ import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
 import java.awt.image.RenderedImage;
 import java.awt.image.RescaleOp;
 import java.awt.image.WritableRaster;
@@ -106,6 +109,23 @@ public final class ImageManipulator {
         return outImage.createInstance();
     }
 
+    /************************************************************************************
+     * Reduce an image by averaging the source pixels of each target pixel, which does not alias when reducing by more than the factor 2
+     * 
+     * @param inImage the source {@link RenderedImage}
+     * @param scalex Scaling for x, at most 1
+     * @param scaley Scaling for y, at most 1
+     * @return the manipulated {@link RenderedImage}
+     ************************************************************************************/
+    public static RenderedImage scaleSubsampleAverage(RenderedImage inImage, float scalex, float scaley) {
+        ParameterBlock params = new ParameterBlock();
+        params.addSource(inImage);
+        params.add((double) scalex);
+        params.add((double) scaley);
+        RenderedOp outImage = JAI.create("SubsampleAverage", params);
+        return outImage.createInstance();
+    }
+
     /************************************************************************************
      * Scale an image with the InterpolationBilinear subsamplebinarytogray algorithm
      * 
@@ -177,7 +197,10 @@ public final class ImageManipulator {
 
         // create a new RenderedImage (with the targetsize)
         LOGGER.debug("Merging two images: target image is :" + targetimagewidth + " x " + targetimageheight);
-        BufferedImage targetBImage = new BufferedImage(targetimagewidth, targetimageheight, BufferedImage.TYPE_INT_RGB);
+        // grey images stay grey
+        int targetType = isGrey(inImage1.getColorModel()) && isGrey(inImage2.getColorModel()) ? BufferedImage.TYPE_BYTE_GRAY
+                : BufferedImage.TYPE_INT_RGB;
+        BufferedImage targetBImage = new BufferedImage(targetimagewidth, targetimageheight, targetType);
         Graphics g = targetBImage.createGraphics(); // get graphics to draw on
 
         if (mode == MergingMode.VERTICALLY) {
@@ -412,6 +435,63 @@ public final class ImageManipulator {
         return result;
     }
 
+    /**************************************************************************************
+     * moves a list of coordinates by the given offset. The coordinates have the same format as for {@link #scaleCoordinates(List, float, float)}.
+     * 
+     * @param inCoordinates
+     * @param dx horizontal offset in pixels
+     * @param dy vertical offset in pixels
+     * @return the moved coordinates
+     * @throws ImageManipulatorException
+     **************************************************************************************/
+    public static List<String> translateCoordinates(List<String> inCoordinates, int dx, int dy) throws ImageManipulatorException {
+        LinkedList<String> result = new LinkedList<String>();
+        for (String singleCoordinateset : inCoordinates) {
+            String numbers[] = singleCoordinateset.split(",");
+            if (numbers.length % 2 != 0) {
+                throw new ImageManipulatorException("Invalid coordinate format");
+            }
+            StringBuilder newCoordinate = new StringBuilder();
+            for (int i = 0; i < numbers.length; i++) {
+                if (i > 0) {
+                    newCoordinate.append(',');
+                }
+                newCoordinate.append(Integer.parseInt(numbers[i].trim()) + (i % 2 == 0 ? dx : dy));
+            }
+            result.add(newCoordinate.toString());
+        }
+        return result;
+    }
+
+    /**************************************************************************************
+     * Crops a region out of an image; the upper left corner of the region becomes the origin of the new image
+     * 
+     * @param inImage the source {@link RenderedImage}
+     * @param region the region to keep, it has to lie inside of the image
+     * @return the cropped {@link RenderedImage}
+     **************************************************************************************/
+    public static RenderedImage crop(RenderedImage inImage, Rectangle region) {
+        if (region.x == inImage.getMinX() && region.y == inImage.getMinY() && region.width == inImage.getWidth()
+                && region.height == inImage.getHeight()) {
+            return inImage;
+        }
+        ParameterBlock params = new ParameterBlock();
+        params.addSource(inImage);
+        params.add((float) region.x);
+        params.add((float) region.y);
+        params.add((float) region.width);
+        params.add((float) region.height);
+        RenderedOp cropped = JAI.create("crop", params);
+
+        // move the region to the origin
+        ParameterBlock translate = new ParameterBlock();
+        translate.addSource(cropped);
+        translate.add((float) -region.x);
+        translate.add((float) -region.y);
+        translate.add(Interpolation.getInstance(Interpolation.INTERP_NEAREST));
+        return JAI.create("translate", translate).createInstance();
+    }
+
     /**************************************************************************************
      * converts a {@link RenderedImage} into a {@link BufferedImage}
      * 
@@ -443,11 +523,27 @@ public final class ImageManipulator {
         return ret;
     }
 
+    /**************************************************************************************
+     * converts a {@link RenderedImage} into a new {@link BufferedImage} without alpha channel; grey and bitonal images are converted to
+     * {@link BufferedImage#TYPE_BYTE_GRAY}, all others to {@link BufferedImage#TYPE_INT_RGB}
+     * 
+     * @param img the {@link RenderedImage} to convert
+     * @return the converted {@link BufferedImage}
+     **************************************************************************************/
     public static BufferedImage fromRenderedToBufferedNoAlpha(RenderedImage img) {
 
         ColorModel cm = img.getColorModel();
         int w = img.getWidth();
         int h = img.getHeight();
+        boolean grey = isGrey(cm);
+        if (grey && !cm.hasAlpha() && img.getSampleModel().getNumBands() == 1 && img.getSampleModel().getDataType() == DataBuffer.TYPE_BYTE
+                && img.getSampleModel().getSampleSize(0) == 8) {
+            // the grey values can be copied without any conversion
+            BufferedImage grayImage = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+            WritableRaster grayRaster = grayImage.getRaster().createWritableTranslatedChild(img.getMinX(), img.getMinY());
+            img.copyData(grayRaster);
+            return grayImage;
+        }
         WritableRaster raster = cm.createCompatibleWritableRaster(w, h);
         boolean isAlphaPremultiplied = cm.isAlphaPremultiplied();
         Hashtable<String, Object> props = new Hashtable<String, Object>();
@@ -463,10 +559,32 @@ public final class ImageManipulator {
         BufferedImage ret = new BufferedImage(cm, raster, isAlphaPremultiplied, props);
         img.copyData(raster);
 
-        BufferedImage ret2 = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        BufferedImage ret2 = new BufferedImage(w, h, grey ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
         // draw image into BufferedImage
         Graphics2D g2d = ret2.createGraphics();
         g2d.drawImage(ret, 0, 0, null);
         return ret2;
     }
+
+    /**************************************************************************************
+     * checks if a color model has only grey values: a single color component, or a palette of grey values like bitonal images
+     * 
+     * @param cm the {@link ColorModel}
+     * @return true, if the color model is grey
+     **************************************************************************************/
+    public static boolean isGrey(ColorModel cm) {
+        if (cm == null) {
+            return false;
+        }
+        if (cm instanceof IndexColorModel) {
+            IndexColorModel icm = (IndexColorModel) cm;
+            for (int i = 0; i < icm.getMapSize(); i++) {
+                if (icm.getRed(i) != icm.getGreen(i) || icm.getGreen(i) != icm.getBlue(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return cm.getNumColorComponents() == 1;
+    }
 }
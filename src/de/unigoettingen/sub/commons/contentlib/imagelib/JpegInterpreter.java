@@ -26,15 +26,19 @@
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -63,6 +67,8 @@ import com.sun.imageio.plugins.jpeg.JPEGImageReaderSpi;
 import com.sun.imageio.plugins.jpeg.JPEGImageWriter;
 import com.sun.imageio.plugins.jpeg.JPEGImageWriterSpi;
 import com.sun.media.jai.codec.ByteArraySeekableStream;
+import com.sun.media.jai.codec.FileSeekableStream;
+import com.sun.media.jai.codec.SeekableStream;
 
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageInterpreterException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ParameterNotSupportedException;
@@ -113,7 +119,98 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
         }
         //
 
-        // read the stream
+        // read the header only, the image itself is decoded when it is needed
+        Node domNode = readHeader();
+        if (domNode != null) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                LOGGER.error("Failed to close input stream");
+            }
+        } else {
+            domNode = readImage(inputStream);
+            if (domNode == null) {
+                return;
+            }
+        }
+
+        // get new metadata - this is not very sophisticated parsing the DOM
+        // tree - needs to be replaced by
+        // XPATH expressions - see above
+        readMetadata(domNode);
+    }
+
+    /************************************************************************************
+     * Constructor for {@link JpegInterpreter} to read an jpeg image from given {@link File}. The file is not read into memory, only the header is
+     * read here.
+     * 
+     * @param file the jpeg {@link File}
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    public JpegInterpreter(File file) throws ImageInterpreterException {
+        this.sourceFile = file;
+
+        // read the header only, the image itself is decoded when it is needed
+        Node domNode = readHeader();
+        if (domNode == null) {
+            try {
+                domNode = readImage(new FileSeekableStream(file));
+            } catch (IOException e) {
+                LOGGER.error("Can't open jpeg file", e);
+                throw new ImageInterpreterException("Can't open jpeg file " + file, e);
+            }
+            if (domNode == null) {
+                return;
+            }
+        }
+        readMetadata(domNode);
+    }
+
+    /************************************************************************************
+     * read width, height and metadata of the jpeg image without decoding it
+     * 
+     * @return the metadata tree or null, if the header could not be read
+     ************************************************************************************/
+    private Node readHeader() {
+        ImageInputStream iis = null;
+        ImageReader ir = null;
+        try {
+            iis = createImageInputStream();
+            Iterator<ImageReader> ri = ImageIO.getImageReaders(iis);
+            if (!ri.hasNext()) {
+                return null;
+            }
+            ir = ri.next();
+            ir.setInput(iis, true);
+            IIOMetadata md = getImageMetadata(ir);
+            this.width = ir.getWidth(0);
+            this.height = ir.getHeight(0);
+            return md.getAsTree(md.getNativeMetadataFormatName());
+        } catch (Exception e) {
+            LOGGER.debug("Failed to read jpeg header, decoding the whole image: " + e.toString());
+            return null;
+        } finally {
+            if (ir != null) {
+                ir.dispose();
+            }
+            if (iis != null) {
+                try {
+                    iis.close();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to close image stream", e);
+                }
+            }
+        }
+    }
+
+    /************************************************************************************
+     * decode the whole jpeg image from the given stream
+     * 
+     * @param inputStream the stream to read
+     * @return the metadata tree or null, if the image has no metadata and default values are used
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    private Node readImage(InputStream inputStream) throws ImageInterpreterException {
         Node domNode = null;
         try {
             IIOImage image = createImage(inputStream, 0);
@@ -138,7 +235,7 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
                 width = this.renderedimage.getWidth();
                 height = this.renderedimage.getHeight();
                 samplesPerPixel = 1;
-                return;
+                return null;
             }
         } finally {
             if (inputStream != null) {
@@ -149,11 +246,15 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
                 }
             }
         }
-        //
+        return domNode;
+    }
 
-        // get new metadata - this is not very sophisticated parsing the DOM
-        // tree - needs to be replaced by
-        // XPATH expressions - see above
+    /************************************************************************************
+     * set size, resolution and color information from the metadata tree
+     * 
+     * @param domNode the metadata tree of the jpeg image
+     ************************************************************************************/
+    private void readMetadata(Node domNode) {
         String height_str = this.getNumLines(domNode);
         if (height_str != null) {
             this.height = Integer.parseInt(height_str);
@@ -237,6 +338,86 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
         LOGGER.debug("Number of Frames / Samples per Pixel = " + samplesPerPixel);
     }
 
+    /**
+     * Retrieves the RenderedImage, decoding the image on first use.
+     * 
+     * @return the rendered image
+     */
+    @Override
+    public RenderedImage getRenderedImage() {
+        if ((this.renderedimage == null) && (this.rawbytes == null) && (this.sourceFile != null)) {
+            // read the image directly from the file
+            this.renderedimage = readWithReaders(null, 1);
+            if (this.renderedimage == null) {
+                SeekableStream fileStream = null;
+                try {
+                    fileStream = new FileSeekableStream(this.sourceFile);
+                    this.renderedimage = createImage(fileStream, 0).getRenderedImage();
+                } catch (Exception e) {
+                    LOGGER.error("Failed to read image from file", e);
+                } finally {
+                    if (fileStream != null) {
+                        try {
+                            fileStream.close();
+                        } catch (IOException e) {
+                            LOGGER.error("Failed to close input stream");
+                        }
+                    }
+                }
+            }
+        }
+        if ((this.renderedimage == null) && (this.rawbytes != null)) {
+            try {
+                this.renderedimage = createImage(new ByteArraySeekableStream(this.rawbytes), 0).getRenderedImage();
+            } catch (Exception e) {
+                LOGGER.error("Failed to read image from byte stream", e);
+            }
+        }
+        return this.renderedimage;
+    }
+
+    /**
+     * Decodes only the given region and every n-th pixel of the jpeg, so small renders of large scans don't need to decode all pixels. Falls back
+     * to the full image, if the image was already decoded or no reader can decode a reduced image.
+     * 
+     * @param sourceRegion region of the source image in pixels; null for the whole image
+     * @param subsampling decode every n-th pixel in both directions; 1 for all pixels
+     * @return the rendered image
+     */
+    @Override
+    public RenderedImage getRenderedImage(Rectangle sourceRegion, int subsampling) {
+        if ((this.renderedimage == null) && ((sourceRegion != null) || (subsampling > 1))) {
+            RenderedImage reducedImage = readWithReaders(sourceRegion, subsampling);
+            if (reducedImage != null) {
+                return reducedImage;
+            }
+        }
+        return super.getRenderedImage(sourceRegion, subsampling);
+    }
+
+    /**
+     * try all jpeg readers until one can decode the image
+     * 
+     * @param sourceRegion region of the source image in pixels; null for the whole image
+     * @param subsampling decode every n-th pixel in both directions; 1 for all pixels
+     * @return the decoded image or null, if no reader could decode the image
+     */
+    private RenderedImage readWithReaders(Rectangle sourceRegion, int subsampling) {
+        List<ImageReader> readers = new ArrayList<ImageReader>();
+        Iterator<ImageReader> ri = ImageIO.getImageReadersByFormatName("jpeg");
+        while (ri.hasNext()) {
+            readers.add(ri.next());
+        }
+        readers.add(new JPEGImageReader(new JPEGImageReaderSpi()));
+        for (ImageReader ir : readers) {
+            RenderedImage image = readRenderedImage(ir, ir.getDefaultReadParam(), sourceRegion, subsampling);
+            if (image != null) {
+                return image;
+            }
+        }
+        return null;
+    }
+
     /************************************************************************************
      * Constructor for jpeg image from given {@link RenderedImage}
      * 
@@ -255,159 +436,105 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
      ************************************************************************************/
     @Override
     public void writeToStream(FileOutputStream fos, OutputStream outStream) {
-        if (this.renderedimage == null) { // no image available
+        if (getRenderedImage() == null) { // no image available
             return;
         }
         try {
-            // create a buffered Image, which has no Alpha channel
-            // as JPEG does not support Alpha Channels and the
-            // ImageIO doesn't care - but will create a corrupt JPEG
-            BufferedImage noAlphaBi = ImageManipulator.fromRenderedToBufferedNoAlpha(renderedimage);
-            ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
-
-            // Iterator<ImageWriter> writerIter = ImageIO
-            // .getImageWritersByFormatName("jpg");
-            // ImageWriter writer = writerIter.next(); // get writer from ImageIO
-            ImageWriter writer = new JPEGImageWriter(new JPEGImageWriterSpi());
-
-            // create metadata by creating an XML tree
-            ImageWriteParam writerParam = writer.getDefaultWriteParam();
-            ImageTypeSpecifier its = new ImageTypeSpecifier(noAlphaBi);
-
-            // ImageTypeSpecifier its = new
-            // ImageTypeSpecifier(image.getColorModel(),
-            // image.getSampleModel());
-
-            // IIOMetadata iomd = writer.getDefaultImageMetadata(new
-            // ImageTypeSpecifier(image), writerParam);
-            // Element tree =
-            // (Element)iomd.getAsTree("javax_imageio_jpeg_image_1.0");
-            // Element tree = (Element)iomd.getAsTree("javax_imageio_1.0");
-            //
-            IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
-
-            // create the XML tree and modify the appropriate DOM elements
-            // to set the metadata
-            setMetadata(iomd);
-
-            // set compression
-            writerParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            float comprvalue = ((float) writerCompressionValue) / 100;
-            writerParam.setCompressionQuality(comprvalue);
-
-            // set output
-            writer.setOutput(imageOutStream);
-            writer.prepareWriteSequence(null);
-
-            // create new image parameters to set the compression
-            // Locale locale = new Locale("en");
-            // JPEGImageWriteParam jpegWriteParam = new
-            // JPEGImageWriteParam(locale);
-
-            // IIOImage iioImage = new IIOImage(renderedimage, null, iomd);
-
-            IIOImage iioImage = new IIOImage(noAlphaBi, null, iomd);
-            writer.write(null, iioImage, writerParam);
-            writer.endWriteSequence();
-            imageOutStream.flush();
-
             if (fos != null) {
-                ImageOutputStream imageToFile = ImageIO.createImageOutputStream(fos);
-                writer.setOutput(imageToFile);
-                writer.prepareWriteSequence(null);
-                writer.write(null, iioImage, writerParam);
-                writer.endWriteSequence();
-                imageToFile.flush();
-                imageToFile.close();
-                fos.flush();
-                fos.close();
+                // encode once and write the same bytes to the stream and the file
+                writeEncodedImage(encode(), fos, outStream);
+            } else {
+                encode(outStream);
             }
+        } catch (IOException e) {
+            LOGGER.error("IOException occured", e);
+        }
+    }
 
-            // ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    /************************************************************************************
+     * Encode the renderedimage as JPEG into a byte array
+     * 
+     * @return the encoded image
+     * @throws IOException
+     ************************************************************************************/
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        encode(baos);
+        return baos.toByteArray();
+    }
 
-            // byte [] data = wi.getImageAsByteArray();
+    /************************************************************************************
+     * Encode the renderedimage as JPEG and write it to an {@link OutputStream}
+     * 
+     * @param outStream the {@link OutputStream} to write to
+     * @throws IOException
+     ************************************************************************************/
+    private void encode(OutputStream outStream) throws IOException {
+        // create a buffered Image, which has no Alpha channel
+        // as JPEG does not support Alpha Channels and the
+        // ImageIO doesn't care - but will create a corrupt JPEG
+        // images rendered as RGB or grey without alpha are encoded without copying them; grey images are encoded with a single component
+        BufferedImage noAlphaBi = null;
+        int type = renderedimage instanceof BufferedImage ? ((BufferedImage) renderedimage).getType() : BufferedImage.TYPE_CUSTOM;
+        if (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_BYTE_GRAY) {
+            noAlphaBi = (BufferedImage) renderedimage;
+        } else {
+            noAlphaBi = ImageManipulator.fromRenderedToBufferedNoAlpha(renderedimage);
+        }
+        ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
+
+        ImageWriter writer = new JPEGImageWriter(new JPEGImageWriterSpi());
+
+        // create metadata by creating an XML tree
+        ImageWriteParam writerParam = writer.getDefaultWriteParam();
+        ImageTypeSpecifier its = new ImageTypeSpecifier(noAlphaBi);
+        IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
+
+        // create the XML tree and modify the appropriate DOM elements
+        // to set the metadata
+        setMetadata(iomd);
+
+        // set compression
+        writerParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        float comprvalue = ((float) writerCompressionValue) / 100;
+        writerParam.setCompressionQuality(comprvalue);
 
-            writer.dispose();
-            imageOutStream.close();
+        // set output
+        writer.setOutput(imageOutStream);
+        writer.prepareWriteSequence(null);
 
+        IIOImage iioImage = new IIOImage(noAlphaBi, null, iomd);
+        writer.write(null, iioImage, writerParam);
+        writer.endWriteSequence();
+        imageOutStream.flush();
+
+        writer.dispose();
+        imageOutStream.close();
+    }
+
+    @Override
+    public byte[] writeToByteArray() {
+        if (getRenderedImage() == null) { // no image available
+            return null;
+        }
+        try {
+            return encode();
         } catch (IOException e) {
             LOGGER.error("IOException occured", e);
         }
+        return null;
     }
 
     @Override
     public byte[] writeToStreamAndByteArray(OutputStream outStream) {
         byte[] data = null;
-        if (this.renderedimage == null) { // no image available
+        if (getRenderedImage() == null) { // no image available
             return data;
         }
         try {
-            // create a buffered Image, which has no Alpha channel
-            // as JPEG does not support Alpha Channels and the
-            // ImageIO doesn't care - but will create a corrupt JPEG
-            BufferedImage noAlphaBi = ImageManipulator.fromRenderedToBufferedNoAlpha(renderedimage);
-            ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
-
-            // Iterator<ImageWriter> writerIter = ImageIO
-            // .getImageWritersByFormatName("jpg");
-            // ImageWriter writer = writerIter.next(); // get writer from ImageIO
-            ImageWriter writer = new JPEGImageWriter(new JPEGImageWriterSpi());
-
-            // create metadata by creating an XML tree
-            ImageWriteParam writerParam = writer.getDefaultWriteParam();
-            ImageTypeSpecifier its = new ImageTypeSpecifier(noAlphaBi);
-
-            // ImageTypeSpecifier its = new
-            // ImageTypeSpecifier(image.getColorModel(),
-            // image.getSampleModel());
-
-            // IIOMetadata iomd = writer.getDefaultImageMetadata(new
-            // ImageTypeSpecifier(image), writerParam);
-            // Element tree =
-            // (Element)iomd.getAsTree("javax_imageio_jpeg_image_1.0");
-            // Element tree = (Element)iomd.getAsTree("javax_imageio_1.0");
-            //
-            IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
-
-            // create the XML tree and modify the appropriate DOM elements
-            // to set the metadata
-            setMetadata(iomd);
-
-            // set compression
-            writerParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            float comprvalue = ((float) writerCompressionValue) / 100;
-            writerParam.setCompressionQuality(comprvalue);
-
-            // set output
-            writer.setOutput(imageOutStream);
-            writer.prepareWriteSequence(null);
-
-            // create new image parameters to set the compression
-            // Locale locale = new Locale("en");
-            // JPEGImageWriteParam jpegWriteParam = new
-            // JPEGImageWriteParam(locale);
-
-            // IIOImage iioImage = new IIOImage(renderedimage, null, iomd);
-
-            IIOImage iioImage = new IIOImage(noAlphaBi, null, iomd);
-            writer.write(null, iioImage, writerParam);
-            writer.endWriteSequence();
-            imageOutStream.flush();
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            ImageOutputStream imageToFile = ImageIO.createImageOutputStream(baos);
-            writer.setOutput(imageToFile);
-            writer.prepareWriteSequence(null);
-            writer.write(null, iioImage, writerParam);
-            writer.endWriteSequence();
-            imageToFile.flush();
-            imageToFile.close();
-            baos.flush();
-            data = baos.toByteArray();
-            baos.close();
-            writer.dispose();
-            imageOutStream.close();
+            // encode once, the same bytes are written to the stream and returned
+            data = encode();
+            writeEncodedImage(data, null, outStream);
         } catch (IOException e) {
             LOGGER.error("IOException occured", e);
         }
@@ -25,8 +25,11 @@
  */
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,6 +43,7 @@ import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 import javax.xml.parsers.DocumentBuilder;
@@ -52,6 +56,7 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import com.sun.media.imageio.plugins.jpeg2000.J2KImageReadParam;
 import com.sun.media.imageio.plugins.jpeg2000.J2KImageWriteParam;
 import com.sun.media.jai.codec.ByteArraySeekableStream;
 
@@ -81,19 +86,8 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
      * @throws ImageInterpreterException
      ************************************************************************************/
     public JpegTwoThousandInterpreter(InputStream inStream) throws ImageInterpreterException {
-        ImageReader imagereader = null; // ImageReader to read the class
-        ImageInputStream iis = null;
         InputStream inputStream = null;
 
-        Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("jpeg2000");
-        if (it.hasNext()) {
-            imagereader = it.next();
-        } else {
-            // ERROR - no ImageReader was found
-            LOGGER.error("Imagereader for Jpeg2000 couldn't be found");
-            throw new ImageInterpreterException("Imagereader for Jpeg2000 format couldn't be found!");
-        }
-
         // read the stream and store it in a byte array
         // TODO: This reads the Image into the memory, try to get away with avoiding this, the underlying implementation does it anyway.
         this.readImageStream(inStream);
@@ -108,17 +102,71 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
         }
 
         try {
+            read(ImageIO.createImageInputStream(inputStream), true);
+        } catch (IOException ioe) {
+            LOGGER.error("Can't read JPGS2000 image", ioe);
+            throw new ImageInterpreterException("Can't read the input stream", ioe);
+        }
+    }
+
+    /************************************************************************************
+     * Constructor for {@link JpegTwoThousandInterpreter} to read an jp2 image from given {@link File}. The file is not read into memory, only the
+     * header is read here; the image is decoded directly from the file when it is needed.
+     * 
+     * @param file the jp2 {@link File}
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    public JpegTwoThousandInterpreter(File file) throws ImageInterpreterException {
+        this.sourceFile = file;
+        ImageInputStream iis = null;
+        try {
+            iis = new FileImageInputStream(file);
+            read(iis, false);
+        } catch (IOException ioe) {
+            LOGGER.error("Can't read JPGS2000 image", ioe);
+            throw new ImageInterpreterException("Can't read the input stream", ioe);
+        } finally {
+            if (iis != null) {
+                try {
+                    iis.close();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to close image stream", e);
+                }
+            }
+        }
+    }
+
+    /************************************************************************************
+     * read the metadata of the jp2 image from the given {@link ImageInputStream}
+     * 
+     * @param iis {@link ImageInputStream} of the jp2 image
+     * @param render if true, the rendered image is created from the stream as well; the stream must stay open in this case
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    private void read(ImageInputStream iis, boolean render) throws ImageInterpreterException {
+        ImageReader imagereader = null; // ImageReader to read the class
 
-            // read the stream
-            iis = ImageIO.createImageInputStream(inputStream);
+        Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("jpeg2000");
+        if (it.hasNext()) {
+            imagereader = it.next();
+        } else {
+            // ERROR - no ImageReader was found
+            LOGGER.error("Imagereader for Jpeg2000 couldn't be found");
+            throw new ImageInterpreterException("Imagereader for Jpeg2000 format couldn't be found!");
+        }
 
+        try {
             imagereader.setInput(iis, true); // set the ImageInputStream as
 
-            ImageReadParam readParam = imagereader.getDefaultReadParam();
-            this.renderedimage = imagereader.readAsRenderedImage(0, readParam); // get
-            // the
-            // rendered
-            // image
+            if (render) {
+                ImageReadParam readParam = imagereader.getDefaultReadParam();
+                this.renderedimage = imagereader.readAsRenderedImage(0, readParam); // get
+                // the
+                // rendered
+                // image
+            }
+            this.setHeight(imagereader.getHeight(0)); // set height
+            this.setWidth(imagereader.getWidth(0)); // set width
 
         } catch (IOException ioe) {
             LOGGER.error("Can't read JPGS2000 image", ioe);
@@ -193,9 +241,6 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
                 }
             }
 
-            this.setHeight(this.renderedimage.getHeight()); // set height
-            this.setWidth(this.renderedimage.getWidth()); // set width
-            //
         } catch (IOException e) {
             LOGGER.error("IOException:" + e);
             LOGGER.error(e);
@@ -213,6 +258,120 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
         this.renderedimage = inImage;
     }
 
+    /**
+     * Decodes only the given region and every n-th pixel of the JPEG 2000 image. Subsampling by powers of two is done by decoding a lower
+     * resolution level of the codestream, so small renders of large images skip the higher wavelet levels. Falls back to the full image, if the
+     * reader can't decode a reduced image.
+     * 
+     * @param sourceRegion region of the source image in pixels; null for the whole image
+     * @param subsampling decode every n-th pixel in both directions; 1 for all pixels
+     * @return the rendered image
+     */
+    @Override
+    public RenderedImage getRenderedImage(Rectangle sourceRegion, int subsampling) {
+        if ((sourceRegion != null) || (subsampling > 1)) {
+            Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("jpeg2000");
+            if (it.hasNext()) {
+                ImageReader reader = it.next();
+                ImageReadParam readParam = reader.getDefaultReadParam();
+                Rectangle readRegion = sourceRegion;
+                int readSubsampling = subsampling;
+                int levels = getDecompositionLevels();
+                if ((readParam instanceof J2KImageReadParam) && (levels > 0)) {
+                    // every skipped resolution level halves the size
+                    int reduction = 0;
+                    while ((reduction < levels) && (readSubsampling >= 2)) {
+                        readSubsampling = readSubsampling / 2;
+                        reduction++;
+                    }
+                    ((J2KImageReadParam) readParam).setResolution(levels - reduction);
+                    if ((sourceRegion != null) && (reduction > 0)) {
+                        // the region refers to the reduced resolution
+                        int factor = 1 << reduction;
+                        readRegion = new Rectangle(sourceRegion.x / factor, sourceRegion.y / factor, (sourceRegion.width + factor - 1) / factor,
+                                (sourceRegion.height + factor - 1) / factor);
+                    }
+                }
+                RenderedImage reducedImage = readRenderedImage(reader, readParam, readRegion, readSubsampling);
+                if (reducedImage != null) {
+                    return reducedImage;
+                }
+            }
+        }
+        return super.getRenderedImage(sourceRegion, subsampling);
+    }
+
+    /************************************************************************************
+     * get the number of wavelet decomposition levels from the COD marker segment in the main header of the codestream
+     * 
+     * @return the number of decomposition levels or -1, if the COD marker segment couldn't be found
+     ************************************************************************************/
+    private int getDecompositionLevels() {
+        ImageInputStream iis = null;
+        try {
+            iis = createImageInputStream();
+            if (iis == null) {
+                return -1;
+            }
+            // the codestream starts with SOC (0xFF4F), followed by SIZ (0xFF51)
+            int last = -1;
+            int current;
+            int found = 0;
+            while (found < 3 && (current = iis.read()) >= 0) {
+                if ((found == 0 && last == 0xFF && current == 0x4F) || (found == 1 && current == 0xFF) || (found == 2 && current == 0x51)) {
+                    found++;
+                } else {
+                    found = 0;
+                }
+                last = current;
+            }
+            if (found < 3) {
+                return -1;
+            }
+            // walk the marker segments of the main header until COD (0xFF52) or SOT (0xFF90)
+            int marker = 0xFF51;
+            while (marker != 0xFF52) {
+                int length = iis.readUnsignedShort();
+                if ((marker == 0xFF90) || ((marker & 0xFF00) != 0xFF00) || (length < 2)) {
+                    return -1;
+                }
+                iis.skipBytes(length - 2);
+                marker = iis.readUnsignedShort();
+            }
+            // Lcod (2), Scod (1), progression order (1), layers (2), multiple component transform (1), decomposition levels (1)
+            iis.skipBytes(2 + 1 + 1 + 2 + 1);
+            return iis.readUnsignedByte();
+        } catch (IOException e) {
+            LOGGER.debug("Can't read decomposition levels: " + e.toString());
+            return -1;
+        } finally {
+            if (iis != null) {
+                try {
+                    iis.close();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to close image stream", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the RenderedImage; images read from a file are decoded on first use.
+     * 
+     * @return the rendered image
+     */
+    @Override
+    public RenderedImage getRenderedImage() {
+        if ((this.renderedimage == null) && (this.sourceFile != null)) {
+            Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("jpeg2000");
+            if (it.hasNext()) {
+                ImageReader reader = it.next();
+                this.renderedimage = readRenderedImage(reader, reader.getDefaultReadParam(), null, 1);
+            }
+        }
+        return this.renderedimage;
+    }
+
     /**
      * Bytestream from JPEG 2000 file can be embedded into PDF directly without recompression
      */
@@ -229,60 +388,74 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
     @Override
     public void writeToStream(FileOutputStream fos, OutputStream outStream) {
 
-        if (this.renderedimage == null) { // no image available
+        if (getRenderedImage() == null) { // no image available
             return;
         }
         try {
-            ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
-
-            Iterator<ImageWriter> writerIter = ImageIO.getImageWritersByFormatName("jpeg2000");
-            ImageWriter writer = writerIter.next(); // get writer from ImageIO
-
-            // create metadata by creating an XML tree
-            //
-            BufferedImage image = ImageManipulator.fromRenderedToBuffered(renderedimage);
-            J2KImageWriteParam writerParam = (J2KImageWriteParam) writer.getDefaultWriteParam();
-            // check compression type
-            if (myWriterCompressionType == LOSSLESS) {
-                writerParam.setLossless(true);
+            if (fos != null) {
+                // encode once and write the same bytes to the stream and the file
+                writeEncodedImage(encode(), fos, outStream);
             } else {
-                writerParam.setLossless(false);
-                float comprRate = myWriterCompressionValue / 100f;
-                writerParam.setEncodingRate(comprRate);
+                encode(outStream);
             }
-            // ImageWriteParam writerParam = writer.getDefaultWriteParam();
-            ImageTypeSpecifier its = new ImageTypeSpecifier(image.getColorModel(), image.getSampleModel());
+        } catch (IOException e) {
+            LOGGER.error("IOException occured", e);
+        }
+    }
+
+    /************************************************************************************
+     * Encode the renderedimage as JPEG 2000 into a byte array
+     * 
+     * @return the encoded image
+     * @throws IOException
+     ************************************************************************************/
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        encode(baos);
+        return baos.toByteArray();
+    }
+
+    /************************************************************************************
+     * Encode the renderedimage as JPEG 2000 and write it to an {@link OutputStream}
+     * 
+     * @param outStream the {@link OutputStream} to write to
+     * @throws IOException
+     ************************************************************************************/
+    private void encode(OutputStream outStream) throws IOException {
+        ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
 
-            IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
+        Iterator<ImageWriter> writerIter = ImageIO.getImageWritersByFormatName("jpeg2000");
+        ImageWriter writer = writerIter.next(); // get writer from ImageIO
 
-            // create new XML tree and merge with old
-            setMetadata(iomd);
+        // create metadata by creating an XML tree
+        //
+        BufferedImage image = ImageManipulator.fromRenderedToBuffered(renderedimage);
+        J2KImageWriteParam writerParam = (J2KImageWriteParam) writer.getDefaultWriteParam();
+        // check compression type
+        if (myWriterCompressionType == LOSSLESS) {
+            writerParam.setLossless(true);
+        } else {
+            writerParam.setLossless(false);
+            float comprRate = myWriterCompressionValue / 100f;
+            writerParam.setEncodingRate(comprRate);
+        }
+        ImageTypeSpecifier its = new ImageTypeSpecifier(image.getColorModel(), image.getSampleModel());
 
-            // set output
-            writer.setOutput(imageOutStream);
+        IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
 
-            IIOImage iioImage = new IIOImage(image, null, iomd);
+        // create new XML tree and merge with old
+        setMetadata(iomd);
 
-            writer.write(null, iioImage, writerParam);
+        // set output
+        writer.setOutput(imageOutStream);
 
-            // writer.endWriteSequence();
-            imageOutStream.flush();
-            if (fos != null) {
-                ImageOutputStream imageToFile = ImageIO.createImageOutputStream(fos);
-                writer.setOutput(imageToFile);
-                writer.write(null, iioImage, writerParam);
-                imageToFile.flush();
-                imageToFile.close();
-                fos.flush();
-                fos.close();
-            }
+        IIOImage iioImage = new IIOImage(image, null, iomd);
 
-            writer.dispose();
-            imageOutStream.close();
+        writer.write(null, iioImage, writerParam);
 
-        } catch (IOException e) {
-            LOGGER.error("IOException occured", e);
-        }
+        imageOutStream.flush();
+        writer.dispose();
+        imageOutStream.close();
     }
 
     @Override
@@ -515,9 +688,33 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
         return result;
     }
 
+    @Override
+    public byte[] writeToByteArray() {
+        if (getRenderedImage() == null) { // no image available
+            return null;
+        }
+        try {
+            return encode();
+        } catch (IOException e) {
+            LOGGER.error("IOException occured", e);
+        }
+        return null;
+    }
+
     @Override
     public byte[] writeToStreamAndByteArray(OutputStream outStream) {
-        return new byte[0];
+        if (getRenderedImage() == null) { // no image available
+            return null;
+        }
+        try {
+            // encode once, the same bytes are written to the stream and returned
+            byte[] data = encode();
+            writeEncodedImage(data, null, outStream);
+            return data;
+        } catch (IOException e) {
+            LOGGER.error("IOException occured", e);
+        }
+        return null;
     }
 
     @Override
@@ -0,0 +1,212 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.imagelib;
+
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+
+/************************************************************************************
+ * Draws a transformed source image into a target image, splitting large targets into horizontal bands which are drawn in parallel on a shared
+ * {@link ForkJoinPool}. Each band is drawn with a clip, so it only reads the part of the source it needs; its pixels are the same as in a single
+ * draw, except for rare differences by one in rotations by other than right angles, where the source coordinates are stepped from the first row of
+ * the band. The number of bands of a render is the size of the pool divided by the number of renders running or waiting at the moment: a single
+ * large render on a quiet server uses all threads, under load every render stays on a single thread.
+ ************************************************************************************/
+public final class ParallelRenderer {
+    private static final Logger LOGGER = Logger.getLogger(ParallelRenderer.class);
+
+    /* renders currently drawing, used if no load is registered */
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    private static ForkJoinPool pool;
+    private static Load load;
+
+    /************************************************************************************
+     * occupancy of the renderers of the servlet
+     ************************************************************************************/
+    public interface Load {
+
+        /**
+         * @return number of renders currently running or waiting for a render slot
+         */
+        int getOccupancy();
+    }
+
+    private ParallelRenderer() {
+    }
+
+    /************************************************************************************
+     * register the occupancy of the renderers which limits the parallelism of a single render
+     * 
+     * @param renderLoad the occupancy, null to count only the renders drawing at the moment
+     ************************************************************************************/
+    public static synchronized void setLoad(Load renderLoad) {
+        load = renderLoad;
+    }
+
+    /************************************************************************************
+     * get the shared pool, null if parallel rendering is switched off
+     ************************************************************************************/
+    private static synchronized ForkJoinPool getPool() {
+        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+        if (!config.getParallelRenderUse()) {
+            return null;
+        }
+        if (pool == null) {
+            int threads = config.getParallelRenderThreads();
+            if (threads <= 0) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+            pool = new ForkJoinPool(threads);
+            LOGGER.info("parallel rendering with " + threads + " threads");
+        }
+        return pool;
+    }
+
+    /************************************************************************************
+     * shut down the shared pool; a later render creates a new pool if parallel rendering is still switched on
+     ************************************************************************************/
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /************************************************************************************
+     * number of bands for the next render, at least 1
+     ************************************************************************************/
+    private static int getParallelism(ForkJoinPool forkJoinPool, int active) {
+        Load renderLoad;
+        synchronized (ParallelRenderer.class) {
+            renderLoad = load;
+        }
+        int occupancy = active;
+        if (renderLoad != null) {
+            occupancy = Math.max(occupancy, renderLoad.getOccupancy());
+        }
+        return Math.max(1, forkJoinPool.getParallelism() / Math.max(1, occupancy));
+    }
+
+    /************************************************************************************
+     * draw the source image with the given transformation into the target image, replacing its pixels
+     * 
+     * @param target the target image
+     * @param source the source image
+     * @param transform transformation from the source image to the target image
+     * @param hints rendering hints for the draw
+     * @param composite composite of the draw
+     ************************************************************************************/
+    public static void draw(BufferedImage target, RenderedImage source, AffineTransform transform, RenderingHints hints, Composite composite) {
+        int active = ACTIVE.incrementAndGet();
+        try {
+            int bands = 1;
+            ForkJoinPool forkJoinPool = null;
+            long pixels = (long) target.getWidth() * target.getHeight();
+            if (target.getHeight() > 1 && pixels >= ContentServerConfiguration.getInstance().getParallelRenderMinPixels()) {
+                forkJoinPool = getPool();
+            }
+            if (forkJoinPool != null) {
+                bands = Math.min(target.getHeight(), getParallelism(forkJoinPool, active));
+            }
+            if (bands == 1) {
+                drawBand(target, source, transform, hints, composite, 0, target.getHeight());
+                return;
+            }
+            LOGGER.debug("drawing " + target.getWidth() + "x" + target.getHeight() + " in " + bands + " bands");
+            forkJoinPool.invoke(new BandTask(target, source, transform, hints, composite, 0, target.getHeight(), bands));
+        } finally {
+            ACTIVE.decrementAndGet();
+        }
+    }
+
+    /************************************************************************************
+     * draw the rows from y0 (inclusive) to y1 (exclusive) of the target image
+     ************************************************************************************/
+    private static void drawBand(BufferedImage target, RenderedImage source, AffineTransform transform, RenderingHints hints, Composite composite,
+            int y0, int y1) {
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHints(hints);
+            g.setComposite(composite);
+            g.clipRect(0, y0, target.getWidth(), y1 - y0);
+            g.drawRenderedImage(source, transform);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /************************************************************************************
+     * task drawing a range of rows, split in halves until each task draws a single band
+     ************************************************************************************/
+    private static final class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient BufferedImage target;
+        private final transient RenderedImage source;
+        private final AffineTransform transform;
+        private final transient RenderingHints hints;
+        private final transient Composite composite;
+        private final int y0;
+        private final int y1;
+        private final int bands;
+
+        private BandTask(BufferedImage target, RenderedImage source, AffineTransform transform, RenderingHints hints, Composite composite, int y0,
+                int y1, int bands) {
+            this.target = target;
+            this.source = source;
+            this.transform = transform;
+            this.hints = hints;
+            this.composite = composite;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.bands = bands;
+        }
+
+        @Override
+        protected void compute() {
+            if (bands == 1) {
+                drawBand(target, source, transform, hints, composite, y0, y1);
+                return;
+            }
+            int leftBands = bands / 2;
+            int middle = y0 + (int) ((long) (y1 - y0) * leftBands / bands);
+            invokeAll(new BandTask(target, source, transform, hints, composite, y0, middle, leftBands), new BandTask(target, source, transform, hints,
+                    composite, middle, y1, bands - leftBands));
+        }
+    }
+}
@@ -28,6 +28,7 @@ package de.unigoettingen.sub.commons.contentlib.imagelib;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -42,6 +43,7 @@ import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 import javax.xml.parsers.DocumentBuilder;
@@ -76,19 +78,8 @@ public class PngInterpreter extends AbstractImageInterpreter implements ImageInt
      * @throws ImageInterpreterException
      ************************************************************************************/
     public PngInterpreter(InputStream inStream) throws ImageInterpreterException {
-        PNGImageReader imagereader = null; // ImageReader to read the class
-        ImageInputStream iis = null;
         InputStream inputStream = null;
 
-        Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("png");
-        if (it.hasNext()) {
-            imagereader = (PNGImageReader) it.next();
-        } else {
-            // ERROR - no ImageReader was found
-            LOGGER.error("Imagereader for PNG couldn't be found");
-            throw new ImageInterpreterException("Imagereader for PNG format couldn't be found!");
-        }
-
         // read the stream and store it in a byte array
         this.readImageStream(inStream);
         byte imagebytes[] = this.getImageByteStream();
@@ -101,12 +92,61 @@ public class PngInterpreter extends AbstractImageInterpreter implements ImageInt
             throw iie;
         }
 
-        // inputStream=inStream;
+        try {
+            read(ImageIO.createImageInputStream(inputStream));
+        } catch (IOException ioe) {
+            LOGGER.error("Can't read png image", ioe);
+            throw new ImageInterpreterException("Can't read the input stream", ioe);
+        }
+    }
 
+    /************************************************************************************
+     * Constructor for {@link PngInterpreter} to read an png image from given {@link File}. The image is read directly from the file, without
+     * copying the file into memory.
+     * 
+     * @param file the png {@link File}
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    public PngInterpreter(File file) throws ImageInterpreterException {
+        this.sourceFile = file;
+        ImageInputStream iis = null;
         try {
-            // read the stream
-            iis = ImageIO.createImageInputStream(inputStream);
+            iis = new FileImageInputStream(file);
+            read(iis);
+        } catch (IOException ioe) {
+            LOGGER.error("Can't read png image", ioe);
+            throw new ImageInterpreterException("Can't read the input stream", ioe);
+        } finally {
+            if (iis != null) {
+                try {
+                    iis.close();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to close image stream", e);
+                }
+            }
+        }
+    }
+
+    /************************************************************************************
+     * read the png image and its metadata from the given {@link ImageInputStream}
+     * 
+     * @param iis {@link ImageInputStream} of the png image
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    private void read(ImageInputStream iis) throws ImageInterpreterException {
+        PNGImageReader imagereader = null; // ImageReader to read the class
 
+        Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("png");
+        if (it.hasNext()) {
+            imagereader = (PNGImageReader) it.next();
+        } else {
+            // ERROR - no ImageReader was found
+            LOGGER.error("Imagereader for PNG couldn't be found");
+            throw new ImageInterpreterException("Imagereader for PNG format couldn't be found!");
+        }
+
+        try {
+            // read the stream
             imagereader.setInput(iis, true); // set the ImageInputStream as
 
             ImageReadParam readParam = imagereader.getDefaultReadParam();
@@ -213,46 +253,61 @@ public class PngInterpreter extends AbstractImageInterpreter implements ImageInt
             return;
         }
         try {
-            ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
+            if (fos != null) {
+                // encode once and write the same bytes to the stream and the file
+                writeEncodedImage(encode(), fos, outStream);
+            } else {
+                encode(outStream);
+            }
+        } catch (IOException e) {
+            LOGGER.error("IOException:" + e);
+        }
+    }
+
+    /************************************************************************************
+     * Encode the renderedimage as PNG into a byte array
+     * 
+     * @return the encoded image
+     * @throws IOException
+     ************************************************************************************/
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        encode(baos);
+        return baos.toByteArray();
+    }
 
-            Iterator<ImageWriter> writerIter = ImageIO.getImageWritersByFormatName("png");
-            ImageWriter writer = writerIter.next(); // get writer from ImageIO
+    /************************************************************************************
+     * Encode the renderedimage as PNG and write it to an {@link OutputStream}
+     * 
+     * @param outStream the {@link OutputStream} to write to
+     * @throws IOException
+     ************************************************************************************/
+    private void encode(OutputStream outStream) throws IOException {
+        ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
 
-            // create metadata by creating an XML tree
-            BufferedImage image = ImageManipulator.fromRenderedToBuffered(renderedimage);
-            ImageWriteParam writerParam = writer.getDefaultWriteParam();
-            ImageTypeSpecifier its = new ImageTypeSpecifier(image.getColorModel(), image.getSampleModel());
+        Iterator<ImageWriter> writerIter = ImageIO.getImageWritersByFormatName("png");
+        ImageWriter writer = writerIter.next(); // get writer from ImageIO
 
-            IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
+        // create metadata by creating an XML tree
+        BufferedImage image = ImageManipulator.fromRenderedToBuffered(renderedimage);
+        ImageWriteParam writerParam = writer.getDefaultWriteParam();
+        ImageTypeSpecifier its = new ImageTypeSpecifier(image.getColorModel(), image.getSampleModel());
 
-            // create new XML tree and merge with old
-            setMetadata(iomd);
+        IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
 
-            // set output
-            writer.setOutput(imageOutStream);
+        // create new XML tree and merge with old
+        setMetadata(iomd);
 
-            IIOImage iioImage = new IIOImage(image, null, iomd);
+        // set output
+        writer.setOutput(imageOutStream);
 
-            writer.write(iioImage);
+        IIOImage iioImage = new IIOImage(image, null, iomd);
 
-            // writer.endWriteSequence();
-            imageOutStream.flush();
-            if (fos != null) {
-                ImageOutputStream imageToFile = ImageIO.createImageOutputStream(fos);
-                writer.setOutput(imageToFile);
-                writer.write(null, iioImage, writerParam);
-                imageToFile.flush();
-                imageToFile.close();
-                fos.flush();
-                fos.close();
-            }
-            writer.dispose();
-            imageOutStream.close();
+        writer.write(null, iioImage, writerParam);
 
-            // ImageIO.write(renderedimage, "JPEG ", outStream);
-        } catch (IOException e) {
-            LOGGER.error("IOException:" + e);
-        }
+        imageOutStream.flush();
+        writer.dispose();
+        imageOutStream.close();
     }
 
     /************************************************************************************
@@ -468,53 +523,29 @@ public class PngInterpreter extends AbstractImageInterpreter implements ImageInt
     }
 
     @Override
-    public byte[] writeToStreamAndByteArray(OutputStream outStream) {
+    public byte[] writeToByteArray() {
         if (this.renderedimage == null) { // no image available
             return null;
         }
-
-        // byte[] data = null;
         try {
-            ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
-
-            Iterator<ImageWriter> writerIter = ImageIO.getImageWritersByFormatName("png");
-            ImageWriter writer = writerIter.next(); // get writer from ImageIO
-
-            // create metadata by creating an XML tree
-            BufferedImage image = ImageManipulator.fromRenderedToBuffered(renderedimage);
-            ImageWriteParam writerParam = writer.getDefaultWriteParam();
-            ImageTypeSpecifier its = new ImageTypeSpecifier(image.getColorModel(), image.getSampleModel());
-
-            IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
-
-            // create new XML tree and merge with old
-            setMetadata(iomd);
-
-            // set output
-            writer.setOutput(imageOutStream);
-
-            IIOImage iioImage = new IIOImage(image, null, iomd);
-
-            writer.write(iioImage);
-
-            // writer.endWriteSequence();
-            imageOutStream.flush();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            if (baos != null) {
-                ImageOutputStream imageToBytes = ImageIO.createImageOutputStream(baos);
-                writer.setOutput(imageToBytes);
-                writer.write(null, iioImage, writerParam);
-                imageToBytes.flush();
-                imageToBytes.close();
-                baos.flush();
-                baos.close();
-            }
-            writer.dispose();
-            imageOutStream.close();
+            return encode();
+        } catch (IOException e) {
+            LOGGER.error("IOException:" + e);
+        }
+        return null;
+    }
 
-            return baos.toByteArray();
+    @Override
+    public byte[] writeToStreamAndByteArray(OutputStream outStream) {
+        if (this.renderedimage == null) { // no image available
+            return null;
+        }
 
-            // ImageIO.write(renderedimage, "JPEG ", outStream);
+        try {
+            // encode once, the same bytes are written to the stream and returned
+            byte[] data = encode();
+            writeEncodedImage(data, null, outStream);
+            return data;
         } catch (IOException e) {
             LOGGER.error("IOException:" + e);
         }
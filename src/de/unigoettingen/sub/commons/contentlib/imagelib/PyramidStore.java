@@ -0,0 +1,439 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.imagelib;
+
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManagerException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManipulatorException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.ParameterNotSupportedException;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.util.InFlightRegistry;
+import de.unigoettingen.sub.commons.util.stream.StreamUtils;
+
+/************************************************************************************
+ * Store for downsampled versions (levels) of source images. Level n is the source image reduced by 2^n in both directions; levels are generated
+ * down to a configurable minimum size. Requests for small images are rendered from the smallest level which is still at least as large as the
+ * requested image, so the source image doesn't have to be decoded again for each size.
+ * 
+ * Levels are generated on first access or in advance with {@link #pregenerate(File)}. They are stored in the configured directory or, if no
+ * directory is configured, in the subfolder <code>.pyramid</code> next to the source image. Levels older than their source image are generated
+ * again. Only images from the local file system are supported.
+ ************************************************************************************/
+public final class PyramidStore {
+    private static final Logger LOGGER = Logger.getLogger(PyramidStore.class);
+
+    /** name of the folder next to the source images, if no path is configured */
+    private static final String LOCAL_FOLDER = ".pyramid";
+
+    private static PyramidStore instance;
+
+    /* level generations currently running for a source file */
+    private static final InFlightRegistry<Boolean> GENERATIONS_IN_FLIGHT = new InFlightRegistry<Boolean>();
+
+    private final boolean enabled;
+    private final File path;
+    private final ImageFileFormat format;
+    private final int compression;
+    private final int minSize;
+
+    /************************************************************************************
+     * private constructor, the store is created from the configuration by {@link #getInstance()}
+     ************************************************************************************/
+    private PyramidStore(ContentServerConfiguration config) {
+        this.enabled = config.getPyramidUse();
+        String configuredPath = config.getPyramidPath();
+        this.path = (configuredPath == null || configuredPath.trim().length() == 0) ? null : new File(configuredPath.trim());
+        this.format = ImageFileFormat.getImageFileFormatFromFileExtension("." + config.getPyramidFormat());
+        this.compression = config.getPyramidCompression();
+        this.minSize = Math.max(1, config.getPyramidMinSize());
+    }
+
+    /************************************************************************************
+     * get singleton object
+     ************************************************************************************/
+    public static synchronized PyramidStore getInstance() {
+        if (instance == null) {
+            instance = new PyramidStore(ContentServerConfiguration.getInstance());
+        }
+        return instance;
+    }
+
+    /************************************************************************************
+     * @return true, if the pyramid store should be used
+     ************************************************************************************/
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /************************************************************************************
+     * find the level to render a scaled image from. The level is generated, if it doesn't exist yet or if it is older than the source image.
+     * 
+     * @param sourceUrl {@link URL} of the source image
+     * @param pixelx requested width or percent value, see {@link ImageManager#scaleImageByPixel(int, int, int, int)}
+     * @param pixely requested height or percent value
+     * @param scaleby scale method of the {@link ImageManager}
+     * @param region requested region of the source image in pixels, the size refers to the region; null for the whole image
+     * @return the level to use or null, if the image should be rendered from the source image
+     ************************************************************************************/
+    public PyramidLevel findLevel(URL sourceUrl, int pixelx, int pixely, int scaleby, Rectangle region) {
+        if (!enabled || !sourceUrl.getProtocol().equalsIgnoreCase("file")) {
+            return null;
+        }
+        try {
+            File source = StreamUtils.getFileFromUrl(sourceUrl);
+            if (!source.isFile()) {
+                return null;
+            }
+            ImageInfo info = ImageFileFormat.getImageInfo(sourceUrl, null, null, null, null);
+            if (info == null) {
+                return null;
+            }
+            float scale;
+            if (region != null) {
+                Rectangle sourceRegion = region.intersection(new Rectangle(0, 0, info.getWidth(), info.getHeight()));
+                scale = getScale(sourceRegion.width, sourceRegion.height, pixelx, pixely, scaleby);
+            } else {
+                scale = getScale(info.getWidth(), info.getHeight(), pixelx, pixely, scaleby);
+            }
+            int level = Math.min(getLevelForScale(scale), getLevelCount(info.getWidth(), info.getHeight()));
+            if (level < 1) {
+                return null;
+            }
+            File levelFile = getLevelFile(source, level);
+            if (!isUpToDate(source, levelFile)) {
+                generateLevels(source);
+            }
+            if (!levelFile.isFile()) {
+                return null;
+            }
+            LOGGER.debug("render " + source.getName() + " from pyramid level " + level);
+            return new PyramidLevel(levelFile.toURI().toURL(), level);
+        } catch (IOException e) {
+            LOGGER.warn("Can't use pyramid for " + sourceUrl + ": " + e.getMessage());
+            return null;
+        } catch (ImageManagerException e) {
+            LOGGER.warn("Can't generate pyramid for " + sourceUrl + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /************************************************************************************
+     * generate the levels of all images in the given directory and its subdirectories; levels which are up to date are not generated again
+     * 
+     * @param directory the directory of the source images
+     * @return number of images whose levels were generated
+     ************************************************************************************/
+    public int pregenerate(File directory) {
+        int count = 0;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (!file.getName().equals(LOCAL_FOLDER)) {
+                    count += pregenerate(file);
+                }
+            } else if (isImageFile(file)) {
+                try {
+                    ImageInfo info = ImageFileFormat.getImageInfo(file.toURI().toURL(), null, null, null, null);
+                    if (info == null) {
+                        continue;
+                    }
+                    int levels = getLevelCount(info.getWidth(), info.getHeight());
+                    if (levels > 0 && !isUpToDate(file, getLevelFile(file, levels))) {
+                        generateLevels(file);
+                        count++;
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("Can't read " + file.getAbsolutePath() + ": " + e.getMessage());
+                } catch (ImageManagerException e) {
+                    LOGGER.warn("Can't generate pyramid for " + file.getAbsolutePath() + ": " + e.getMessage());
+                }
+            }
+        }
+        return count;
+    }
+
+    /************************************************************************************
+     * generate all levels of the given source image. Concurrent calls for the same image wait for the running generation.
+     * 
+     * @param source the source image
+     * @throws ImageManagerException
+     ************************************************************************************/
+    public void generateLevels(final File source) throws ImageManagerException {
+        try {
+            GENERATIONS_IN_FLIGHT.execute(source.getAbsolutePath(), new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    writeLevels(source);
+                    return Boolean.TRUE;
+                }
+            });
+        } catch (ImageManagerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ImageManagerException(e);
+        }
+    }
+
+    /************************************************************************************
+     * decode the source image once and write all levels, each level is reduced from the previous one
+     * 
+     * @param source the source image
+     * @throws ImageManagerException
+     * @throws IOException
+     ************************************************************************************/
+    private void writeLevels(File source) throws ImageManagerException, IOException {
+        Map<Integer, Integer> parameters = new HashMap<Integer, Integer>();
+        parameters.put(ImageManager.BITONALSCALEMETHOD, ImageManager.SUBSAMPLETOGREY);
+        parameters.put(ImageManager.GREYSCALESCALEMETHOD, ImageManager.BILINEAR);
+        parameters.put(ImageManager.COLORSCALEMETHOD, ImageManager.BILINEAR);
+        ImageManager sourcemanager = new ImageManager(source.toURI().toURL(), parameters);
+        ImageInterpreter sourceInterpreter = sourcemanager.getMyInterpreter();
+        if (sourceInterpreter == null) {
+            throw new ImageManagerException("Can't read source image " + source.getAbsolutePath());
+        }
+        int levels = getLevelCount(sourceInterpreter.getWidth(), sourceInterpreter.getHeight());
+        LOGGER.debug("generating " + levels + " pyramid levels for " + source.getAbsolutePath());
+        try {
+            RenderedImage image = sourcemanager.scaleImageByPixel(50, 50, ImageManager.SCALE_BY_PERCENT, 0);
+            for (int level = 1; level <= levels; level++) {
+                if (level > 1) {
+                    image = ImageManipulator.scaleInterpolationBilinear(image, 0.5f, 0.5f);
+                }
+                // keep the level in memory, the next level is reduced from it
+                image = ImageManipulator.fromRenderedToBuffered(image);
+                writeLevel(image, getLevelFile(source, level));
+            }
+        } catch (ImageManipulatorException e) {
+            throw new ImageManagerException(e);
+        } finally {
+            sourceInterpreter.clear();
+        }
+    }
+
+    /************************************************************************************
+     * write a level to a temporary file first, so no incomplete level is read by other requests
+     * 
+     * @param image the level image
+     * @param levelFile the file of the level
+     * @throws IOException
+     ************************************************************************************/
+    private void writeLevel(RenderedImage image, File levelFile) throws IOException {
+        File folder = levelFile.getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Can't create pyramid folder " + folder.getAbsolutePath());
+        }
+        File tempFile = new File(folder, levelFile.getName() + ".tmp");
+        ImageInterpreter wi = format.getInterpreter(image);
+        try {
+            wi.setWriterCompressionValue(compression);
+        } catch (ParameterNotSupportedException e) {
+            LOGGER.debug("compression not supported for pyramid format " + format);
+        }
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            wi.writeToStream(null, fos);
+        } finally {
+            fos.close();
+        }
+        if (levelFile.exists() && !levelFile.delete()) {
+            LOGGER.warn("Can't delete old pyramid level " + levelFile.getAbsolutePath());
+        }
+        if (!tempFile.renameTo(levelFile)) {
+            throw new IOException("Can't write pyramid level " + levelFile.getAbsolutePath());
+        }
+    }
+
+    /************************************************************************************
+     * get the file of a level of the given source image
+     * 
+     * @param source the source image
+     * @param level the level
+     * @return the file of the level
+     ************************************************************************************/
+    File getLevelFile(File source, int level) {
+        String name = source.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        name = name + "_" + level + "." + format.getFileExtension();
+        File folder;
+        if (path == null) {
+            folder = new File(source.getParentFile(), LOCAL_FOLDER);
+        } else {
+            // one folder for each source folder
+            folder = new File(path, DigestUtils.md5Hex(source.getParentFile().getAbsolutePath()));
+        }
+        return new File(folder, name);
+    }
+
+    /************************************************************************************
+     * @return true, if the level exists and is not older than the source image
+     ************************************************************************************/
+    private static boolean isUpToDate(File source, File levelFile) {
+        return levelFile.isFile() && levelFile.lastModified() >= source.lastModified();
+    }
+
+    /************************************************************************************
+     * @return true, if the file has the extension of a supported image format
+     ************************************************************************************/
+    private static boolean isImageFile(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".tif") || name.endsWith(".tiff") || name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")
+                || name.endsWith(".jp2");
+    }
+
+    /************************************************************************************
+     * get the number of levels of an image, the smallest level is still at least as large as the minimum size
+     * 
+     * @param width width of the source image
+     * @param height height of the source image
+     * @return number of levels
+     ************************************************************************************/
+    int getLevelCount(int width, int height) {
+        int size = Math.max(width, height);
+        int levels = 0;
+        while ((size >> (levels + 1)) >= minSize) {
+            levels++;
+        }
+        return levels;
+    }
+
+    /************************************************************************************
+     * get the highest level which is still at least as large as the image scaled with the given factor
+     * 
+     * @param scale scale factor relative to the source image
+     * @return the level, 0 for the source image
+     ************************************************************************************/
+    static int getLevelForScale(float scale) {
+        if (scale <= 0 || scale > 0.5f) {
+            return 0;
+        }
+        int level = 0;
+        while (scale * (1 << (level + 1)) <= 1f && level < 30) {
+            level++;
+        }
+        return level;
+    }
+
+    /************************************************************************************
+     * calculate the scale factor of the {@link ImageManager} scale methods for an image of the given size
+     ************************************************************************************/
+    private static float getScale(int width, int height, int pixelx, int pixely, int scaleby) {
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        if (scaleby == ImageManager.SCALE_TO_BOX) {
+            return Math.min((float) pixelx / width, (float) pixely / height);
+        } else if (scaleby == ImageManager.SCALE_BY_WIDTH) {
+            float scale = (float) pixelx / width;
+            return pixely == 0 ? scale : Math.max(scale, (float) pixely / height);
+        } else if (scaleby == ImageManager.SCALE_BY_HEIGHT) {
+            float scale = (float) pixely / height;
+            return pixelx == 0 ? scale : Math.max(scale, (float) pixelx / width);
+        } else if (scaleby == ImageManager.SCALE_BY_PERCENT) {
+            return Math.max(pixelx, pixely) / 100f;
+        }
+        return 0;
+    }
+
+    /************************************************************************************
+     * pre-generate the levels of all images below the given directories from the command line
+     * 
+     * @param args the directories
+     ************************************************************************************/
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("usage: PyramidStore <image directory> [<image directory> ...]");
+            return;
+        }
+        PyramidStore store = getInstance();
+        for (String directory : args) {
+            int count = store.pregenerate(new File(directory));
+            System.out.println(directory + ": generated pyramid levels for " + count + " images");
+        }
+    }
+
+    /************************************************************************************
+     * a level of the pyramid of a source image
+     ************************************************************************************/
+    public static class PyramidLevel {
+        private final URL url;
+        private final int level;
+
+        PyramidLevel(URL url, int level) {
+            this.url = url;
+            this.level = level;
+        }
+
+        /**
+         * @return {@link URL} of the level image
+         */
+        public URL getUrl() {
+            return url;
+        }
+
+        /**
+         * @return the level, the level image is reduced by 2^level
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * @return the reduction factor of the level image
+         */
+        public int getFactor() {
+            return 1 << level;
+        }
+
+        /**
+         * @param region region of the source image in pixels
+         * @return the same region in pixels of the level image
+         */
+        public Rectangle getRegion(Rectangle region) {
+            int factor = getFactor();
+            int x = region.x / factor;
+            int y = region.y / factor;
+            return new Rectangle(x, y, Math.max(1, (region.x + region.width) / factor - x), Math.max(1, (region.y + region.height) / factor - y));
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.imagelib;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManipulatorException;
+
+/************************************************************************************
+ * Plan for rendering a decoded source image in a single pass: scaling and rotation are composed into one affine transformation, and the source is
+ * drawn with it directly into the target image, large target images in parallel bands by the {@link ParallelRenderer}. Highlighting boxes and the
+ * watermark are drawn into the same target image, which is allocated once in its final size including the watermark. So no intermediate image is
+ * created between the decoded source and the target image.<br/>
+ * The plan is used for 8 bit images; bitonal images are scaled to grey by the {@link BitonalRenderer} or with JAI before, see
+ * {@link ImageManager#scaleImageByPixel(int, int, int, int, List, Color, Watermark, boolean, int, Rectangle)}. Grey sources are rendered into a
+ * single channel target image, also with a watermark; only coloured highlighting boxes need a colour target image.
+ ************************************************************************************/
+public class RenderPlan {
+    private static final Logger LOGGER = Logger.getLogger(RenderPlan.class);
+
+    private final RenderedImage source;
+    private float scaleX = 1;
+    private float scaleY = 1;
+    private int angle = 0;
+    private int scaleMethod = ImageManager.BILINEAR;
+    private boolean greyscale = false;
+    private List<String> boxes = null;
+    private Color boxColor = Color.GREEN;
+    private Watermark watermark = null;
+    private boolean watermarkScale = false;
+    private int watermarkPosition = ImageManager.BOTTOM;
+
+    /************************************************************************************
+     * Constructor for a plan rendering the given image
+     * 
+     * @param source the decoded source image
+     ************************************************************************************/
+    public RenderPlan(RenderedImage source) {
+        this.source = source;
+    }
+
+    /************************************************************************************
+     * check if an image can be rendered with a plan; these are images with 8 bits per sample
+     * 
+     * @param image the decoded source image
+     * @return true, if the image can be rendered in a single pass
+     ************************************************************************************/
+    public static boolean isApplicable(RenderedImage image) {
+        if (image.getSampleModel().getDataType() != DataBuffer.TYPE_BYTE) {
+            return false;
+        }
+        for (int size : image.getSampleModel().getSampleSize()) {
+            if (size != 8) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /************************************************************************************
+     * set the scale factors
+     * 
+     * @param scaleX horizontal scale factor
+     * @param scaleY vertical scale factor
+     ************************************************************************************/
+    public void setScaling(float scaleX, float scaleY) {
+        this.scaleX = scaleX;
+        this.scaleY = scaleY;
+    }
+
+    /************************************************************************************
+     * set the scale method; {@link ImageManager#NEXTNEIGHBOR} draws with nearest neighbor interpolation, {@link ImageManager#BILINEAR} with
+     * bilinear interpolation, or bicubic if the image is rotated by other than right angles, as the rotation before
+     * 
+     * @param scaleMethod {@link ImageManager#BILINEAR} or {@link ImageManager#NEXTNEIGHBOR}
+     ************************************************************************************/
+    public void setScaleMethod(int scaleMethod) {
+        this.scaleMethod = scaleMethod;
+    }
+
+    /************************************************************************************
+     * set if the source image is greyscale or bitonal according to its interpreter, even if it was decoded with a colour palette
+     * 
+     * @param greyscale true, if the target image should be single channel
+     ************************************************************************************/
+    public void setGreyscale(boolean greyscale) {
+        this.greyscale = greyscale;
+    }
+
+    /************************************************************************************
+     * set the rotation of the scaled image around its center
+     * 
+     * @param angle angle in degrees
+     ************************************************************************************/
+    public void setRotation(int angle) {
+        this.angle = angle;
+    }
+
+    /************************************************************************************
+     * set boxes to highlight; the coordinates refer to the scaled image before rotation
+     * 
+     * @param boxes list of coordinates in the form x1,y1,x2,y2
+     * @param color color of the boxes, green if null
+     ************************************************************************************/
+    public void setHighlights(List<String> boxes, Color color) {
+        this.boxes = boxes;
+        if (color != null) {
+            this.boxColor = color;
+        }
+    }
+
+    /************************************************************************************
+     * set the watermark added to the rotated image
+     * 
+     * @param watermark the {@link Watermark}
+     * @param scale true, if the rendered watermark is scaled to the size of the image; otherwise it's rendered in the size of the image
+     * @param position one of {@link ImageManager#TOP}, {@link ImageManager#BOTTOM}, {@link ImageManager#LEFT} or {@link ImageManager#RIGHT}
+     ************************************************************************************/
+    public void setWatermark(Watermark watermark, boolean scale, int position) {
+        this.watermark = watermark;
+        this.watermarkScale = scale;
+        this.watermarkPosition = position;
+    }
+
+    /************************************************************************************
+     * render the target image
+     * 
+     * @return the target image
+     * @throws ImageManipulatorException if the watermark doesn't fit to the image or the highlighting coordinates are invalid
+     ************************************************************************************/
+    public BufferedImage render() throws ImageManipulatorException {
+        int scaledWidth = Math.max(1, Math.round(source.getWidth() * scaleX));
+        int scaledHeight = Math.max(1, Math.round(source.getHeight() * scaleY));
+
+        /*
+         * -------------------------------- rotation around the center of the scaled image, moved back to the origin --------------------------------
+         */
+        AffineTransform rotation = new AffineTransform();
+        if (angle % 360 != 0) {
+            rotation.rotate(Math.toRadians(angle), scaledWidth / 2.0, scaledHeight / 2.0);
+        }
+        Rectangle2D bounds = rotation.createTransformedShape(new Rectangle(0, 0, scaledWidth, scaledHeight)).getBounds2D();
+        int imageWidth = (int) Math.ceil(bounds.getWidth() - 1e-6);
+        int imageHeight = (int) Math.ceil(bounds.getHeight() - 1e-6);
+        rotation.preConcatenate(AffineTransform.getTranslateInstance(-bounds.getX(), -bounds.getY()));
+
+        /*
+         * -------------------------------- size of the watermark and of the whole target image --------------------------------
+         */
+        boolean horizontal = watermarkPosition == ImageManager.TOP || watermarkPosition == ImageManager.BOTTOM;
+        RenderedImage watermarkImage = null;
+        int watermarkWidth = 0;
+        int watermarkHeight = 0;
+        if (watermark != null) {
+            if (watermarkScale) {
+                watermarkImage = watermark.getRenderedImage();
+                if (horizontal) {
+                    watermarkWidth = imageWidth;
+                    watermarkHeight = Math.max(1, Math.round((float) watermarkImage.getHeight() * imageWidth / watermarkImage.getWidth()));
+                } else {
+                    watermarkHeight = imageHeight;
+                    watermarkWidth = Math.max(1, Math.round((float) watermarkImage.getWidth() * imageHeight / watermarkImage.getHeight()));
+                }
+            } else {
+                if (horizontal) {
+                    watermark.overrideWidth(imageWidth);
+                } else {
+                    watermark.overrideHeight(imageHeight);
+                }
+                watermarkImage = watermark.getRenderedImage();
+                watermarkWidth = watermarkImage.getWidth();
+                watermarkHeight = watermarkImage.getHeight();
+            }
+            if (horizontal && watermarkWidth != imageWidth) {
+                throw new ImageManipulatorException("images have different width");
+            }
+            if (!horizontal && watermarkHeight != imageHeight) {
+                throw new ImageManipulatorException("images have different height");
+            }
+            LOGGER.debug("Watermark size is: " + watermarkWidth + " / " + watermarkHeight);
+        }
+        int targetWidth = horizontal ? imageWidth : imageWidth + watermarkWidth;
+        int targetHeight = horizontal ? imageHeight + watermarkHeight : imageHeight;
+        int imageX = watermarkImage != null && watermarkPosition == ImageManager.LEFT ? watermarkWidth : 0;
+        int imageY = watermarkImage != null && watermarkPosition == ImageManager.TOP ? watermarkHeight : 0;
+
+        /*
+         * -------------------------------- draw everything into the target image --------------------------------
+         */
+        BufferedImage target = new BufferedImage(targetWidth, targetHeight, getTargetType());
+        LOGGER.debug("render plan: " + source.getWidth() + "x" + source.getHeight() + " -> " + scaledWidth + "x" + scaledHeight + ", angle " + angle
+                + ", target " + targetWidth + "x" + targetHeight);
+        AffineTransform place = AffineTransform.getTranslateInstance(imageX, imageY);
+        place.concatenate(rotation);
+        Object interpolation = RenderingHints.VALUE_INTERPOLATION_BICUBIC;
+        if (scaleMethod == ImageManager.NEXTNEIGHBOR) {
+            interpolation = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+        } else if (angle % 90 == 0) {
+            interpolation = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+        }
+        RenderingHints hints = new RenderingHints(RenderingHints.KEY_INTERPOLATION, interpolation);
+        hints.put(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        AffineTransform imageTransform = new AffineTransform(place);
+        imageTransform.scale((double) scaledWidth / source.getWidth(), (double) scaledHeight / source.getHeight());
+        imageTransform.translate(-source.getMinX(), -source.getMinY());
+        ParallelRenderer.draw(target, source, imageTransform, hints, AlphaComposite.Src);
+
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHints(hints);
+            if (boxes != null) {
+                g.setTransform(place);
+                drawBoxes(g);
+            }
+
+            if (watermarkImage != null) {
+                int watermarkX = watermarkPosition == ImageManager.RIGHT ? imageWidth : 0;
+                int watermarkY = watermarkPosition == ImageManager.BOTTOM ? imageHeight : 0;
+                AffineTransform watermarkTransform = AffineTransform.getTranslateInstance(watermarkX, watermarkY);
+                watermarkTransform.scale((double) watermarkWidth / watermarkImage.getWidth(), (double) watermarkHeight / watermarkImage.getHeight());
+                watermarkTransform.translate(-watermarkImage.getMinX(), -watermarkImage.getMinY());
+                g.setTransform(new AffineTransform());
+                g.setComposite(AlphaComposite.SrcOver);
+                g.drawRenderedImage(watermarkImage, watermarkTransform);
+            }
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
+
+    /************************************************************************************
+     * grey images stay grey, unless coloured boxes are drawn into them; a watermark is drawn in grey into grey images. Alpha is only kept if there
+     * is no watermark, as before
+     ************************************************************************************/
+    private int getTargetType() {
+        ColorModel cm = source.getColorModel();
+        if (boxes != null) {
+            return BufferedImage.TYPE_3BYTE_BGR;
+        }
+        if (greyscale || ImageManipulator.isGrey(cm)) {
+            return BufferedImage.TYPE_BYTE_GRAY;
+        }
+        if (watermark == null && cm != null && cm.hasAlpha()) {
+            return BufferedImage.TYPE_INT_ARGB;
+        }
+        return BufferedImage.TYPE_3BYTE_BGR;
+    }
+
+    /************************************************************************************
+     * draw the highlighting boxes transparently
+     ************************************************************************************/
+    private void drawBoxes(Graphics2D g) throws ImageManipulatorException {
+        g.setColor(boxColor);
+        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.4f));
+        Rectangle2D.Float rectangle = new Rectangle2D.Float();
+        for (String singlebox : boxes) {
+            String[] numbers = singlebox.split(",");
+            if (numbers.length != 4) {
+                throw new ImageManipulatorException("Wrong format of coordinates, format must be x1,y1,x2,y2");
+            }
+            try {
+                int x1 = Integer.parseInt(numbers[0]);
+                int y1 = Integer.parseInt(numbers[1]);
+                int x2 = Integer.parseInt(numbers[2]);
+                int y2 = Integer.parseInt(numbers[3]);
+                rectangle.setFrame(x1, y1, x2 - x1, y2 - y1);
+                g.fill(rectangle);
+            } catch (NumberFormatException e) {
+                throw new ImageManipulatorException("Coordinates value is wrong; maybe not an integer value", e);
+            }
+        }
+    }
+}
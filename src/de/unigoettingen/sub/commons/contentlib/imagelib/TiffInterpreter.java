@@ -25,10 +25,12 @@
  */
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.awt.image.renderable.ParameterBlock;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,6 +42,7 @@ import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 import javax.media.jai.JAI;
@@ -99,6 +102,25 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
         this.read(inStream);
     }
 
+    /************************************************************************************
+     * Constructor for {@link TiffInterpreter} to read an tiff image from given {@link File}. The file is not read into memory, only the tiff
+     * directory is read here.
+     * 
+     * @param file the tiff {@link File}
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    public TiffInterpreter(File file) throws ImageInterpreterException {
+        this.sourceFile = file;
+        ImageInputStream iis = null;
+        try {
+            iis = new FileImageInputStream(file);
+        } catch (IOException e) {
+            LOGGER.error("Can't open tiff file", e);
+            throw new ImageInterpreterException("Can't open tiff file " + file, e);
+        }
+        readDirectory(iis, null);
+    }
+
     /************************************************************************************
      * read an tiff image from given {@link InputStream}
      * 
@@ -106,10 +128,7 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
      * @throws ImageInterpreterException
      ************************************************************************************/
     protected final void read(InputStream inStream) throws ImageInterpreterException {
-        ImageReader imagereader = null; // ImageReader to read the class
-        // TIFFImageMetadata tim = null; // contains all metadata tags for the TIFF
         ImageInputStream iis = null; // specialized input stream for image
-        TIFFDirectory tiffDirectory = null;
 
         // read the stream and store it in a byte array
         this.readImageStream(inStream);
@@ -117,12 +136,24 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
 
         try {
             inputStream = new ByteArraySeekableStream(imagebytes);
+            iis = ImageIO.createImageInputStream(inputStream);
         } catch (IOException e1) {
             LOGGER.error("Can't transform the image's byte array to stream");
             throw new ImageInterpreterException("Can't transform the image's byte array to stream");
         }
+        readDirectory(iis, inStream);
+    }
 
-        // inputStream = SeekableStream.wrapInputStream(inStream, true);
+    /************************************************************************************
+     * read size, resolution and color information from the first tiff directory
+     * 
+     * @param iis {@link ImageInputStream} of the tiff image, closed afterwards
+     * @param inStream {@link InputStream} the image was read from, closed afterwards; may be null
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    private void readDirectory(ImageInputStream iis, InputStream inStream) throws ImageInterpreterException {
+        ImageReader imagereader = null; // ImageReader to read the class
+        TIFFDirectory tiffDirectory = null;
 
         // get the ImageReader first, before we can read the image
         Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("tiff");
@@ -136,16 +167,16 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
 
         try {
             // read the stream
-            iis = ImageIO.createImageInputStream(inputStream);
             imagereader.setInput(iis, true); // set the ImageInputStream as
             tiffDirectory = TIFFDirectory.createFromMetadata(imagereader.getImageMetadata(0));
             // Input for the ImageReader
-            // tim = (TIFFImageMetadata) imagereader.getImageMetadata(0);
         } catch (IOException ioe) {
             LOGGER.error("Can't read tiff image", ioe);
+            closeStreams(iis, inStream);
             throw new ImageInterpreterException("Can't read the input stream", ioe);
         } catch (Exception e) {
             LOGGER.error("something went wrong during reading of image", e);
+            closeStreams(iis, inStream);
             throw new ImageInterpreterException("Something went wrong while reading the TIFF from input stream", e);
         }
 
@@ -208,12 +239,19 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
             LOGGER.error("Can't read compression type of TIFF", e);
             throw new ImageInterpreterException("Can't read compression type of TIFF", e);
         } finally {
-            try {
-                iis.close();
+            imagereader.dispose();
+            closeStreams(iis, inStream);
+        }
+    }
+
+    private void closeStreams(ImageInputStream iis, InputStream inStream) {
+        try {
+            iis.close();
+            if (inStream != null) {
                 inStream.close();
-            } catch (IOException e) {
-                LOGGER.error("Error closing input streams: " + e.toString());
             }
+        } catch (IOException e) {
+            LOGGER.error("Error closing input streams: " + e.toString());
         }
     }
 
@@ -236,6 +274,21 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
     @Override
     public RenderedImage getRenderedImage() {
 
+        if ((this.renderedimage == null) && (this.inputStream == null) && (this.sourceFile != null)) {
+            // read the image directly from the file
+            ImageReader reader = getReader();
+            if (reader != null) {
+                this.renderedimage = readRenderedImage(reader, reader.getDefaultReadParam(), null, 1);
+            }
+            if (this.renderedimage == null) {
+                LOGGER.debug("Can't read tiff file with ImageIO, reading it into memory");
+                try {
+                    inputStream = new ByteArraySeekableStream(getImageByteStream());
+                } catch (IOException e) {
+                    LOGGER.error("Can't transform the image's byte array to stream", e);
+                }
+            }
+        }
         if ((this.renderedimage == null) && (this.inputStream != null)) {
             // create the renderedimage from stream, if not already done
             this.renderedimage = JAI.create("Stream", this.inputStream);
@@ -248,6 +301,28 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
         return this.renderedimage;
     }
 
+    /**
+     * Decodes only the given region and every n-th pixel of the TIFF, so small renders of large scans don't need to decode all pixels. Falls back
+     * to the full image, if the image was already decoded or the reader can't decode a reduced image.
+     * 
+     * @param sourceRegion region of the source image in pixels; null for the whole image
+     * @param subsampling decode every n-th pixel in both directions; 1 for all pixels
+     * @return the rendered image
+     */
+    @Override
+    public RenderedImage getRenderedImage(Rectangle sourceRegion, int subsampling) {
+        if ((this.renderedimage == null) && ((sourceRegion != null) || (subsampling > 1))) {
+            ImageReader reader = getReader();
+            if (reader != null) {
+                RenderedImage reducedImage = readRenderedImage(reader, reader.getDefaultReadParam(), sourceRegion, subsampling);
+                if (reducedImage != null) {
+                    return reducedImage;
+                }
+            }
+        }
+        return super.getRenderedImage(sourceRegion, subsampling);
+    }
+
     @Override
     public void createByteStreamFromRenderedImage() {
 
@@ -276,6 +351,37 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
             return;
         }
 
+        try {
+            if (fos != null) {
+                // encode once and write the same bytes to the stream and the file
+                writeEncodedImage(encode(), fos, outStream);
+            } else {
+                encode(outStream);
+            }
+        } catch (IOException e) {
+            LOGGER.error("IOException occured", e);
+        }
+    }
+
+    /**
+     * Encode the renderedimage as TIFF into a byte array
+     * 
+     * @return the encoded image
+     * @throws IOException
+     */
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        encode(baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Encode the renderedimage as TIFF with the writer compression type and write it to an {@link OutputStream}
+     * 
+     * @param outStream the {@link OutputStream} to write to
+     * @throws IOException
+     */
+    private void encode(OutputStream outStream) throws IOException {
         try {
             isCompressionApplicable(writerCompressionType);
         } catch (ParameterNotSupportedException e1) {
@@ -283,57 +389,37 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
             this.writerCompressionType = COMPRESSION_NONE;
         }
 
-        try {
-            ImageWriter iwriter = getWriter();
-
-            // gets a copy of the default writer
-            ImageWriteParam wparam = iwriter.getDefaultWriteParam();
-            wparam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-
-            // String[] compressions=wparam.getCompressionTypes();
-            // for (int i=0;i<compressions.length;i++){
-            // LOGGER.debug("compressions:"+compressions[i]);
-            // }
-
-            if (writerCompressionType == COMPRESSION_NONE) {
-                wparam.setCompressionType(null);
-            } else if (writerCompressionType == COMPRESSION_LZW) {
-                wparam.setCompressionType("LZW");
-            } else if (writerCompressionType == COMPRESSION_CCITTFAX4) {
-                wparam.setCompressionType("CCITT T.4");
-            } else if (writerCompressionType == COMPRESSION_PACKBITS) {
-                wparam.setCompressionType("PackBits");
-            } else if (writerCompressionType == COMPRESSION_JPEG) {
-                wparam.setCompressionType("JPEG");
-            } else if (writerCompressionType == COMPRESSION_CCITTRLE) {
-                wparam.setCompressionType("CCITT RLE");
-            } else {
-                LOGGER.warn("Unsupported compression for writing TIFFs");
-                wparam.setCompressionType(null);
-            }
-
-            // wparam.setCompressionQuality(0.5f); // only used for JPEG
+        ImageWriter iwriter = getWriter();
+
+        // gets a copy of the default writer
+        ImageWriteParam wparam = iwriter.getDefaultWriteParam();
+        wparam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+
+        if (writerCompressionType == COMPRESSION_NONE) {
+            wparam.setCompressionType(null);
+        } else if (writerCompressionType == COMPRESSION_LZW) {
+            wparam.setCompressionType("LZW");
+        } else if (writerCompressionType == COMPRESSION_CCITTFAX4) {
+            wparam.setCompressionType("CCITT T.4");
+        } else if (writerCompressionType == COMPRESSION_PACKBITS) {
+            wparam.setCompressionType("PackBits");
+        } else if (writerCompressionType == COMPRESSION_JPEG) {
+            wparam.setCompressionType("JPEG");
+        } else if (writerCompressionType == COMPRESSION_CCITTRLE) {
+            wparam.setCompressionType("CCITT RLE");
+        } else {
+            LOGGER.warn("Unsupported compression for writing TIFFs");
+            wparam.setCompressionType(null);
+        }
 
-            BufferedImage bi = ImageManipulator.fromRenderedToBuffered(this.renderedimage);
+        BufferedImage bi = ImageManipulator.fromRenderedToBuffered(this.renderedimage);
 
-            ImageOutputStream ios = ImageIO.createImageOutputStream(outStream);
-            iwriter.setOutput(ios);
-            iwriter.write(null, new IIOImage(bi, null, null), wparam);
-            ios.flush();
-            iwriter.dispose();
-            ios.close();
-            if (fos != null) {
-                ImageOutputStream imageToFile = ImageIO.createImageOutputStream(fos);
-                iwriter.setOutput(imageToFile);
-                iwriter.write(null, new IIOImage(bi, null, null), wparam);
-                imageToFile.flush();
-                imageToFile.close();
-                fos.flush();
-                fos.close();
-            }
-        } catch (IOException e) {
-            LOGGER.error("IOException occured", e);
-        }
+        ImageOutputStream ios = ImageIO.createImageOutputStream(outStream);
+        iwriter.setOutput(ios);
+        iwriter.write(null, new IIOImage(bi, null, null), wparam);
+        ios.flush();
+        iwriter.dispose();
+        ios.close();
     }
 
     /**
@@ -376,15 +462,47 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
 
     }
 
+    protected ImageReader getReader() {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("tiff");
+        if (readers.hasNext()) {
+            return readers.next();
+        }
+        return null;
+    }
+
     protected ImageWriter getWriter() {
         Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tif");
         ImageWriter writer = writers.next();
         return writer;
     }
 
+    @Override
+    public byte[] writeToByteArray() {
+        if (this.renderedimage == null) { // no image available
+            return null;
+        }
+        try {
+            return encode();
+        } catch (IOException e) {
+            LOGGER.error("IOException occured", e);
+        }
+        return null;
+    }
+
     @Override
     public byte[] writeToStreamAndByteArray(OutputStream outStream) {
-        return new byte[0];
+        if (this.renderedimage == null) { // no image available
+            return null;
+        }
+        try {
+            // encode once, the same bytes are written to the stream and returned
+            byte[] data = encode();
+            writeEncodedImage(data, null, outStream);
+            return data;
+        } catch (IOException e) {
+            LOGGER.error("IOException occured", e);
+        }
+        return null;
     }
 
 }
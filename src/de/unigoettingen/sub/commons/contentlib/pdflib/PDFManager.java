@@ -80,6 +80,7 @@ import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManipulatorExcept
 import de.unigoettingen.sub.commons.contentlib.exceptions.PDFManagerException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ParameterNotSupportedException;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageFileFormat;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageInfo;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageInterpreter;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManager;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManipulator;
@@ -1232,14 +1233,27 @@ public class PDFManager {
                     // it's an image file
                     URL url = pdfpage.getURL();
                     LOGGER.debug("Using image" + pdfpage.getURL().toString());
-                    ImageInterpreter myInterpreter =
-                            ImageFileFormat.getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
-
-                    float xres = myInterpreter.getXResolution();
-                    float yres = myInterpreter.getYResolution();
-
-                    int height = myInterpreter.getHeight();
-                    int width = myInterpreter.getWidth();
+                    float xres;
+                    float yres;
+                    int height;
+                    int width;
+
+                    // read only the header of the image, if possible
+                    ImageInfo info = ImageFileFormat.getImageInfo(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
+                    if (info != null) {
+                        xres = info.getXResolution();
+                        yres = info.getYResolution();
+                        height = info.getHeight();
+                        width = info.getWidth();
+                    } else {
+                        ImageInterpreter myInterpreter =
+                                ImageFileFormat.getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
+                        xres = myInterpreter.getXResolution();
+                        yres = myInterpreter.getYResolution();
+                        height = myInterpreter.getHeight();
+                        width = myInterpreter.getWidth();
+                        myInterpreter.clear();
+                    }
 
                     int image_w_points = (width * 72) / ((int) xres);
                     int image_h_points = (height * 72) / ((int) yres);
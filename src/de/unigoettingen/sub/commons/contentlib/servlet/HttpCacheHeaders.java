@@ -0,0 +1,173 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.util.stream.StreamUtils;
+
+/************************************************************************************
+ * Validators for conditional requests. The ETag of a response is derived from the normalized request parameters and from modification time and size
+ * of the files the response is generated from, Last-Modified is the newest modification time of these files. If-None-Match and If-Modified-Since are
+ * evaluated before anything is rendered, so that browsers and proxies can revalidate their copies with a 304 response.
+ ************************************************************************************/
+public class HttpCacheHeaders {
+    private static final Logger LOGGER = Logger.getLogger(HttpCacheHeaders.class);
+
+    private String etag;
+    private long lastModified = -1;
+
+    /************************************************************************************
+     * create validators for the given request parameters and source files
+     * 
+     * @param params parameter map of the request
+     * @param sources the files the response is generated from; must all exist
+     ************************************************************************************/
+    public HttpCacheHeaders(Map<String, String[]> params, File... sources) {
+        StringBuilder id = new StringBuilder(getNormalizedParameters(params));
+        for (File source : sources) {
+            long modified = source.lastModified();
+            lastModified = Math.max(lastModified, modified);
+            id.append('|').append(modified).append('-').append(source.length());
+        }
+        etag = "\"" + DigestUtils.md5Hex(id.toString()) + "\"";
+    }
+
+    /************************************************************************************
+     * create validators for the given request, if conditional requests are enabled and all sources are existing local files
+     * 
+     * @param request the current request
+     * @param sources urls of the files the response is generated from
+     * @return the validators or null if no validators can be created for the sources
+     ************************************************************************************/
+    @SuppressWarnings("unchecked")
+    public static HttpCacheHeaders forRequest(HttpServletRequest request, URL... sources) {
+        if (!ContentServerConfiguration.getInstance().getHttpCachingUse()) {
+            return null;
+        }
+        File[] files = new File[sources.length];
+        try {
+            for (int i = 0; i < sources.length; i++) {
+                if (!"file".equals(sources[i].getProtocol())) {
+                    return null;
+                }
+                files[i] = StreamUtils.getFileFromUrl(sources[i]);
+                if (!files[i].isFile()) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.debug("no validators for request: " + e.getMessage());
+            return null;
+        }
+        return new HttpCacheHeaders(request.getParameterMap(), files);
+    }
+
+    /************************************************************************************
+     * set ETag, Last-Modified and Cache-Control of the response and check the conditional headers of the request; if the client copy is still
+     * valid, status 304 is set and nothing else has to be written
+     * 
+     * @param request the current request
+     * @param response the response to set the headers for
+     * @return true, if the response is complete with status 304 (Not Modified)
+     ************************************************************************************/
+    public boolean handleNotModified(HttpServletRequest request, HttpServletResponse response) {
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Cache-Control", "public, max-age=" + ContentServerConfiguration.getInstance().getHttpCachingMaxAge());
+        if (isNotModified(request)) {
+            LOGGER.debug("client copy still valid: " + etag);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    /************************************************************************************
+     * If-None-Match takes precedence over If-Modified-Since, which is compared in whole seconds
+     ************************************************************************************/
+    private boolean isNotModified(HttpServletRequest request) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /************************************************************************************
+     * request parameters sorted by name with trimmed values
+     ************************************************************************************/
+    private static String getNormalizedParameters(Map<String, String[]> params) {
+        String[] names = params.keySet().toArray(new String[params.size()]);
+        Arrays.sort(names);
+        StringBuilder result = new StringBuilder();
+        for (String name : names) {
+            for (String value : params.get(name)) {
+                result.append(name).append('=').append(value == null ? "" : value.trim()).append('&');
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return the entity tag including the quotes
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return newest modification time of the sources
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+}
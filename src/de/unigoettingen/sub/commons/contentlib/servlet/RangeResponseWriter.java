@@ -0,0 +1,238 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+/************************************************************************************
+ * Writes complete content (a cached file, a cached byte array or buffer) to the servlet response. Content-Length is set before the first byte is written,
+ * and a single byte range request (Range: bytes=...) is answered with 206 Partial Content, so that large downloads can be resumed. Multiple ranges
+ * are not supported, such requests get the whole content.
+ ************************************************************************************/
+public class RangeResponseWriter {
+    private static final Logger LOGGER = Logger.getLogger(RangeResponseWriter.class);
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    /************************************************************************************
+     * write the given file to the response, the bytes are transferred from the file channel without copying them through the heap where the
+     * container allows it
+     * 
+     * @param request {@link HttpServletRequest} to read the Range headers from, may be null
+     * @param response {@link HttpServletResponse} to write to
+     * @param file the file to send
+     * @param validators the {@link HttpCacheHeaders} sent with the response, If-Range is compared with them; null if none were sent
+     * @throws IOException
+     ************************************************************************************/
+    public static void writeFile(HttpServletRequest request, HttpServletResponse response, File file, HttpCacheHeaders validators)
+            throws IOException {
+        long length = file.length();
+        long[] range = getRequestedRange(request, response, length, validators);
+        if (range == null) {
+            return;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            OutputStream out = response.getOutputStream();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = range[0];
+            long end = range[1] + 1;
+            while (position < end) {
+                long written = channel.transferTo(position, end - position, target);
+                if (written <= 0) {
+                    break;
+                }
+                position += written;
+            }
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    /************************************************************************************
+     * write the given byte array to the response with a single bulk write
+     * 
+     * @param request {@link HttpServletRequest} to read the Range headers from, may be null
+     * @param response {@link HttpServletResponse} to write to
+     * @param data the content to send
+     * @throws IOException
+     ************************************************************************************/
+    public static void writeBytes(HttpServletRequest request, HttpServletResponse response, byte[] data) throws IOException {
+        long[] range = getRequestedRange(request, response, data.length, null);
+        if (range == null) {
+            return;
+        }
+        OutputStream out = response.getOutputStream();
+        out.write(data, (int) range[0], (int) (range[1] - range[0] + 1));
+        out.flush();
+    }
+
+    /************************************************************************************
+     * write the remaining bytes of the given buffer to the response; the buffer may be a direct buffer, it is copied to the response in small
+     * blocks without being copied to the heap as a whole
+     * 
+     * @param request {@link HttpServletRequest} to read the Range headers from, may be null
+     * @param response {@link HttpServletResponse} to write to
+     * @param data the content to send, its position is not changed
+     * @throws IOException
+     ************************************************************************************/
+    public static void writeBuffer(HttpServletRequest request, HttpServletResponse response, ByteBuffer data) throws IOException {
+        long[] range = getRequestedRange(request, response, data.remaining(), null);
+        if (range == null) {
+            return;
+        }
+        ByteBuffer content = data.duplicate();
+        content.limit(content.position() + (int) range[1] + 1);
+        content.position(content.position() + (int) range[0]);
+        OutputStream out = response.getOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        while (content.hasRemaining()) {
+            target.write(content);
+        }
+        out.flush();
+    }
+
+    /************************************************************************************
+     * evaluate Range and If-Range of the request and set status and length headers of the response accordingly
+     * 
+     * @param request the request, may be null
+     * @param response the response
+     * @param length complete length of the content
+     * @param validators validators sent with the content, null if unknown
+     * @return first and last byte position to send (inclusive), null if nothing has to be sent
+     * @throws IOException
+     ************************************************************************************/
+    private static long[] getRequestedRange(HttpServletRequest request, HttpServletResponse response, long length, HttpCacheHeaders validators)
+            throws IOException {
+        response.setHeader("Accept-Ranges", "bytes");
+        String rangeHeader = request == null ? null : request.getHeader("Range");
+        if (rangeHeader == null || !isIfRangeMatching(request, validators)) {
+            setContentLength(response, length);
+            return new long[] { 0, length - 1 };
+        }
+        long[] range = parseRange(rangeHeader.trim(), length);
+        if (range == null) {
+            /* not a single byte range we understand, send everything */
+            setContentLength(response, length);
+            return new long[] { 0, length - 1 };
+        }
+        if (range[0] >= length) {
+            LOGGER.debug("requested range not satisfiable: " + rangeHeader + " (length " + length + ")");
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return null;
+        }
+        range[1] = Math.min(range[1], length - 1);
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+        setContentLength(response, range[1] - range[0] + 1);
+        return range;
+    }
+
+    /************************************************************************************
+     * a range is only honoured if there is no If-Range header or if it carries the ETag or the Last-Modified date sent with the content; the date
+     * has to match exactly and weak entity tags never match
+     ************************************************************************************/
+    private static boolean isIfRangeMatching(HttpServletRequest request, HttpCacheHeaders validators) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (validators == null) {
+            return false;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(validators.getETag());
+        }
+        try {
+            long date = request.getDateHeader("If-Range");
+            return date >= 0 && validators.getLastModified() >= 0 && validators.getLastModified() / 1000 == date / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /************************************************************************************
+     * parse a single byte range (bytes=first-last, bytes=first- or bytes=-suffixLength)
+     * 
+     * @return first and last byte position (last may exceed the content), null if the header can not be used
+     ************************************************************************************/
+    private static long[] parseRange(String header, long length) {
+        if (!header.startsWith(BYTES_UNIT) || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring(BYTES_UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.length() == 0) {
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return null;
+                }
+                return new long[] { Math.max(0, length - suffix), length - 1 };
+            }
+            long start = Long.parseLong(first);
+            if (last.length() == 0) {
+                return new long[] { start, Math.max(start, length - 1) };
+            }
+            long end = Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void setContentLength(HttpServletResponse response, long length) {
+        if (length <= Integer.MAX_VALUE) {
+            response.setContentLength((int) length);
+        } else {
+            response.setHeader("Content-Length", String.valueOf(length));
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.store.AbstractPolicy;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.util.FrequencySketch;
+
+/************************************************************************************
+ * Frequency based admission (TinyLFU) for the content and thumbnail cache. Every request for a cache key is counted in a {@link FrequencySketch};
+ * while the heap tier of a cache without disk tier is full, a newly rendered image is only put into the cache if its key is requested more often
+ * than the entry evicted last (or as often, if both are requested often). Caches overflowing to disk admit every image, as a rejected image would
+ * not reach the disk tier either. The eviction policy of the cache is replaced by one choosing the least frequently requested entry of the sample
+ * (the least recently used one if frequencies are equal), so that one-off renders of crawlers or deep zooms don't push out pages which are viewed
+ * often. The off-heap thumbnail store only takes images which were requested before.
+ ************************************************************************************/
+public final class CacheAdmissionFilter {
+    private static final Logger LOGGER = Logger.getLogger(CacheAdmissionFilter.class);
+
+    /* part of maxBytesLocalHeap from which on the heap tier counts as full */
+    private static final double FULL_RATIO = 0.9;
+    /* a candidate requested this often replaces an entry requested equally often */
+    private static final int WARM_FREQUENCY = 4;
+    /* an image requested this often is copied into the off-heap store */
+    private static final int OFF_HEAP_FREQUENCY = 2;
+
+    private static final Map<String, CacheAdmissionFilter> FILTERS = new LinkedHashMap<String, CacheAdmissionFilter>();
+
+    private final Cache cache;
+    private final FrequencySketch sketch;
+    /* key of the entry evicted last, its frequency fades with the sketch */
+    private volatile String victimKey = null;
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final boolean diskTier;
+
+    private CacheAdmissionFilter(Cache cache, int size) {
+        this.cache = cache;
+        this.sketch = new FrequencySketch(size);
+        CacheConfiguration cacheConfig = cache.getCacheConfiguration();
+        this.diskTier = cacheConfig.isOverflowToDisk() || cacheConfig.isDiskPersistent();
+        if (!diskTier && cacheConfig.getMaxBytesLocalHeap() > 0) {
+            // the size of the heap tier is only kept by the statistics
+            cache.setStatisticsEnabled(true);
+        }
+    }
+
+    /************************************************************************************
+     * get the admission filter of the given cache; on first use the eviction policy of the cache is replaced
+     * 
+     * @param cache the cache
+     * @return the filter, null if cache admission is not configured
+     ************************************************************************************/
+    public static synchronized CacheAdmissionFilter getInstance(Cache cache) {
+        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+        if (cache == null || !config.getCacheAdmissionUse()) {
+            return null;
+        }
+        CacheAdmissionFilter filter = FILTERS.get(cache.getName());
+        if (filter == null || filter.cache != cache) {
+            filter = new CacheAdmissionFilter(cache, config.getCacheAdmissionSize());
+            cache.setMemoryStoreEvictionPolicy(filter.new FrequencyPolicy());
+            FILTERS.put(cache.getName(), filter);
+            LOGGER.info("Frequency based admission for cache " + cache.getName());
+        }
+        return filter;
+    }
+
+    /************************************************************************************
+     * count a request for the given cache key, hits as well as misses
+     * 
+     * @param key the cache key
+     ************************************************************************************/
+    public void recordAccess(String key) {
+        sketch.increment(key);
+    }
+
+    /************************************************************************************
+     * decide if a newly rendered image should be put into the cache
+     * 
+     * @param key the cache key of the image
+     * @return true, if the cache has a disk tier, the heap tier has room or the key is requested more often than the entry evicted last
+     ************************************************************************************/
+    public boolean admit(String key) {
+        if (diskTier || !isHeapFull()) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        int frequency = sketch.frequency(key);
+        int victimFrequency = victimKey == null ? 0 : sketch.frequency(victimKey);
+        if (frequency > victimFrequency || (frequency == victimFrequency && frequency >= WARM_FREQUENCY)) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        LOGGER.debug("not caching " + key + ", requested " + frequency + " times, entry evicted last " + victimFrequency + " times");
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /************************************************************************************
+     * decide if an image should be copied into the off-heap thumbnail store
+     * 
+     * @param key the cache key of the image
+     * @return true, if the key was requested before
+     ************************************************************************************/
+    public boolean admitOffHeap(String key) {
+        return sketch.frequency(key) >= OFF_HEAP_FREQUENCY;
+    }
+
+    private boolean isHeapFull() {
+        CacheConfiguration cacheConfig = cache.getCacheConfiguration();
+        if (cacheConfig.getMaxBytesLocalHeap() > 0) {
+            return cache.getLiveCacheStatistics().getLocalHeapSizeInBytes() >= cacheConfig.getMaxBytesLocalHeap() * FULL_RATIO;
+        }
+        if (cacheConfig.getMaxEntriesLocalHeap() > 0) {
+            return cache.getMemoryStoreSize() >= cacheConfig.getMaxEntriesLocalHeap();
+        }
+        return false;
+    }
+
+    /************************************************************************************
+     * get the admission counters of all filters as text
+     * 
+     * @return statistics, one line per cache
+     ************************************************************************************/
+    public static synchronized String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        for (CacheAdmissionFilter filter : FILTERS.values()) {
+            sb.append("admission cache=").append(filter.cache.getName()).append(" admitted=").append(filter.admitted.get()).append(" rejected=")
+                    .append(filter.rejected.get()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /************************************************************************************
+     * eviction policy choosing the least frequently requested element of the sample, remembering it for the admission
+     ************************************************************************************/
+    private class FrequencyPolicy extends AbstractPolicy {
+
+        @Override
+        public String getName() {
+            return "TinyLFU";
+        }
+
+        /**
+         * @return true, if element2 should rather be evicted than element1
+         */
+        @Override
+        public boolean compare(Element element1, Element element2) {
+            int frequency1 = sketch.frequency(String.valueOf(element1.getObjectKey()));
+            int frequency2 = sketch.frequency(String.valueOf(element2.getObjectKey()));
+            if (frequency1 != frequency2) {
+                return frequency2 < frequency1;
+            }
+            return element2.getLastAccessTime() < element1.getLastAccessTime();
+        }
+
+        @Override
+        public Element selectedBasedOnPolicy(Element[] sampledElements, Element justAdded) {
+            Element victim = super.selectedBasedOnPolicy(sampledElements, justAdded);
+            if (victim != null) {
+                victimKey = String.valueOf(victim.getObjectKey());
+            }
+            return victim;
+        }
+    }
+}
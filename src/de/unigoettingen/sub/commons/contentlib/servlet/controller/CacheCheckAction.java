@@ -26,6 +26,7 @@
 package de.unigoettingen.sub.commons.contentlib.servlet.controller;
 
 import java.io.IOException;
+import java.net.URI;
 import java.net.URISyntaxException;
 
 import javax.servlet.ServletContext;
@@ -79,7 +80,8 @@ public class CacheCheckAction extends GetImageAction {
                 cc = ContentServer.getContentCache();
             }
 
-            String myUniqueID = getContentCacheIdForParamMap(request.getParameterMap(), config);
+            URI sourceImageUrl = getSourceImageUrl(request.getParameter("sourcepath"), config);
+            String myUniqueID = new RenderSpec(sourceImageUrl, getParameters(request), config).getCacheKey();
             String targetExtension = request.getParameter("format");
 
             if (cc.isKeyInCache(myUniqueID + "." + targetExtension)) {
@@ -93,6 +95,8 @@ public class CacheCheckAction extends GetImageAction {
             }
         } catch (CacheException e) {
             LOGGER.error("Cache error", e);
+        } catch (URISyntaxException e) {
+            LOGGER.error("Invalid source path", e);
         }
         LOGGER.debug("image in cache: " + isInCache);
         if (!isInCache) {
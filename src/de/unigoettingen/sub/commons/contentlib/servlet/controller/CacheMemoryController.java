@@ -0,0 +1,261 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.config.CacheConfiguration;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.CacheException;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+
+/************************************************************************************
+ * Controller shrinking the heap tier of the content and thumbnail cache when the old generation of the heap gets full. The occupancy of the old
+ * generation is checked periodically; above the threshold the maximum heap size (maxBytesLocalHeap) of each cache is halved, so that ehcache moves
+ * elements to the disk tier, below the threshold it is raised again step by step up to the configured size. The caches are resized at most once per
+ * collection of the old generation, since the occupancy only changes with a collection. Caches configured by number of entries instead of bytes
+ * are not changed.
+ ************************************************************************************/
+public final class CacheMemoryController {
+    private static final Logger LOGGER = Logger.getLogger(CacheMemoryController.class);
+
+    /* the heap tier is only raised again if the occupancy is below this part of the threshold */
+    private static final double GROW_HYSTERESIS = 0.8;
+
+    private static CacheMemoryController instance;
+
+    private final boolean enabled;
+    private final double threshold;
+    private final long interval;
+    private final long minBytes;
+    private final Map<String, Long> configuredBytes = new HashMap<String, Long>();
+    private Timer timer;
+    private volatile double lastOccupancy = -1;
+    private long lastCollectionCount = -1;
+    private volatile int shrinks = 0;
+    private volatile int grows = 0;
+
+    private CacheMemoryController(ContentServerConfiguration config) {
+        enabled = config.getCacheMemoryControlUse();
+        threshold = config.getCacheMemoryControlThreshold();
+        interval = config.getCacheMemoryControlInterval() * 1000L;
+        minBytes = config.getCacheMemoryControlMinSize() * 1024L * 1024L;
+    }
+
+    /************************************************************************************
+     * get the controller, configured from the {@link ContentServerConfiguration}
+     * 
+     * @return the instance of the controller
+     ************************************************************************************/
+    public static synchronized CacheMemoryController getInstance() {
+        if (instance == null) {
+            instance = new CacheMemoryController(ContentServerConfiguration.getInstance());
+        }
+        return instance;
+    }
+
+    /************************************************************************************
+     * start the periodic check, if the controller is enabled
+     ************************************************************************************/
+    public synchronized void start() {
+        if (!enabled || timer != null) {
+            return;
+        }
+        LOGGER.info("Starting cache memory control, threshold " + threshold + ", interval " + interval + " ms");
+        timer = new Timer("CacheMemoryController", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error in cache memory control", e);
+                }
+            }
+        }, interval, interval);
+    }
+
+    /************************************************************************************
+     * stop the periodic check
+     ************************************************************************************/
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /************************************************************************************
+     * compare the occupancy of the old generation with the threshold and resize the heap tier of the caches, if the old generation has been
+     * collected since the last check
+     ************************************************************************************/
+    synchronized void check() {
+        double occupancy = getOldGenOccupancy();
+        lastOccupancy = occupancy;
+        if (occupancy < 0) {
+            return;
+        }
+        long collectionCount = getOldGenCollectionCount();
+        if (collectionCount >= 0 && collectionCount == lastCollectionCount) {
+            // no new collection, the caches have already been resized for this occupancy
+            return;
+        }
+        lastCollectionCount = collectionCount;
+        try {
+            resize(ContentServer.getContentCache(), occupancy);
+            resize(ContentServer.getThumbnailCache(), occupancy);
+        } catch (CacheException e) {
+            LOGGER.error(e.getMessage(), e);
+        }
+    }
+
+    private void resize(Cache cache, double occupancy) {
+        if (cache == null) {
+            return;
+        }
+        CacheConfiguration cacheConfig = cache.getCacheConfiguration();
+        long current = cacheConfig.getMaxBytesLocalHeap();
+        if (current <= 0) {
+            // sized by number of entries
+            return;
+        }
+        Long configured;
+        synchronized (configuredBytes) {
+            configured = configuredBytes.get(cache.getName());
+            if (configured == null) {
+                configured = current;
+                configuredBytes.put(cache.getName(), configured);
+            }
+        }
+        long target = current;
+        if (occupancy >= threshold && current > minBytes) {
+            target = Math.max(minBytes, current / 2);
+            shrinks++;
+        } else if (occupancy < threshold * GROW_HYSTERESIS && current < configured) {
+            target = Math.min(configured, current + current / 4 + 1);
+            grows++;
+        }
+        if (target != current) {
+            LOGGER.info("Old generation " + Math.round(occupancy * 100) + "% full, heap tier of cache " + cache.getName() + " resized from " + current
+                    + " to " + target + " bytes");
+            cacheConfig.setMaxBytesLocalHeap(target);
+        }
+    }
+
+    /************************************************************************************
+     * get the occupancy of the old generation after the last collection. If there is no old generation pool, the usage of the whole heap is used.
+     * 
+     * @return used part of the old generation between 0 and 1, -1 if unknown
+     ************************************************************************************/
+    static double getOldGenOccupancy() {
+        MemoryPoolMXBean pool = getOldGenPool();
+        if (pool != null) {
+            MemoryUsage usage = pool.isCollectionUsageThresholdSupported() ? pool.getCollectionUsage() : null;
+            if (usage == null || usage.getUsed() == 0) {
+                usage = pool.getUsage();
+            }
+            long max = usage.getMax() > 0 ? usage.getMax() : usage.getCommitted();
+            return max > 0 ? (double) usage.getUsed() / max : -1;
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+        return max > 0 ? (double) heap.getUsed() / max : -1;
+    }
+
+    /************************************************************************************
+     * get the number of collections of the old generation, summed over all garbage collectors managing the old generation pool
+     * 
+     * @return number of collections, -1 if unknown
+     ************************************************************************************/
+    static long getOldGenCollectionCount() {
+        MemoryPoolMXBean pool = getOldGenPool();
+        if (pool == null) {
+            return -1;
+        }
+        long count = -1;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            for (String poolName : collector.getMemoryPoolNames()) {
+                if (poolName.equals(pool.getName()) && collector.getCollectionCount() >= 0) {
+                    count = Math.max(count, 0) + collector.getCollectionCount();
+                }
+            }
+        }
+        return count;
+    }
+
+    /*
+     * the old generation is the heap pool supporting usage thresholds (eden and survivor spaces don't)
+     */
+    private static MemoryPoolMXBean getOldGenPool() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /************************************************************************************
+     * get the state of the controller and the heap size of the caches as text
+     * 
+     * @return statistics, one value per line
+     ************************************************************************************/
+    public String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("cacheMemoryControl=").append(enabled).append('\n');
+        sb.append("oldGenOccupancy=").append(lastOccupancy).append(" shrinks=").append(shrinks).append(" grows=").append(grows).append('\n');
+        try {
+            appendCacheStatistics(sb, ContentServer.getContentCache());
+            appendCacheStatistics(sb, ContentServer.getThumbnailCache());
+        } catch (CacheException e) {
+            LOGGER.error(e.getMessage(), e);
+        }
+        return sb.toString();
+    }
+
+    private void appendCacheStatistics(StringBuilder sb, Cache cache) {
+        if (cache == null) {
+            return;
+        }
+        sb.append("cache=").append(cache.getName());
+        sb.append(" maxBytesLocalHeap=").append(cache.getCacheConfiguration().getMaxBytesLocalHeap());
+        sb.append(" heapBytes=").append(cache.getLiveCacheStatistics().getLocalHeapSizeInBytes());
+        sb.append(" heapEntries=").append(cache.getMemoryStoreSize());
+        sb.append(" diskEntries=").append(cache.getDiskStoreSize());
+        sb.append('\n');
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+
+/************************************************************************************
+ * Background executor for the revalidation of cache entries which are older than the soft expiry. The stale entry is served while one
+ * revalidation per cache key runs on a low priority thread; if the queue is full, further revalidations are dropped and the entry is revalidated
+ * by a later request.
+ ************************************************************************************/
+public final class CacheRevalidator {
+    private static final Logger LOGGER = Logger.getLogger(CacheRevalidator.class);
+
+    private static final int MAX_QUEUE = 100;
+
+    private static CacheRevalidator instance;
+
+    private final ThreadPoolExecutor executor;
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private CacheRevalidator(int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUE), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CacheRevalidator-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /************************************************************************************
+     * get the revalidator, configured from the {@link ContentServerConfiguration}
+     * 
+     * @return the instance of the revalidator
+     ************************************************************************************/
+    public static synchronized CacheRevalidator getInstance() {
+        if (instance == null) {
+            instance = new CacheRevalidator(Math.max(1, ContentServerConfiguration.getInstance().getCacheRevalidationThreads()));
+        }
+        return instance;
+    }
+
+    /************************************************************************************
+     * run the given revalidation in the background, unless a revalidation of the same key is already pending
+     * 
+     * @param key id of the revalidated entry
+     * @param revalidation the task
+     * @return true, if the task was scheduled
+     ************************************************************************************/
+    public boolean schedule(final String key, final Runnable revalidation) {
+        if (!pending.add(key)) {
+            return false;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        revalidation.run();
+                        done.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Revalidation of " + key + " failed", e);
+                    } finally {
+                        pending.remove(key);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            dropped.incrementAndGet();
+            LOGGER.debug("Revalidation queue full, skipping " + key);
+            return false;
+        }
+    }
+
+    /************************************************************************************
+     * get the number of pending, finished and dropped revalidations as text
+     * 
+     * @return statistics, one line
+     ************************************************************************************/
+    public String getStatistics() {
+        return "revalidation pending=" + pending.size() + " done=" + done.get() + " dropped=" + dropped.get() + "\n";
+    }
+
+    /************************************************************************************
+     * stop the background threads, pending revalidations are discarded
+     ************************************************************************************/
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.ehcache.Cache;
+
+/************************************************************************************
+ * Index of the sizes of cached renders per source, region, rotation and encoding ({@link RenderSpec#getDerivationKey()}), so that an image can be
+ * scaled down from a larger render in the content or thumbnail cache instead of being read from the source. A lossy render is only derived from a
+ * render of at least the requested quality. Entries are not removed when the cache evicts the
+ * render; a render which is not in the cache anymore is dropped from the index when it is found.
+ ************************************************************************************/
+public final class CachedRenderIndex {
+
+    /* number of sources (and regions and rotations) in the index */
+    private static final int MAX_GROUPS = 10000;
+    /* number of sizes per source, the oldest one is dropped */
+    private static final int MAX_RENDERS = 8;
+
+    private static final Map<String, List<CachedRender>> GROUPS = Collections.synchronizedMap(new LinkedHashMap<String, List<CachedRender>>(16,
+            0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<CachedRender>> eldest) {
+            return size() > MAX_GROUPS;
+        }
+    });
+
+    private CachedRenderIndex() {
+    }
+
+    /************************************************************************************
+     * add a render which was put into the cache
+     * 
+     * @param spec {@link RenderSpec} of the render
+     * @param cache the cache the render was put into
+     * @param cacheKey the key of the render in the cache
+     ************************************************************************************/
+    public static void register(RenderSpec spec, Cache cache, String cacheKey) {
+        if (spec.getDerivationKey() == null) {
+            return;
+        }
+        synchronized (GROUPS) {
+            List<CachedRender> renders = GROUPS.get(spec.getDerivationKey());
+            if (renders == null) {
+                renders = new ArrayList<CachedRender>(2);
+                GROUPS.put(spec.getDerivationKey(), renders);
+            }
+            for (CachedRender render : renders) {
+                if (render.cache == cache && render.cacheKey.equals(cacheKey)) {
+                    return;
+                }
+            }
+            if (renders.size() >= MAX_RENDERS) {
+                renders.remove(0);
+            }
+            renders.add(new CachedRender(cache, cacheKey, spec.getTargetWidth(), spec.getTargetHeight(), spec.getQuality()));
+        }
+    }
+
+    /************************************************************************************
+     * find the smallest cached render of the same source, region, rotation and encoding which is at least as large as the given render and has
+     * at least its quality
+     * 
+     * @param spec {@link RenderSpec} of the requested render
+     * @return the cached render, null if there is none
+     ************************************************************************************/
+    public static CachedRender findLarger(RenderSpec spec) {
+        if (spec.getDerivationKey() == null) {
+            return null;
+        }
+        CachedRender best = null;
+        synchronized (GROUPS) {
+            List<CachedRender> renders = GROUPS.get(spec.getDerivationKey());
+            if (renders == null) {
+                return null;
+            }
+            for (CachedRender render : renders) {
+                if (render.width >= spec.getTargetWidth() && render.height >= spec.getTargetHeight()
+                        && isQualitySufficient(render.quality, spec.getQuality())
+                        && (best == null || (long) render.width * render.height < (long) best.width * best.height)) {
+                    best = render;
+                }
+            }
+        }
+        return best;
+    }
+
+    /************************************************************************************
+     * the default compression (-1) only matches itself, as its value depends on the interpreter
+     ************************************************************************************/
+    private static boolean isQualitySufficient(int cachedQuality, int requestedQuality) {
+        return cachedQuality == requestedQuality || (requestedQuality >= 0 && cachedQuality >= requestedQuality);
+    }
+
+    /************************************************************************************
+     * drop a render which is not in the cache anymore
+     * 
+     * @param spec {@link RenderSpec} the render was found for
+     * @param render the render found by {@link #findLarger(RenderSpec)}
+     ************************************************************************************/
+    public static void remove(RenderSpec spec, CachedRender render) {
+        synchronized (GROUPS) {
+            List<CachedRender> renders = GROUPS.get(spec.getDerivationKey());
+            if (renders != null && renders.remove(render) && renders.isEmpty()) {
+                GROUPS.remove(spec.getDerivationKey());
+            }
+        }
+    }
+
+    /************************************************************************************
+     * a render in the content or thumbnail cache and its size before rotation
+     ************************************************************************************/
+    public static final class CachedRender {
+        private final Cache cache;
+        private final String cacheKey;
+        private final int width;
+        private final int height;
+        private final int quality;
+
+        private CachedRender(Cache cache, String cacheKey, int width, int height, int quality) {
+            this.cache = cache;
+            this.cacheKey = cacheKey;
+            this.width = width;
+            this.height = height;
+            this.quality = quality;
+        }
+
+        /**
+         * @return the cache holding the render
+         */
+        public Cache getCache() {
+            return cache;
+        }
+
+        /**
+         * @return the key of the render in the cache
+         */
+        public String getCacheKey() {
+            return cacheKey;
+        }
+
+        @Override
+        public String toString() {
+            return cache.getName() + ":" + cacheKey + " (" + width + "x" + height + ")";
+        }
+    }
+}
@@ -42,8 +42,12 @@ import org.apache.log4j.Logger;
 import org.goobi.presentation.contentservlet.controller.ContentCache;
 
 import de.unigoettingen.sub.commons.contentlib.exceptions.CacheException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.RenderQueueFullException;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ParallelRenderer;
 import de.unigoettingen.sub.commons.contentlib.servlet.Util;
 import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.util.CacheUtils;
+import de.unigoettingen.sub.commons.util.OffHeapSlabStore;
 
 /************************************************************************************
  * simple contentserver class for requesting images
@@ -58,7 +62,11 @@ public class ContentServer extends HttpServlet {
     // private static ContentCache thumbnailcache;
     private static ContentCache pdfCache;
     private static CacheManager cacheManager;
+    private static volatile OffHeapSlabStore thumbnailStore;
     private static final long serialVersionUID = 1L;
+    /* thumbnails up to 1 MB are kept off-heap, the smallest chunk holds 1 KB */
+    private static final int OFF_HEAP_PAGE_SIZE = 1024 * 1024;
+    private static final int OFF_HEAP_MIN_CHUNK_SIZE = 1024;
 
     /************************************************************************************
      * default constructor for initialization
@@ -79,21 +87,31 @@ public class ContentServer extends HttpServlet {
             // if (config.getThumbnailCacheUse()) {
             // thumbnailcache = new ContentCache(config.getThumbnailCachePath(), config.getThumbnailCacheSize());
             // }
-            if (config.getPdfCacheUse()) {
-                pdfCache = new ContentCache(config.getPdfCachePath(), config.getPdfCacheSize());
-            }
+            /* the pdf cache is shared by all content servlets of the application */
+            getPdfCache();
         } catch (CacheException e) {
             throw new ServletException("ContentCache for GoobiContentServer can not be initialized", e);
         }
+        long offHeapSize = config.getThumbnailCacheOffHeapSize();
+        synchronized (ContentServer.class) {
+            if (thumbnailStore == null && offHeapSize > 0) {
+                thumbnailStore = new OffHeapSlabStore(offHeapSize * 1024 * 1024, OFF_HEAP_PAGE_SIZE, OFF_HEAP_MIN_CHUNK_SIZE);
+            }
+        }
         actions = new HashMap<String, Class<? extends Action>>();
         actions.put("image", GetImageAction.class);
         actions.put("pdf", GetPdfAction.class);
         actions.put("cachecheck", CacheCheckAction.class);
+        actions.put("renderstats", RenderStatsAction.class);
+        CacheMemoryController.getInstance().start();
     }
 
     @Override
     public void destroy() {
         super.destroy();
+        CacheMemoryController.getInstance().stop();
+        CacheRevalidator.getInstance().shutdown();
+        ParallelRenderer.shutdown();
 
         try {
             getContentCache().flush();
@@ -106,6 +124,16 @@ public class ContentServer extends HttpServlet {
             LOGGER.error(e);
         }
         getManager().shutdown();
+        synchronized (ContentServer.class) {
+            if (thumbnailStore != null) {
+                thumbnailStore.clear();
+                thumbnailStore = null;
+            }
+            if (pdfCache != null) {
+                pdfCache.shutdown();
+                pdfCache = null;
+            }
+        }
     }
 
     /************************************************************************************
@@ -154,6 +182,17 @@ public class ContentServer extends HttpServlet {
         try {
             /* run the action */
             action.run(getServletContext(), request, response);
+        } catch (RenderQueueFullException e) {
+            /* too many renders running, the client should try again later */
+            LOGGER.warn(e.getMessage());
+            if (!response.isCommitted()) {
+                response.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+                try {
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+                } catch (IOException e2) {
+                    LOGGER.error("An error occured", e2);
+                }
+            }
         } catch (Exception e) {
             /* if an error occurs log stacktrace and forward error message */
             LOGGER.error("An error occured", e);
@@ -214,7 +253,7 @@ public class ContentServer extends HttpServlet {
      * @return
      * @throws CacheException
      */
-    public static ContentCache getPdfCache() throws CacheException {
+    public static synchronized ContentCache getPdfCache() throws CacheException {
         if (pdfCache == null && ContentServerConfiguration.getInstance().getPdfCacheUse()) {
             pdfCache =
                     new ContentCache(ContentServerConfiguration.getInstance().getPdfCachePath(), ContentServerConfiguration.getInstance()
@@ -241,11 +280,29 @@ public class ContentServer extends HttpServlet {
         return getManager().getCache("thumbnails");
     }
 
-    private static CacheManager getManager() {
+    /*************************************************************************************
+     * Getter for the off-heap store of rendered thumbnails, created when the servlet is initialized
+     * 
+     * @return the store, null if it is not configured
+     *************************************************************************************/
+    public static OffHeapSlabStore getThumbnailStore() {
+        return thumbnailStore;
+    }
+
+    private static synchronized CacheManager getManager() {
         if (cacheManager == null) {
             File file = new File(Util.getBaseFolderAsFile(), "ehcache.xml");
             // cacheManager = new CacheManager(file.getAbsolutePath());
             cacheManager = CacheManager.create(file.getAbsolutePath());
+            /*
+             * -------------------------------- index the keys of the caches now, so that invalidations never read all keys --------------------------
+             */
+            for (String name : new String[] { "content", "thumbnails" }) {
+                Cache cache = cacheManager.getCache(name);
+                if (cache != null) {
+                    CacheUtils.registerKeyIndex(cache);
+                }
+            }
         }
         return cacheManager;
     }
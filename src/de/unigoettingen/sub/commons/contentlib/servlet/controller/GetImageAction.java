@@ -26,18 +26,24 @@
 package de.unigoettingen.sub.commons.contentlib.servlet.controller;
 
 import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLEncoder;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.imageio.ImageIO;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -58,15 +64,28 @@ import de.unigoettingen.sub.commons.contentlib.exceptions.ContentLibPdfException
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageInterpreterException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManagerException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManipulatorException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.RenderQueueFullException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.WatermarkException;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ContentLibUtil;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageFileFormat;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageHolder;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageInterpreter;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManager;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManipulator;
+import de.unigoettingen.sub.commons.contentlib.imagelib.PyramidStore;
+import de.unigoettingen.sub.commons.contentlib.imagelib.PyramidStore.PyramidLevel;
 import de.unigoettingen.sub.commons.contentlib.imagelib.Watermark;
+import de.unigoettingen.sub.commons.contentlib.servlet.HttpCacheHeaders;
+import de.unigoettingen.sub.commons.contentlib.servlet.RangeResponseWriter;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.CachedRenderIndex.CachedRender;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler.Lane;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler.Ticket;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.SourceFailureCache.Failure;
 import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
 import de.unigoettingen.sub.commons.util.CacheObject;
+import de.unigoettingen.sub.commons.util.InFlightRegistry;
+import de.unigoettingen.sub.commons.util.OffHeapSlabStore;
+import de.unigoettingen.sub.commons.util.stream.StreamUtils;
 
 /************************************************************************************
  * Image action for all kinds of image handlings first of all validate all request parameters, and than interprete all request parameters for correct
@@ -81,6 +100,9 @@ import de.unigoettingen.sub.commons.util.CacheObject;
 public class GetImageAction extends AbstractGetAction {
     private static final Logger LOGGER = Logger.getLogger(GetImageAction.class);
 
+    /* renders currently running for a cache key, shared by concurrent requests for the same image */
+    private static final InFlightRegistry<ImageHolder> RENDERS_IN_FLIGHT = new InFlightRegistry<ImageHolder>();
+
     /************************************************************************************
      * exectute all image actions (rotation, scaling etc.) and send image back to output stream of the servlet, after setting correct mime type
      * 
@@ -103,13 +125,15 @@ public class GetImageAction extends AbstractGetAction {
         /*
          * -------------------------------- get central configuration --------------------------------
          */
-        URI sourceImageUrl = null;
         ContentServerConfiguration config = ContentServerConfiguration.getInstance();
-        if (!request.getParameter("sourcepath").startsWith("file:") && !request.getParameter("sourcepath").startsWith("http:")) {
-            sourceImageUrl = new URI(config.getRepositoryPathImages() + request.getParameter("sourcepath"));
-        } else {
-            sourceImageUrl = new URI(request.getParameter("sourcepath"));
+        /* requests forwarded from mets files pass the url of the image as attribute */
+        String sourcepath = request.getParameter("sourcepath");
+        if (request.getAttribute("sourcepath") != null) {
+            sourcepath = (String) request.getAttribute("sourcepath");
         }
+        URI sourceImageUrl = getSourceImageUrl(sourcepath, config);
+        Map<String, String[]> params = new HashMap<String, String[]>(getParameters(request));
+        params.put("sourcepath", new String[] { sourcepath });
 
         try {
             Cache cc = null;
@@ -119,9 +143,40 @@ public class GetImageAction extends AbstractGetAction {
             } else {
                 cc = ContentServer.getContentCache();
             }
+            /*
+             * missing and too large source images are answered with the error image without looking for the file again; the error image is
+             * rendered once for each size and format
+             */
+            Failure failure = SourceFailureCache.check(sourceImageUrl);
             // String myUniqueID = getContentCacheIdForRequest(request, config);
-            String myUniqueID = getContentCacheIdForParamMap(request.getParameterMap(), config);
+            RenderSpec spec = new RenderSpec(sourceImageUrl, params, config, failure == null || !failure.isMissing());
+            String myUniqueID = spec.getCacheKey();
             String targetExtension = request.getParameter("format");
+            if (failure != null) {
+                byte[] errorImage = failure.getResponse(myUniqueID + "." + targetExtension);
+                if (errorImage == null && failure.isMissing()) {
+                    if (config.getErrorFile() == null) {
+                        response.sendError(HttpServletResponse.SC_NOT_FOUND, "source image not found");
+                        return;
+                    }
+                    errorImage = renderErrorImage(spec, params, ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension),
+                            config);
+                    failure.setResponse(myUniqueID + "." + targetExtension, errorImage);
+                }
+                if (errorImage != null) {
+                    LOGGER.debug("source image " + (failure.isMissing() ? "missing" : "too large") + ", sending error image: " + sourceImageUrl);
+                    setTargetNameAndMimeType(request, response, ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension), config);
+                    RangeResponseWriter.writeBytes(request, response, errorImage);
+                    output.close();
+                    return;
+                }
+            }
+
+            /* answer conditional requests before anything is read or rendered */
+            HttpCacheHeaders validators = HttpCacheHeaders.forRequest(request, sourceImageUrl.toURL());
+            if (validators != null && validators.handleNotModified(request, response)) {
+                return;
+            }
 
             boolean ignoreCache = false;
             /* check if cache should be ignored */
@@ -135,7 +190,7 @@ public class GetImageAction extends AbstractGetAction {
             } else {
                 useCache = config.getContentCacheUse();
             }
-            if (request.getParameterMap().containsKey("highlight")) {
+            if (params.containsKey("highlight")) {
                 useCache = false;
             }
             if (cc == null || !useCache) {
@@ -144,20 +199,51 @@ public class GetImageAction extends AbstractGetAction {
                 LOGGER.debug("cache deactivated via configuration");
             }
 
+            /* requests are counted before any lookup, hits of the off-heap store as well */
+            CacheAdmissionFilter admission = ignoreCache ? null : CacheAdmissionFilter.getInstance(cc);
+            if (admission != null) {
+                admission.recordAccess(myUniqueID + "." + targetExtension);
+            }
+
+            /* hot thumbnails are kept outside of the heap and written from there */
+            OffHeapSlabStore offHeapStore = null;
+            if (!ignoreCache && request.getParameter("thumbnail") != null) {
+                offHeapStore = ContentServer.getThumbnailStore();
+            }
+            if (offHeapStore != null) {
+                OffHeapSlabStore.Entry entry = offHeapStore.get(myUniqueID + "." + targetExtension);
+                if (entry != null) {
+                    LOGGER.debug("get file from off-heap store: " + myUniqueID + "." + targetExtension);
+                    if (config.getCacheRevalidationSoftExpiry() > 0 && !spec.isVersioned()) {
+                        Element element = cc.getQuiet(myUniqueID + "." + targetExtension);
+                        if (element != null) {
+                            revalidateIfStale(cc, myUniqueID + "." + targetExtension, (CacheObject) element.getObjectValue(), sourceImageUrl, spec,
+                                    params, ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension), config);
+                        }
+                    }
+                    try {
+                        setTargetNameAndMimeType(request, response, ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension), config);
+                        RangeResponseWriter.writeBuffer(request, response, entry.getContent());
+                    } finally {
+                        entry.release();
+                    }
+                    output.close();
+                    return;
+                }
+            }
+
             if (!ignoreCache && cc.isKeyInCache(myUniqueID + "." + targetExtension)) {
                 LOGGER.debug("get file from cache: " + myUniqueID + "." + targetExtension);
                 CacheObject co;
                 try {
                     co = (CacheObject) cc.get(myUniqueID + "." + targetExtension).getObjectValue();
-                    ByteArrayInputStream in = new ByteArrayInputStream(co.getData());
-
-                    byte[] buf = new byte[1024];
-                    int len;
-                    while ((len = in.read(buf)) > 0) {
-                        output.write(buf, 0, len);
+                    revalidateIfStale(cc, myUniqueID + "." + targetExtension, co, sourceImageUrl, spec, params,
+                            ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension), config);
+                    if (offHeapStore != null && (admission == null || admission.admitOffHeap(myUniqueID + "." + targetExtension))) {
+                        offHeapStore.put(myUniqueID + "." + targetExtension, co.getData());
                     }
-                    in.close();
-                    output.flush();
+                    setTargetNameAndMimeType(request, response, ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension), config);
+                    RangeResponseWriter.writeBytes(request, response, co.getData());
                     output.close();
                     return;
                 } catch (NullPointerException e) {
@@ -178,177 +264,46 @@ public class GetImageAction extends AbstractGetAction {
             // LOGGER.debug("file not found in cache: " + myUniqueID);
             // }
 
-            // /*
-            // * -------------------------------- if there is an internal request from goobiContentServer, you have to overwrite the
-            // sourcepath with
-            // * given attribute for image url --------------------------------
-            // */
-            // if (request.getAttribute("sourcepath") != null) {
-            // sourceImageUrl = new URI((String) request.getAttribute("sourcepath"));
-            // }
             LOGGER.debug("source image:" + sourceImageUrl);
 
             /*
-             * -------------------------------- retrieve source image from url --------------------------------
+             * -------------------------------- render target image and write it to stream --------------------------------
              */
-            ImageManager sourcemanager = new ImageManager(sourceImageUrl.toURL());
-            LOGGER.trace("imageManager initialized");
-
-            /*
-             * -------------------------------- set the defaults --------------------------------
-             */
-            int angle = 0;
-            int scaleX = 100;
-            int scaleY = 100;
-            int scaleType = ImageManager.SCALE_BY_PERCENT;
-            LinkedList<String> highlightCoordinateList = null;
-            Color highlightColor = null;
-            Watermark myWatermark = null;
-            LOGGER.trace("Variables set");
-
-            /*
-             * -------------------------------- rotate --------------------------------
-             */
-            if (request.getParameterMap().containsKey("rotate")) {
-                angle = Integer.parseInt(request.getParameter("rotate"));
-                LOGGER.trace("rotate image:" + angle);
-            }
-
-            /*
-             * -------------------------------- scale: scale the image to some percent value --------------------------------
-             */
-            if (request.getParameterMap().containsKey("scale")) {
-                scaleX = Integer.parseInt(request.getParameter("scale"));
-                scaleY = scaleX;
-                scaleType = ImageManager.SCALE_BY_PERCENT;
-                LOGGER.trace("scale image to percent:" + scaleX);
-            }
-
-            if (request.getParameterMap().containsKey("width") && request.getParameterMap().containsKey("height")) {
-                scaleX = Integer.parseInt(request.getParameter("width"));
-                scaleY = Integer.parseInt(request.getParameter("height"));
-                scaleType = ImageManager.SCALE_TO_BOX;
-            }
-
-            /*
-             * -------------------------------- width: scale image to fixed width --------------------------------
-             */
-            else if (request.getParameterMap().containsKey("width")) {
-                scaleX = Integer.parseInt(request.getParameter("width"));
-                scaleY = 0;
-                scaleType = ImageManager.SCALE_BY_WIDTH;
-                LOGGER.trace("scale image to width:" + scaleX);
-            }
-
-            /*
-             * -------------------------------- height: scale image to fixed height --------------------------------
-             */
-            else if (request.getParameterMap().containsKey("height")) {
-                scaleY = Integer.parseInt(request.getParameter("height"));
-                scaleX = 0;
-                scaleType = ImageManager.SCALE_BY_HEIGHT;
-                LOGGER.trace("scale image to height:" + scaleY);
-            }
-
-            /*
-             * -------------------------------- highlight --------------------------------
-             */
-            if (request.getParameterMap().containsKey("highlight")) {
-                highlightCoordinateList = new LinkedList<String>();
-                String highlight = request.getParameter("highlight");
-                StrTokenizer areas = new StrTokenizer(highlight, "$");
-                for (String area : areas.getTokenArray()) {
-                    StrTokenizer coordinates = new StrTokenizer(area, ",");
-                    highlightCoordinateList.add(coordinates.getContent());
-                }
-                highlightColor = config.getDefaultHighlightColor();
-            }
-
-            /*
-             * -------------------------------- insert watermark, if it should be used --------------------------------
-             */
-            if (!request.getParameterMap().containsKey("ignoreWatermark") && config.getWatermarkUse()) {
-                File watermarkfile = new File(new URI(config.getWatermarkConfigFilePath()));
-                myWatermark = Watermark.generateWatermark(request, watermarkfile);
-            }
-
-            /*
-             * -------------------------------- prepare target --------------------------------
-             */
-            // change to true if watermark should scale
-            RenderedImage targetImage = null;
-            if (config.getScaleWatermark()) {
-                targetImage =
-                        sourcemanager.scaleImageByPixel(scaleX, scaleY, scaleType, angle, highlightCoordinateList, highlightColor, myWatermark, true,
-                                ImageManager.BOTTOM);
-            } else {
-                targetImage =
-                        sourcemanager.scaleImageByPixel(scaleX, scaleY, scaleType, angle, highlightCoordinateList, highlightColor, myWatermark,
-                                false, ImageManager.BOTTOM);
-            }
-            LOGGER.trace("Creating ImageInterpreter");
             ImageFileFormat targetFormat = ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension);
-            ImageInterpreter wi = targetFormat.getInterpreter(targetImage); // read file
-            LOGGER.trace("Image stored in " + wi.getClass().toString());
-            /*
-             * -------------------------------- set file name and attachment header from parameter or from configuration
-             * --------------------------------
-             */
-            LOGGER.trace("Creating target file");
-            StringBuilder targetFileName = new StringBuilder();
-            if (config.getSendImageAsAttachment()) {
-                targetFileName.append("attachment; ");
-            }
-            targetFileName.append("filename=");
-
-            if (request.getParameter("targetFileName") != null) {
-                targetFileName.append(request.getParameter("targetFileName"));
-            } else {
-                String filename = ContentLibUtil.getCustomizedFileName(config.getDefaultFileNameImages(), "." + targetFormat.getFileExtension());
-                targetFileName.append(filename);
-            }
-            LOGGER.trace("Adding targetFile " + targetFileName.toString() + " to response");
-            response.setHeader("Content-Disposition", targetFileName.toString());
-            response.setContentType(targetFormat.getMimeType());
-
-            /*
-             * -------------------------------- resolution --------------------------------
-             */
-            LOGGER.trace("Setting image resolution values");
-            if (request.getParameter("resolution") != null) {
-                wi.setXResolution(Float.parseFloat(request.getParameter("resolution")));
-                wi.setYResolution(Float.parseFloat(request.getParameter("resolution")));
+            if (cc != null) {
+                ImageHolder targetImage = renderToCache(cc, myUniqueID + "." + targetExtension, sourceImageUrl, spec, params,
+                        targetFormat, config, null);
+                if (offHeapStore != null && (admission == null || admission.admitOffHeap(myUniqueID + "." + targetExtension))) {
+                    offHeapStore.put(myUniqueID + "." + targetExtension, targetImage.getImage());
+                }
+                if (failure != null) {
+                    failure.setResponse(myUniqueID + "." + targetExtension, targetImage.getImage());
+                }
+                setTargetNameAndMimeType(request, response, targetFormat, config);
+                RangeResponseWriter.writeBytes(request, response, targetImage.getImage());
             } else {
-                wi.setXResolution(config.getDefaultResolution());
-                wi.setYResolution(config.getDefaultResolution());
-            }
-
-            LOGGER.trace("Setting image compression");
-            if (request.getParameter("compression") != null) {
-                String value = request.getParameter("compression");
+                Ticket ticket = RenderScheduler.getInstance().acquire(getRenderLane(params));
                 try {
-                    int intvalue = Integer.parseInt(value);
-                    wi.setWriterCompressionValue(intvalue);
-                } catch (Exception e) {
-                    LOGGER.trace("value is not a number, use default value");
+                    ImageInterpreter wi = prepareTargetImage(sourceImageUrl, spec, params, targetFormat, config);
+                    setTargetNameAndMimeType(request, response, targetFormat, config);
+                    LOGGER.trace("writing file to servlet response");
+                    if (failure != null) {
+                        /* the error image is kept for the next requests of this source */
+                        byte[] errorImage = renderImageHolder(wi).getImage();
+                        failure.setResponse(myUniqueID + "." + targetExtension, errorImage);
+                        RangeResponseWriter.writeBytes(request, response, errorImage);
+                    } else {
+                        wi.writeToStream(null, output);
+                        wi.clear();
+                    }
+                    LOGGER.trace("Done clearing ImageInterpreter");
+                } finally {
+                    ticket.release();
                 }
             }
-
-            /*
-             * -------------------------------- write target image to stream --------------------------------
-             */
-            // cc.put(new Element(myUniqueID + "." + targetExtension, wi.getRenderedImage()));
-
-            if (cc != null) {
-                byte[] data = wi.writeToStreamAndByteArray(output);
-                cc.putIfAbsent(new Element(myUniqueID + "." + targetExtension, new CacheObject(data)));
-            } else {
-                LOGGER.trace("writing file to servlet response");
-                wi.writeToStream(null, output);
-            }
-            LOGGER.trace("Done writing ImageInterpreter to stream");
-            wi.clear();
-            LOGGER.trace("Done clearing ImageInterpreter");
+            LOGGER.trace("Done writing target image to stream");
+        } catch (RenderQueueFullException e) {
+            throw e;
         } catch (Exception e) {
             LOGGER.error("CacheException", e);
         }
@@ -401,6 +356,22 @@ public class GetImageAction extends AbstractGetAction {
             throw new IllegalArgumentException("height is not numeric");
         }
 
+        /* validate region: x,y,width,height in pixels of the source image */
+        if (request.getParameter("region") != null) {
+            StrTokenizer values = new StrTokenizer(request.getParameter("region"), ",");
+            if (values.getTokenArray().length != 4) {
+                throw new IllegalArgumentException("region does not have 4 values (x,y,width,height): " + values.getContent());
+            }
+            for (String value : values.getTokenArray()) {
+                if (!StringUtils.isNumeric(value.trim())) {
+                    throw new IllegalArgumentException("region value is not numeric: " + values.getContent());
+                }
+            }
+            if (Integer.parseInt(values.getTokenArray()[2].trim()) == 0 || Integer.parseInt(values.getTokenArray()[3].trim()) == 0) {
+                throw new IllegalArgumentException("region must not be empty: " + values.getContent());
+            }
+        }
+
         /* validate resolution */
         if (request.getParameter("resolution") != null && !StringUtils.isNumeric(request.getParameter("resolution"))) {
             throw new IllegalArgumentException("resolution is not numeric");
@@ -476,70 +447,30 @@ public class GetImageAction extends AbstractGetAction {
     // return myId;
     // }
 
-    /**
+    /************************************************************************************
+     * get the url of the source image; relative source paths are resolved against the image repository
      * 
-     * @param params
-     * @param inConfig
-     * @return
-     */
-    protected String getContentCacheIdForParamMap(Map<String, String[]> params, ContentServerConfiguration inConfig) {
-        StringBuffer cacheId = new StringBuffer();
-
-        String pi = null;
-        String imageNo = "-";
-        String width = "-";
-        String height = "-";
-        String rotate = "-";
-        String scale = "-";
-        String watermarkText = null;
-        for (String s : params.keySet()) {
-            String[] values = params.get(s);
-            LOGGER.trace("param: " + s);
-            if (s.equals("sourcepath")) {
-                String[] sourcePathSplit = values[0].split("[/]");
-                if (sourcePathSplit.length >= 2) {
-                    pi = sourcePathSplit[sourcePathSplit.length - 2];
-                    imageNo = sourcePathSplit[sourcePathSplit.length - 1];
-                } else {
-                    // if we are not in a subfolder
-                    imageNo = sourcePathSplit[sourcePathSplit.length - 1];
-                }
-                if (StringUtils.isNotEmpty(imageNo)) {
-                    imageNo = imageNo.substring(0, imageNo.indexOf('.'));
-                }
-            } else if (s.equals("width")) {
-                width = values[0];
-            } else if (s.equals("height")) {
-                height = values[0];
-            } else if (s.equals("rotate")) {
-                rotate = values[0];
-            } else if (s.equals("scale")) {
-                scale = values[0];
-            } else if (s.equals("watermarkText")) {
-                watermarkText = values[0];
-            }
-        }
-
-        cacheId.append(pi);
-        cacheId.append("_");
-        cacheId.append(imageNo);
-        cacheId.append("_");
-        cacheId.append(width);
-        cacheId.append("_");
-        cacheId.append(height);
-        cacheId.append("_");
-        cacheId.append(rotate);
-        cacheId.append("_");
-        cacheId.append(scale);
-        if (watermarkText != null) {
-            try {
-                cacheId.append("_" + URLEncoder.encode(watermarkText, "UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                LOGGER.error(e.getMessage(), e);
-            }
+     * @param sourcepath value of the sourcepath parameter
+     * @param config current {@link ContentServerConfiguration}
+     * @return {@link URI} of the source image
+     * @throws URISyntaxException
+     ************************************************************************************/
+    protected static URI getSourceImageUrl(String sourcepath, ContentServerConfiguration config) throws URISyntaxException {
+        if (!sourcepath.startsWith("file:") && !sourcepath.startsWith("http:")) {
+            return new URI(config.getRepositoryPathImages() + sourcepath);
         }
+        return new URI(sourcepath);
+    }
 
-        return cacheId.toString();
+    /************************************************************************************
+     * get the parameters of the request, the servlet api only returns a raw map
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @return request parameters
+     ************************************************************************************/
+    @SuppressWarnings("unchecked")
+    protected static Map<String, String[]> getParameters(HttpServletRequest request) {
+        return request.getParameterMap();
     }
 
     public byte[] getImage(Map<String, String[]> params) throws URISyntaxException, IOException, ImageManagerException {
@@ -547,6 +478,21 @@ public class GetImageAction extends AbstractGetAction {
     }
 
     public ImageHolder getImageHolder(Map<String, String[]> params) throws URISyntaxException, IOException, ImageManagerException {
+        return getImageHolder(params, null);
+    }
+
+    /************************************************************************************
+     * get the target image for the given parameters from the cache or render it
+     * 
+     * @param params request parameters
+     * @param prefetchTicket render slot taken by a prefetch, which is used for the render instead of waiting for a slot; prefetched images are not
+     *            counted as requests by the cache admission. null for requests of readers
+     * @return the target image, null if it can't be rendered
+     * @throws ImageManagerException if the image can't be rendered, also if the render queue is full; the {@link RenderQueueFullException} is
+     *             the cause then
+     ************************************************************************************/
+    public ImageHolder getImageHolder(Map<String, String[]> params, Ticket prefetchTicket) throws URISyntaxException, IOException,
+            ImageManagerException {
 
         /*
          * -------------------------------- get central configuration --------------------------------
@@ -561,15 +507,20 @@ public class GetImageAction extends AbstractGetAction {
             sourceImageUrl = new URI(path);
         }
 
+        Failure failure = SourceFailureCache.check(sourceImageUrl);
+        if (failure != null && failure.isMissing()) {
+            throw new ImageManagerException("source image not found: " + sourceImageUrl);
+        }
+
         try {
             Cache cc = null;
-            // ServletOutputStream output = response.getOutputStream();
             if (params.get("thumbnail") != null) {
                 cc = ContentServer.getThumbnailCache();
             } else {
                 cc = ContentServer.getContentCache();
             }
-            String myUniqueID = getContentCacheIdForParamMap(params, config);
+            RenderSpec spec = new RenderSpec(sourceImageUrl, params, config);
+            String myUniqueID = spec.getCacheKey();
             LOGGER.trace("myUniqueId: " + myUniqueID);
             String targetExtension = params.get("format")[0];
 
@@ -595,180 +546,446 @@ public class GetImageAction extends AbstractGetAction {
                 LOGGER.debug("cache deactivated via configuration");
             }
 
+            CacheAdmissionFilter admission = ignoreCache || prefetchTicket != null ? null : CacheAdmissionFilter.getInstance(cc);
+            if (admission != null) {
+                admission.recordAccess(myUniqueID + "." + targetExtension);
+            }
             // Image found in cache
             if (!ignoreCache && cc.isKeyInCache(myUniqueID + "." + targetExtension)) {
                 LOGGER.debug("get file from cache: " + myUniqueID + "." + targetExtension);
                 try {
                     CacheObject co = (CacheObject) cc.get(myUniqueID + "." + targetExtension).getValue();
+                    revalidateIfStale(cc, myUniqueID + "." + targetExtension, co, sourceImageUrl, spec, params,
+                            ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension), config);
                     return new ImageHolder(co.getData());
 
                 } catch (NullPointerException e) {
                     LOGGER.debug("element not in cache anymore: " + myUniqueID + "." + targetExtension);
                 }
-                // if (!ignoreCache && cc.isKeyInCache(myUniqueID + "." + targetExtension)) {
-                // LOGGER.debug("get file from cache: " + myUniqueID);
-                //
-                // RenderedImage ri = (RenderedImage) cc.get(myUniqueID + "." + targetExtension).getObjectValue();
-                // JpegInterpreter ii = new JpegInterpreter(ri);
-                // ii.writeToStream(null, baos);
-                // return baos.toByteArray();
             } else if (!ignoreCache) {
                 LOGGER.debug("file not found in cache: " + myUniqueID + "." + targetExtension);
             }
 
             /*
-             * -------------------------------- retrieve source image from url --------------------------------
+             * -------------------------------- render target image --------------------------------
              */
-            ImageManager sourcemanager = new ImageManager(sourceImageUrl.toURL());
-            LOGGER.trace("imageManager initialized");
+            ImageFileFormat targetFormat = ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension);
+            if (cc != null) {
+                return renderToCache(cc, myUniqueID + "." + targetExtension, sourceImageUrl, spec, params, targetFormat, config, prefetchTicket);
+            }
+            Ticket ticket = prefetchTicket != null ? prefetchTicket : RenderScheduler.getInstance().acquire(getRenderLane(params));
+            try {
+                ImageHolder returnImage = renderImageHolder(prepareTargetImage(sourceImageUrl, spec, params, targetFormat, config));
+                LOGGER.trace("Done writing image to stream");
+                return returnImage;
+            } finally {
+                ticket.release();
+            }
+        } catch (RenderQueueFullException e) {
+            throw new ImageManagerException(e.getMessage(), e);
+        } catch (CacheException e) {
+            LOGGER.error("CacheException", e);
+        } catch (MalformedURLException e) {
+            LOGGER.error(e.getMessage(), e);
+        } catch (ImageManipulatorException e) {
+            LOGGER.error(e.getMessage(), e);
+        } catch (WatermarkException e) {
+            LOGGER.error(e.getMessage(), e);
+        }
 
-            /*
-             * -------------------------------- set the defaults --------------------------------
-             */
-            int angle = 0;
-            int scaleX = 100;
-            int scaleY = 100;
-            int scaleType = ImageManager.SCALE_BY_PERCENT;
-            LinkedList<String> highlightCoordinateList = null;
-            Color highlightColor = null;
-            Watermark myWatermark = null;
-            LOGGER.trace("Variables set");
+        return null;
+    }
 
-            /*
-             * -------------------------------- rotate --------------------------------
-             */
-            if (params.get("rotate") != null) {
-                angle = Integer.parseInt(params.get("rotate")[0]);
-                LOGGER.trace("rotate image:" + angle);
-            }
+    /************************************************************************************
+     * render the target image and put it into the given cache. Concurrent requests for the same cache key do not render the image again, they wait
+     * for the running render and get the same image data
+     * 
+     * @param cc the cache to put the rendered image into
+     * @param cacheKey the key of the rendered image in the cache
+     * @param sourceImageUrl {@link URI} of the source image
+     * @param spec normalized {@link RenderSpec} of the request
+     * @param params request parameters
+     * @param targetFormat {@link ImageFileFormat} of the target image
+     * @param config current {@link ContentServerConfiguration}
+     * @param prefetchTicket render slot taken by a prefetch, null to wait for a slot
+     * @return the rendered image as {@link ImageHolder}
+     ************************************************************************************/
+    private ImageHolder renderToCache(final Cache cc, final String cacheKey, final URI sourceImageUrl, final RenderSpec spec,
+            final Map<String, String[]> params, final ImageFileFormat targetFormat, final ContentServerConfiguration config,
+            final Ticket prefetchTicket) throws URISyntaxException, IOException, ImageManagerException, ImageManipulatorException, WatermarkException,
+            RenderQueueFullException {
+        try {
+            return RENDERS_IN_FLIGHT.execute(cc.getName() + ":" + cacheKey, new Callable<ImageHolder>() {
+                @Override
+                public ImageHolder call() throws Exception {
+                    long sourceLastModified = config.getCacheRevalidationSoftExpiry() > 0 ? getSourceLastModified(sourceImageUrl) : 0;
+                    Ticket ticket = prefetchTicket != null ? prefetchTicket : RenderScheduler.getInstance().acquire(getRenderLane(params));
+                    try {
+                        ImageHolder targetImage = deriveFromCachedRender(spec, params, targetFormat, config);
+                        if (targetImage == null) {
+                            targetImage = renderImageHolder(prepareTargetImage(sourceImageUrl, spec, params, targetFormat, config));
+                        }
+                        CacheObject co = new CacheObject(targetImage.getImage(), sourceLastModified);
+                        LOGGER.debug("caching " + co.getSize() + " bytes for " + cacheKey);
+                        CacheAdmissionFilter admission = CacheAdmissionFilter.getInstance(cc);
+                        if (admission == null || admission.admit(cacheKey)) {
+                            cc.putIfAbsent(new Element(cacheKey, co));
+                            CachedRenderIndex.register(spec, cc, cacheKey);
+                        }
+                        return targetImage;
+                    } finally {
+                        ticket.release();
+                    }
+                }
+            });
+        } catch (URISyntaxException | IOException | ImageManagerException | ImageManipulatorException | WatermarkException
+                | RenderQueueFullException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ImageManagerException(e);
+        }
+    }
 
-            /*
-             * -------------------------------- scale: scale the image to some percent value --------------------------------
-             */
-            if (params.get("scale") != null) {
-                scaleX = Integer.parseInt(params.get("scale")[0]);
-                scaleY = scaleX;
-                scaleType = ImageManager.SCALE_BY_PERCENT;
-                LOGGER.trace("scale image to percent:" + scaleX);
+    /************************************************************************************
+     * scale the target image down from the smallest larger render of the same source, region and rotation in the content or thumbnail cache,
+     * which is much cheaper than reading the source image. Bitonal renders are not used, as they can't be scaled to grey here
+     * 
+     * @param spec normalized {@link RenderSpec} of the request
+     * @param params request parameters
+     * @param targetFormat {@link ImageFileFormat} of the target image
+     * @param config current {@link ContentServerConfiguration}
+     * @return the derived image or null, if there is no suitable render in the caches
+     ************************************************************************************/
+    private ImageHolder deriveFromCachedRender(RenderSpec spec, Map<String, String[]> params, ImageFileFormat targetFormat,
+            ContentServerConfiguration config) {
+        if (!config.getCacheDeriveUse()) {
+            return null;
+        }
+        CachedRender larger = CachedRenderIndex.findLarger(spec);
+        if (larger == null) {
+            return null;
+        }
+        Element element = larger.getCache().get(larger.getCacheKey());
+        if (element == null) {
+            CachedRenderIndex.remove(spec, larger);
+            return null;
+        }
+        try {
+            BufferedImage cached = ImageIO.read(new ByteArrayInputStream(((CacheObject) element.getObjectValue()).getData()));
+            if (cached == null || cached.getColorModel().getPixelSize() == 1) {
+                return null;
+            }
+            int width = spec.getTargetWidth();
+            int height = spec.getTargetHeight();
+            if (spec.getAngle() % 180 != 0) {
+                width = spec.getTargetHeight();
+                height = spec.getTargetWidth();
+            }
+            LOGGER.debug("deriving " + width + "x" + height + " from cached render " + larger);
+            RenderedImage targetImage = cached;
+            if (width != cached.getWidth() || height != cached.getHeight()) {
+                float scaleX = (float) width / cached.getWidth();
+                float scaleY = (float) height / cached.getHeight();
+                if (scaleX < 0.5f || scaleY < 0.5f) {
+                    // interpolation would alias when reducing by more than the factor 2; the size of the average is rounded down
+                    targetImage =
+                            ImageManipulator.scaleSubsampleAverage(cached, Math.min(1f, (width + 0.5f) / cached.getWidth()),
+                                    Math.min(1f, (height + 0.5f) / cached.getHeight()));
+                } else if (cached.getColorModel().getNumComponents() == 1) {
+                    // scale methods of the ImageManager: bilinear for greyscale, next neighbor for colour images
+                    targetImage = ImageManipulator.scaleInterpolationBilinear(cached, scaleX, scaleY);
+                } else {
+                    targetImage = ImageManipulator.scaleNextNeighbor(cached, scaleX, scaleY);
+                }
             }
+            ImageInterpreter wi = targetFormat.getInterpreter(targetImage);
+            setOutputParameters(wi, params, config);
+            return renderImageHolder(wi);
+        } catch (IOException e) {
+            LOGGER.debug("can't read cached render " + larger + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.debug("can't scale cached render " + larger + ": " + e.getMessage());
+        }
+        return null;
+    }
 
-            if (params.get("width") != null && params.get("height") != null) {
-                scaleX = Integer.parseInt(params.get("width")[0]);
-                scaleY = Integer.parseInt(params.get("height")[0]);
-                scaleType = ImageManager.SCALE_TO_BOX;
+    /************************************************************************************
+     * serve stale, revalidate in the background: if the cached image is older than the soft expiry, a background task checks the modification time
+     * of the source; an unchanged source only renews the cache entry, otherwise the image is rendered again and replaces the entry. If the cache
+     * key contains the version of the source file (local files), a changed source gets a new key and the entry is never revalidated; entries of
+     * the old version expire. The hard expiry is the time to live of the cache in ehcache.xml
+     * 
+     * @param cc the cache the image was found in
+     * @param cacheKey the key of the image in the cache
+     * @param co the cached image
+     * @param sourceImageUrl {@link URI} of the source image
+     * @param spec normalized {@link RenderSpec} of the request
+     * @param params request parameters
+     * @param targetFormat {@link ImageFileFormat} of the target image
+     * @param config current {@link ContentServerConfiguration}
+     ************************************************************************************/
+    private void revalidateIfStale(final Cache cc, final String cacheKey, final CacheObject co, final URI sourceImageUrl, final RenderSpec spec,
+            Map<String, String[]> params, final ImageFileFormat targetFormat, final ContentServerConfiguration config) {
+        long softExpiry = config.getCacheRevalidationSoftExpiry() * 1000L;
+        if (softExpiry <= 0 || spec.isVersioned() || System.currentTimeMillis() - co.getCreated() < softExpiry) {
+            return;
+        }
+        /* the parameter map of the request must not be used after the request */
+        final Map<String, String[]> paramCopy = new HashMap<String, String[]>(params);
+        CacheRevalidator.getInstance().schedule(cc.getName() + ":" + cacheKey, new Runnable() {
+            @Override
+            public void run() {
+                long sourceLastModified = getSourceLastModified(sourceImageUrl);
+                if (sourceLastModified > 0 && sourceLastModified == co.getSourceLastModified()) {
+                    LOGGER.debug("source unchanged, renewing cache entry " + cacheKey);
+                    cc.put(new Element(cacheKey, new CacheObject(co.getData(), sourceLastModified)));
+                    return;
+                }
+                OffHeapSlabStore offHeapStore = paramCopy.get("thumbnail") != null ? ContentServer.getThumbnailStore() : null;
+                LOGGER.debug("rendering stale cache entry " + cacheKey + " again");
+                try {
+                    Ticket ticket = RenderScheduler.getInstance().acquire(getRenderLane(paramCopy));
+                    try {
+                        ImageHolder targetImage = renderImageHolder(prepareTargetImage(sourceImageUrl, spec, paramCopy, targetFormat, config));
+                        cc.put(new Element(cacheKey, new CacheObject(targetImage.getImage(), sourceLastModified)));
+                        if (offHeapStore != null) {
+                            offHeapStore.put(cacheKey, targetImage.getImage());
+                        }
+                    } finally {
+                        ticket.release();
+                    }
+                } catch (RenderQueueFullException e) {
+                    LOGGER.debug("render queue full, stale cache entry " + cacheKey + " is kept");
+                } catch (Exception e) {
+                    LOGGER.warn("can't render stale cache entry " + cacheKey + " again: " + e.getMessage());
+                }
             }
+        });
+    }
 
-            /*
-             * -------------------------------- width: scale image to fixed width --------------------------------
-             */
-            else if (params.get("width") != null) {
-                scaleX = Integer.parseInt(params.get("width")[0]);
-                scaleY = 0;
-                scaleType = ImageManager.SCALE_BY_WIDTH;
-                LOGGER.trace("scale image to width:" + scaleX);
-            }
+    /************************************************************************************
+     * render the configured error image in the size and format of the request, used instead of a missing source image
+     * 
+     * @param spec normalized {@link RenderSpec} of the request
+     * @param params request parameters
+     * @param targetFormat {@link ImageFileFormat} of the target image
+     * @param config current {@link ContentServerConfiguration}
+     * @return the written error image
+     ************************************************************************************/
+    private byte[] renderErrorImage(RenderSpec spec, Map<String, String[]> params, ImageFileFormat targetFormat, ContentServerConfiguration config)
+            throws URISyntaxException, MalformedURLException, ImageManagerException, ImageManipulatorException, WatermarkException,
+            RenderQueueFullException {
+        Ticket ticket = RenderScheduler.getInstance().acquire(getRenderLane(params));
+        try {
+            return renderImageHolder(prepareTargetImage(new URI(config.getErrorFile()), spec, params, targetFormat, config)).getImage();
+        } finally {
+            ticket.release();
+        }
+    }
 
-            /*
-             * -------------------------------- height: scale image to fixed height --------------------------------
-             */
-            else if (params.get("height") != null) {
-                scaleY = Integer.parseInt(params.get("height")[0]);
-                scaleX = 0;
-                scaleType = ImageManager.SCALE_BY_HEIGHT;
-                LOGGER.trace("scale image to height:" + scaleY);
+    /************************************************************************************
+     * get the modification time of the source image, from the file system for local files, from the Last-Modified header otherwise
+     * 
+     * @param sourceImageUrl {@link URI} of the source image
+     * @return modification time in milliseconds, 0 if unknown
+     ************************************************************************************/
+    private static long getSourceLastModified(URI sourceImageUrl) {
+        try {
+            URL url = sourceImageUrl.toURL();
+            if ("file".equals(url.getProtocol())) {
+                return StreamUtils.getFileFromUrl(url).lastModified();
             }
-
-            /*
-             * -------------------------------- highlight --------------------------------
-             */
-            if (params.get("highlight") != null) {
-                highlightCoordinateList = new LinkedList<String>();
-                String highlight = params.get("highlight")[0];
-                StrTokenizer areas = new StrTokenizer(highlight, "$");
-                for (String area : areas.getTokenArray()) {
-                    StrTokenizer coordinates = new StrTokenizer(area, ",");
-                    highlightCoordinateList.add(coordinates.getContent());
+            URLConnection connection = url.openConnection();
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).setRequestMethod("HEAD");
+            }
+            try {
+                return connection.getLastModified();
+            } finally {
+                if (connection instanceof HttpURLConnection) {
+                    ((HttpURLConnection) connection).disconnect();
                 }
-                highlightColor = config.getDefaultHighlightColor();
             }
+        } catch (IOException e) {
+            LOGGER.debug("can't get modification time of " + sourceImageUrl + ": " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("can't get modification time of " + sourceImageUrl + ": " + e.getMessage());
+        }
+        return 0;
+    }
 
-            /*
-             * -------------------------------- insert watermark, if it should be used --------------------------------
-             */
-            if (params.get("ignoreWatermark") == null) {
-                if (config.getWatermarkUse()) {
-                    File watermarkfile = new File(new URI(config.getWatermarkConfigFilePath()));
-                    myWatermark = Watermark.generateWatermark(params, watermarkfile);
+    /************************************************************************************
+     * get the lane of the {@link RenderScheduler} for the requested image
+     * 
+     * @param params request parameters
+     * @return the thumbnail lane for thumbnails, the image lane for all other images
+     ************************************************************************************/
+    private static Lane getRenderLane(Map<String, String[]> params) {
+        return params.get("thumbnail") != null ? Lane.THUMBNAIL : Lane.IMAGE;
+    }
+
+    /************************************************************************************
+     * write the target image into a byte array
+     * 
+     * @param wi {@link ImageInterpreter} of the target image
+     * @return the written image as {@link ImageHolder}
+     ************************************************************************************/
+    private ImageHolder renderImageHolder(ImageInterpreter wi) {
+        byte[] data = wi.writeToByteArray();
+        ImageHolder targetImage = new ImageHolder(data, wi.getWidth(), wi.getHeight());
+        wi.clear();
+        return targetImage;
+    }
+
+    /************************************************************************************
+     * read the source image and apply all image handlings (rotation, scaling, highlighting, watermark) given by the request parameters
+     * 
+     * @param sourceImageUrl {@link URI} of the source image
+     * @param spec {@link RenderSpec} with scaling, rotation and region of the request
+     * @param params request parameters
+     * @param targetFormat {@link ImageFileFormat} of the target image
+     * @param config current {@link ContentServerConfiguration}
+     * @return {@link ImageInterpreter} for the target image with resolution and compression set
+     ************************************************************************************/
+    private ImageInterpreter prepareTargetImage(URI sourceImageUrl, RenderSpec spec, Map<String, String[]> params, ImageFileFormat targetFormat,
+            ContentServerConfiguration config) throws URISyntaxException, MalformedURLException, ImageManagerException, ImageManipulatorException,
+            WatermarkException {
+
+        /*
+         * -------------------------------- scaling, rotation and region as normalized by the render spec; sizes refer to the region
+         * --------------------------------
+         */
+        int angle = spec.getAngle();
+        int scaleX = spec.getScaleX();
+        int scaleY = spec.getScaleY();
+        int scaleType = spec.getScaleType();
+        Rectangle region = spec.getRegion();
+        LinkedList<String> highlightCoordinateList = null;
+        Color highlightColor = null;
+        Watermark myWatermark = null;
+        LOGGER.trace("rotate image: " + angle + ", scale image: " + scaleX + "x" + scaleY + " (" + scaleType + "), region: " + region);
+
+        /*
+         * -------------------------------- highlight --------------------------------
+         */
+        if (params.get("highlight") != null) {
+            highlightCoordinateList = new LinkedList<String>();
+            String highlight = params.get("highlight")[0];
+            StrTokenizer areas = new StrTokenizer(highlight, "$");
+            for (String area : areas.getTokenArray()) {
+                StrTokenizer coordinates = new StrTokenizer(area, ",");
+                highlightCoordinateList.add(coordinates.getContent());
+            }
+            highlightColor = config.getDefaultHighlightColor();
+        }
+
+        /*
+         * -------------------------------- insert watermark, if it should be used --------------------------------
+         */
+        if (params.get("ignoreWatermark") == null && config.getWatermarkUse()) {
+            File watermarkfile = new File(new URI(config.getWatermarkConfigFilePath()));
+            myWatermark = Watermark.generateWatermark(params, watermarkfile);
+        }
+
+        /*
+         * -------------------------------- retrieve source image from url; scaled images are read from the smallest pyramid level which is
+         * large enough. Highlight coordinates refer to the source image, so highlighted images are always read from the source image.
+         * --------------------------------
+         */
+        URL sourceUrl = sourceImageUrl.toURL();
+        if (highlightCoordinateList == null) {
+            PyramidLevel level = PyramidStore.getInstance().findLevel(sourceUrl, scaleX, scaleY, scaleType, region);
+            if (level != null) {
+                sourceUrl = level.getUrl();
+                if (region != null) {
+                    region = level.getRegion(region);
+                }
+                if (scaleType == ImageManager.SCALE_BY_PERCENT) {
+                    scaleX = scaleX * level.getFactor();
+                    scaleY = scaleY * level.getFactor();
                 }
             }
+        }
+        ImageManager sourcemanager = new ImageManager(sourceUrl);
+        LOGGER.trace("imageManager initialized");
 
-            /*
-             * -------------------------------- prepare target --------------------------------
-             */
-            // change to true if watermark should scale
-            boolean scaleWatermark = false;
-            if (config.getScaleWatermark()) {
-                scaleWatermark = true;
-            }
-            RenderedImage targetImage =
-                    sourcemanager.scaleImageByPixel(scaleX, scaleY, scaleType, angle, highlightCoordinateList, highlightColor, myWatermark,
-                            scaleWatermark, ImageManager.BOTTOM);
-            LOGGER.trace("Creating ImageInterpreter");
-            ImageFileFormat targetFormat = ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension);
-            ImageInterpreter wi = targetFormat.getInterpreter(targetImage); // read file
-            LOGGER.trace("Image stored in " + wi.getClass().getCanonicalName());
+        /*
+         * -------------------------------- prepare target --------------------------------
+         */
+        // change to true if watermark should scale
+        boolean scaleWatermark = false;
+        if (config.getScaleWatermark()) {
+            scaleWatermark = true;
+        }
+        RenderedImage targetImage =
+                sourcemanager.scaleImageByPixel(scaleX, scaleY, scaleType, angle, highlightCoordinateList, highlightColor, myWatermark,
+                        scaleWatermark, ImageManager.BOTTOM, region);
+        LOGGER.trace("Creating ImageInterpreter");
+        ImageInterpreter wi = targetFormat.getInterpreter(targetImage); // read file
+        LOGGER.trace("Image stored in " + wi.getClass().getCanonicalName());
+
+        setOutputParameters(wi, params, config);
+        return wi;
+    }
 
-            /*
-             * -------------------------------- set file name and attachment header from parameter or from configuration
-             * --------------------------------
-             */
-            // StringBuilder targetFileName = new StringBuilder();
-            // if (config.getSendImageAsAttachment()) {
-            // targetFileName.append("attachment; ");
-            // }
-            // targetFileName.append("filename=");
-            //
-            // if (params.get("targetFileName") != null) {
-            // targetFileName.append(params.get("targetFileName"));
-            // } else {
-            // String filename = ContentLibUtil.getCustomizedFileName(config.getDefaultFileNameImages(), "." +
-            // targetFormat.getFileExtension());
-            // targetFileName.append(filename);
-            // }
+    /************************************************************************************
+     * set resolution and compression of the target image as requested
+     * 
+     * @param wi {@link ImageInterpreter} of the target image
+     * @param params request parameters
+     * @param config current {@link ContentServerConfiguration}
+     ************************************************************************************/
+    private void setOutputParameters(ImageInterpreter wi, Map<String, String[]> params, ContentServerConfiguration config) {
+        /*
+         * -------------------------------- resolution --------------------------------
+         */
+        LOGGER.trace("Setting image resolution");
+        if (params.get("resolution") != null) {
+            wi.setXResolution(Float.parseFloat(params.get("resolution")[0]));
+            wi.setYResolution(Float.parseFloat(params.get("resolution")[0]));
+        } else {
+            wi.setXResolution(config.getDefaultResolution());
+            wi.setYResolution(config.getDefaultResolution());
+        }
 
-            /*
-             * -------------------------------- resolution --------------------------------
-             */
-            LOGGER.trace("Setting image resolution");
-            if (params.get("resolution") != null) {
-                wi.setXResolution(Float.parseFloat(params.get("resolution")[0]));
-                wi.setYResolution(Float.parseFloat(params.get("resolution")[0])); // TODO Is this correct?
-            } else {
-                wi.setXResolution(config.getDefaultResolution());
-                wi.setYResolution(config.getDefaultResolution());
+        LOGGER.trace("Setting image compression");
+        if (params.get("compression") != null) {
+            String value = params.get("compression")[0];
+            try {
+                int intvalue = Integer.parseInt(value);
+                wi.setWriterCompressionValue(intvalue);
+            } catch (Exception e) {
+                LOGGER.trace("value is not a number, use default value");
             }
-            LOGGER.trace("Finished setting image resolution");
-            /*
-             * -------------------------------- write target image to stream --------------------------------
-             */
+        }
+    }
 
-            byte[] data = wi.writeToStreamAndByteArray(new ByteArrayOutputStream());
-            ImageHolder returnImage = new ImageHolder(data, wi.getWidth(), wi.getHeight());
-            if (cc != null && highlightColor == null) {
-                cc.putIfAbsent(new Element(myUniqueID + "." + targetExtension, new CacheObject(data)));
-            }
-            LOGGER.trace("Done writing image to stream");
-            return returnImage;
-        } catch (CacheException e) {
-            LOGGER.error("CacheException", e);
-        } catch (MalformedURLException e) {
-            LOGGER.error(e.getMessage(), e);
-        } catch (ImageManipulatorException e) {
-            LOGGER.error(e.getMessage(), e);
-        } catch (WatermarkException e) {
-            LOGGER.error(e.getMessage(), e);
+    /************************************************************************************
+     * set file name and attachment header from parameter or from configuration and the mime type of the response
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @param response {@link HttpServletResponse} of ServletResponse
+     * @param targetFormat {@link ImageFileFormat} of the target image
+     * @param config current {@link ContentServerConfiguration}
+     ************************************************************************************/
+    private void setTargetNameAndMimeType(HttpServletRequest request, HttpServletResponse response, ImageFileFormat targetFormat,
+            ContentServerConfiguration config) {
+        StringBuilder targetFileName = new StringBuilder();
+        if (config.getSendImageAsAttachment()) {
+            targetFileName.append("attachment; ");
         }
+        targetFileName.append("filename=");
 
-        return null;
+        if (request.getParameter("targetFileName") != null) {
+            targetFileName.append(request.getParameter("targetFileName"));
+        } else {
+            String filename = ContentLibUtil.getCustomizedFileName(config.getDefaultFileNameImages(), "." + targetFormat.getFileExtension());
+            targetFileName.append(filename);
+        }
+        LOGGER.trace("Adding targetFile " + targetFileName.toString() + " to response");
+        response.setHeader("Content-Disposition", targetFileName.toString());
+        response.setContentType(targetFormat.getMimeType());
     }
 }
@@ -33,6 +33,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
@@ -49,8 +50,12 @@ import de.unigoettingen.sub.commons.contentlib.pdflib.PDFBookmark;
 import de.unigoettingen.sub.commons.contentlib.pdflib.PDFManager;
 import de.unigoettingen.sub.commons.contentlib.pdflib.PDFManager.PdfPageSize;
 import de.unigoettingen.sub.commons.contentlib.pdflib.PDFPage;
+import de.unigoettingen.sub.commons.contentlib.servlet.HttpCacheHeaders;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler.Lane;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler.Ticket;
 import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
 import de.unigoettingen.sub.commons.util.datasource.UrlImage;
+import de.unigoettingen.sub.commons.util.stream.SpoolOutputStream;
 
 /************************************************************************************
  * pdf action for all kinds of simple pdf handlings first of all validate all request parameters, and than interprete all request parameters for
@@ -86,12 +91,22 @@ public class GetPdfAction extends AbstractGetAction {
         HashMap<Integer, UrlImage> urlMap = new HashMap<Integer, UrlImage>();
         String images = request.getParameter("images");
         StrTokenizer imagetokenizer = new StrTokenizer(images, "$");
+        List<URL> imageUrls = new ArrayList<URL>();
         int i = 1;
         for (String image : imagetokenizer.getTokenArray()) {
             URL imagePath = new URL(config.getRepositoryPathImages() + image);
             PDFPage page = new PDFPage();
             page.setURL(imagePath);
             urlMap.put(i++, page);
+            imageUrls.add(imagePath);
+        }
+
+        /*
+         * answer conditional requests before the pdf is created
+         */
+        HttpCacheHeaders validators = HttpCacheHeaders.forRequest(request, imageUrls.toArray(new URL[imageUrls.size()]));
+        if (validators != null && validators.handleNotModified(request, response)) {
+            return;
         }
 
         /*
@@ -207,13 +222,22 @@ public class GetPdfAction extends AbstractGetAction {
         response.setContentType("application/pdf");
 
         /*
-         * write pdf to response stream
+         * write pdf to a spool file, release the render slot and send the file to the response stream
          */
+        Ticket ticket = RenderScheduler.getInstance().acquire(Lane.PDF);
+        SpoolOutputStream spool = null;
         try {
-            pdfmanager.createPDF(response.getOutputStream(), PdfPageSize.ORIGINAL, myWatermark);
+            spool = new SpoolOutputStream();
+            pdfmanager.createPDF(spool, PdfPageSize.ORIGINAL, myWatermark);
+            ticket.release();
+            spool.writeTo(response.getOutputStream());
         } catch (URISyntaxException e) {
             throw new ContentLibPdfException("error while creating pdf file", e);
         } finally {
+            ticket.release();
+            if (spool != null) {
+                spool.delete();
+            }
             if (response.getOutputStream() != null) {
                 response.getOutputStream().flush();
                 response.getOutputStream().close();
@@ -0,0 +1,306 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.RenderQueueFullException;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ParallelRenderer;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+
+/************************************************************************************
+ * Scheduler limiting the number of heavy renders (decode, scale, encode, pdf generation) running at the same time. Each kind of request has its own
+ * lane with a number of render slots and a bounded number of waiting requests, so a burst of full size images or pdf files can't starve the
+ * thumbnails and can't run the servlet out of memory. Requests which don't get a slot within the queue timeout are rejected with a
+ * {@link RenderQueueFullException}.
+ ************************************************************************************/
+public final class RenderScheduler {
+    private static final Logger LOGGER = Logger.getLogger(RenderScheduler.class);
+
+    private static RenderScheduler instance;
+
+    /************************************************************************************
+     * lanes of the scheduler with their default limits
+     ************************************************************************************/
+    public enum Lane {
+        THUMBNAIL("thumbnail", 8, 200), IMAGE("image", 2, 50), PDF("pdf", 1, 10);
+
+        private final String name;
+        private final int defaultMaxConcurrent;
+        private final int defaultMaxQueue;
+
+        private Lane(String name, int defaultMaxConcurrent, int defaultMaxQueue) {
+            this.name = name;
+            this.defaultMaxConcurrent = defaultMaxConcurrent;
+            this.defaultMaxQueue = defaultMaxQueue;
+        }
+
+        /**
+         * @return the name of the lane as used in the configuration
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final boolean enabled;
+    private final long queueTimeout;
+    private final int retryAfter;
+    private final LaneState[] lanes;
+
+    /************************************************************************************
+     * private constructor, the scheduler is created from the configuration by {@link #getInstance()}
+     ************************************************************************************/
+    private RenderScheduler(ContentServerConfiguration config) {
+        this.enabled = config.getRenderSchedulerUse();
+        this.queueTimeout = TimeUnit.SECONDS.toMillis(config.getRenderQueueTimeout());
+        this.retryAfter = config.getRenderRetryAfter();
+        this.lanes = new LaneState[Lane.values().length];
+        for (Lane lane : Lane.values()) {
+            int maxConcurrent = config.getRenderMaxConcurrent(lane.getName(), lane.defaultMaxConcurrent);
+            int maxQueue = config.getRenderMaxQueue(lane.getName(), lane.defaultMaxQueue);
+            this.lanes[lane.ordinal()] = new LaneState(lane, Math.max(1, maxConcurrent), Math.max(0, maxQueue));
+            if (enabled) {
+                LOGGER.info("render lane " + lane.getName() + ": " + maxConcurrent + " concurrent renders, " + maxQueue + " waiting requests");
+            }
+        }
+    }
+
+    /************************************************************************************
+     * get singleton object
+     ************************************************************************************/
+    public static synchronized RenderScheduler getInstance() {
+        if (instance == null) {
+            instance = new RenderScheduler(ContentServerConfiguration.getInstance());
+            final RenderScheduler scheduler = instance;
+            ParallelRenderer.setLoad(new ParallelRenderer.Load() {
+                @Override
+                public int getOccupancy() {
+                    return scheduler.getOccupancy();
+                }
+            });
+        }
+        return instance;
+    }
+
+    /************************************************************************************
+     * wait for a free render slot of the given lane. The returned {@link Ticket} has to be released after the render, best in a finally block.
+     * 
+     * @param lane the lane of the render
+     * @return the {@link Ticket} for the render slot
+     * @throws RenderQueueFullException if the queue of the lane is full or no slot became free within the queue timeout
+     ************************************************************************************/
+    public Ticket acquire(Lane lane) throws RenderQueueFullException {
+        if (!enabled) {
+            return Ticket.NONE;
+        }
+        return lanes[lane.ordinal()].acquire();
+    }
+
+    /************************************************************************************
+     * take a free render slot of the given lane without waiting, if at least the given number of slots is left free for other requests and no
+     * request is waiting. Used for background work like prefetching, which must not delay requests of readers.
+     * 
+     * @param lane the lane of the render
+     * @param minFree number of slots which have to stay free after taking one
+     * @return the {@link Ticket} for the render slot, null if the lane has no spare slot
+     ************************************************************************************/
+    public Ticket tryAcquire(Lane lane, int minFree) {
+        if (!enabled) {
+            return Ticket.NONE;
+        }
+        return lanes[lane.ordinal()].tryAcquire(minFree);
+    }
+
+    /************************************************************************************
+     * @param lane the lane
+     * @return number of renders of the lane currently running
+     ************************************************************************************/
+    public int getRunning(Lane lane) {
+        return lanes[lane.ordinal()].running.get();
+    }
+
+    /************************************************************************************
+     * @param lane the lane
+     * @return number of requests of the lane currently waiting for a render slot
+     ************************************************************************************/
+    public int getQueueDepth(Lane lane) {
+        return lanes[lane.ordinal()].waiting.get();
+    }
+
+    /************************************************************************************
+     * @param lane the lane
+     * @return number of render slots of the lane
+     ************************************************************************************/
+    public int getMaxConcurrent(Lane lane) {
+        return lanes[lane.ordinal()].maxConcurrent;
+    }
+
+    /************************************************************************************
+     * @return number of renders of all lanes currently running or waiting for a render slot
+     ************************************************************************************/
+    public int getOccupancy() {
+        int occupancy = 0;
+        for (LaneState state : lanes) {
+            occupancy += state.running.get() + state.waiting.get();
+        }
+        return occupancy;
+    }
+
+    /************************************************************************************
+     * @return true, if renders are limited by the scheduler
+     ************************************************************************************/
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /************************************************************************************
+     * get the statistics of all lanes as text, one line per lane
+     * 
+     * @return the statistics
+     ************************************************************************************/
+    public String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("enabled=").append(enabled).append('\n');
+        for (LaneState state : lanes) {
+            state.appendStatistics(sb);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /************************************************************************************
+     * render slot of a lane; has to be released once after the render
+     ************************************************************************************/
+    public static class Ticket {
+        static final Ticket NONE = new Ticket(null);
+
+        private final LaneState state;
+        private final AtomicInteger released = new AtomicInteger();
+
+        private Ticket(LaneState state) {
+            this.state = state;
+        }
+
+        /**
+         * give the render slot back to the lane; calling this more than once has no effect
+         */
+        public void release() {
+            if (state != null && released.compareAndSet(0, 1)) {
+                state.running.decrementAndGet();
+                state.slots.release();
+            }
+        }
+    }
+
+    /************************************************************************************
+     * slots, queue and statistics of a single lane
+     ************************************************************************************/
+    private final class LaneState {
+        private final Lane lane;
+        private final int maxConcurrent;
+        private final int maxQueue;
+        private final Semaphore slots;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong timedOut = new AtomicLong();
+        private final AtomicLong totalWaitTime = new AtomicLong();
+        private final AtomicLong maxWaitTime = new AtomicLong();
+
+        LaneState(Lane lane, int maxConcurrent, int maxQueue) {
+            this.lane = lane;
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueue = maxQueue;
+            this.slots = new Semaphore(maxConcurrent, true);
+        }
+
+        Ticket acquire() throws RenderQueueFullException {
+            // a free slot is taken without queueing
+            if (!slots.tryAcquire()) {
+                if (waiting.incrementAndGet() > maxQueue) {
+                    waiting.decrementAndGet();
+                    rejected.incrementAndGet();
+                    throw new RenderQueueFullException("render queue '" + lane.getName() + "' is full", retryAfter);
+                }
+                long start = System.currentTimeMillis();
+                boolean acquired = false;
+                try {
+                    acquired = slots.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waiting.decrementAndGet();
+                }
+                long waited = System.currentTimeMillis() - start;
+                if (!acquired) {
+                    timedOut.incrementAndGet();
+                    throw new RenderQueueFullException("no render slot in queue '" + lane.getName() + "' within " + waited + " ms", retryAfter);
+                }
+                totalWaitTime.addAndGet(waited);
+                long max = maxWaitTime.get();
+                while (waited > max && !maxWaitTime.compareAndSet(max, waited)) {
+                    max = maxWaitTime.get();
+                }
+            }
+            admitted.incrementAndGet();
+            running.incrementAndGet();
+            return new Ticket(this);
+        }
+
+        Ticket tryAcquire(int minFree) {
+            if (waiting.get() > 0 || !slots.tryAcquire()) {
+                return null;
+            }
+            // the check after taking the slot can't be outrun by a concurrent request
+            if (slots.availablePermits() < minFree) {
+                slots.release();
+                return null;
+            }
+            admitted.incrementAndGet();
+            running.incrementAndGet();
+            return new Ticket(this);
+        }
+
+        void appendStatistics(StringBuilder sb) {
+            long count = admitted.get();
+            sb.append(lane.getName());
+            sb.append(": running=").append(running.get()).append('/').append(maxConcurrent);
+            sb.append(", queued=").append(waiting.get()).append('/').append(maxQueue);
+            sb.append(", admitted=").append(count);
+            sb.append(", rejected=").append(rejected.get());
+            sb.append(", timedOut=").append(timedOut.get());
+            sb.append(", avgWaitMs=").append(count == 0 ? 0 : totalWaitTime.get() / count);
+            sb.append(", maxWaitMs=").append(maxWaitTime.get());
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManipulatorException;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageFileFormat;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageInfo;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManager;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.util.stream.StreamUtils;
+
+/************************************************************************************
+ * Normalized description of a rendered image, used as key for the content and thumbnail cache. The key is built from the resolved source url, the
+ * modification time and size of the source file and the size of the target image as calculated by
+ * {@link ImageManager#getScaling(int, int, float, float, int, int, int)}, so that equivalent requests (e.g. scale=100 and the width of the source
+ * image) share one cache entry and a changed source file is not served from the cache. Further the region, rotation, output format, compression,
+ * resolution and watermark are part of the key.
+ * 
+ * If a width bucket is configured, requested widths are rounded up to the next multiple of the bucket, so that requests for nearly the same width
+ * are rendered and cached only once.
+ ************************************************************************************/
+public final class RenderSpec {
+    private static final Logger LOGGER = Logger.getLogger(RenderSpec.class);
+
+    /* header information of recently requested source files, so that the header is not read again on every cache hit */
+    private static final int MAX_SOURCE_INFOS = 1000;
+    private static final Map<String, SourceInfo> SOURCE_INFOS = Collections.synchronizedMap(new LinkedHashMap<String, SourceInfo>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SourceInfo> eldest) {
+            return size() > MAX_SOURCE_INFOS;
+        }
+    });
+
+    private int scaleX = 100;
+    private int scaleY = 100;
+    private int scaleType = ImageManager.SCALE_BY_PERCENT;
+    private int angle = 0;
+    private Rectangle region = null;
+    private String spec;
+    private String cacheKey;
+    private int targetWidth = -1;
+    private int targetHeight = -1;
+    private String sourceRegionKey = "";
+    private String derivationKey = null;
+    private int quality = -1;
+    private boolean versioned = false;
+
+    /************************************************************************************
+     * create the render spec for the given request
+     * 
+     * @param sourceImageUrl the resolved url of the source image
+     * @param params request parameters
+     * @param config current {@link ContentServerConfiguration}
+     ************************************************************************************/
+    public RenderSpec(URI sourceImageUrl, Map<String, String[]> params, ContentServerConfiguration config) {
+        this(sourceImageUrl, params, config, true);
+    }
+
+    /************************************************************************************
+     * create the render spec for the given request
+     * 
+     * @param sourceImageUrl the resolved url of the source image
+     * @param params request parameters
+     * @param config current {@link ContentServerConfiguration}
+     * @param probeSource false to build the spec without looking for the source file, e.g. for a source known to be missing; the spec is then
+     *            built from the requested values only
+     ************************************************************************************/
+    public RenderSpec(URI sourceImageUrl, Map<String, String[]> params, ContentServerConfiguration config, boolean probeSource) {
+        parseParameters(params);
+
+        SourceInfo source = probeSource ? getSourceInfo(sourceImageUrl) : null;
+        ImageInfo info = source == null ? null : source.info;
+
+        /*
+         * -------------------------------- snap the requested width to the width bucket --------------------------------
+         */
+        int bucket = config.getCacheWidthBucket();
+        if (bucket > 1 && scaleType == ImageManager.SCALE_BY_WIDTH && scaleY == 0) {
+            int snapped = ((scaleX + bucket - 1) / bucket) * bucket;
+            if (info != null) {
+                // never scale up because of snapping
+                int sourceWidth = region == null ? info.getWidth() : Math.min(region.width, info.getWidth());
+                if (scaleX <= sourceWidth) {
+                    snapped = Math.min(snapped, sourceWidth);
+                }
+            }
+            LOGGER.trace("snapped width " + scaleX + " to " + snapped);
+            scaleX = snapped;
+        }
+
+        /*
+         * -------------------------------- build the normalized spec --------------------------------
+         */
+        StringBuilder sb = new StringBuilder();
+        sb.append("src=").append(sourceImageUrl);
+        sb.append("|v=").append(source == null ? "-" : source.lastModified + "-" + source.length);
+        versioned = source != null;
+        sb.append("|").append(getNormalizedGeometry(info));
+        sb.append("|a=").append(angle % 360);
+        sb.append("|f=").append(StringUtils.lowerCase(getFirst(params, "format")));
+        sb.append("|c=").append(StringUtils.trimToEmpty(getFirst(params, "compression")));
+        String resolution = getFirst(params, "resolution");
+        sb.append("|res=").append(resolution != null ? resolution.trim() : String.valueOf(config.getDefaultResolution()));
+        boolean watermark = params.get("ignoreWatermark") == null && config.getWatermarkUse();
+        if (watermark) {
+            sb.append("|wm=");
+            /* the parameters Watermark.generateWatermark reads, sorted */
+            Map<String, String> watermarkParams = new TreeMap<String, String>();
+            for (String key : params.keySet()) {
+                if (key.equals("watermarkText") || key.contains("watermarkid")) {
+                    watermarkParams.put(key, params.get(key)[0]);
+                }
+            }
+            sb.append(watermarkParams);
+        }
+        spec = sb.toString();
+        cacheKey = getCacheKeyPrefix(params) + "_" + DigestUtils.md5Hex(spec);
+        LOGGER.trace("render spec " + spec + " -> " + cacheKey);
+
+        /*
+         * -------------------------------- renders which only differ in size and resolution can be derived from each other, unless a watermark or
+         * highlighting is drawn at the target size or the rotation changes the bounds. Lossless renders are derived from lossless renders only,
+         * lossy renders from renders of the same format, see getQuality() --------------------------------
+         */
+        if (targetWidth > 0 && angle % 90 == 0 && !watermark && params.get("highlight") == null) {
+            ImageFileFormat format = ImageFileFormat.getImageFileFormatFromFileExtension(getFirst(params, "format"));
+            String encoding;
+            if (format == ImageFileFormat.PNG || format == ImageFileFormat.TIFF) {
+                encoding = "lossless";
+                quality = 100;
+            } else {
+                encoding = String.valueOf(format);
+                try {
+                    quality = Integer.parseInt(StringUtils.trimToEmpty(getFirst(params, "compression")));
+                } catch (NumberFormatException e) {
+                    // default compression of the interpreter
+                    quality = -1;
+                }
+            }
+            derivationKey =
+                    "src=" + sourceImageUrl + "|v=" + source.lastModified + "-" + source.length + sourceRegionKey + "|a=" + angle % 360 + "|enc="
+                            + encoding;
+        }
+    }
+
+    /************************************************************************************
+     * read scaling, rotation and region from the request parameters the same way as the image action does
+     ************************************************************************************/
+    private void parseParameters(Map<String, String[]> params) {
+        if (params.get("rotate") != null) {
+            angle = Integer.parseInt(params.get("rotate")[0]);
+        }
+        if (params.get("scale") != null) {
+            scaleX = Integer.parseInt(params.get("scale")[0]);
+            scaleY = scaleX;
+            scaleType = ImageManager.SCALE_BY_PERCENT;
+        }
+        if (params.get("width") != null && params.get("height") != null) {
+            scaleX = Integer.parseInt(params.get("width")[0]);
+            scaleY = Integer.parseInt(params.get("height")[0]);
+            scaleType = ImageManager.SCALE_TO_BOX;
+        } else if (params.get("width") != null) {
+            scaleX = Integer.parseInt(params.get("width")[0]);
+            scaleY = 0;
+            scaleType = ImageManager.SCALE_BY_WIDTH;
+        } else if (params.get("height") != null) {
+            scaleY = Integer.parseInt(params.get("height")[0]);
+            scaleX = 0;
+            scaleType = ImageManager.SCALE_BY_HEIGHT;
+        }
+        if (params.get("region") != null) {
+            String[] values = params.get("region")[0].split(",");
+            region = new Rectangle(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()), Integer.parseInt(values[2].trim()),
+                    Integer.parseInt(values[3].trim()));
+        }
+    }
+
+    /************************************************************************************
+     * region and size of the target image; if the size of the source image is known, the region is clipped to the image and the size of the scaled
+     * image is calculated, else the requested values are used
+     ************************************************************************************/
+    private String getNormalizedGeometry(ImageInfo info) {
+        if (info != null) {
+            Rectangle bounds = new Rectangle(0, 0, info.getWidth(), info.getHeight());
+            Rectangle sourceRegion = region == null ? bounds : region.intersection(bounds);
+            if (!sourceRegion.isEmpty()) {
+                try {
+                    float[] scaling =
+                            ImageManager.getScaling(sourceRegion.width, sourceRegion.height, info.getXResolution(), info.getYResolution(), scaleX,
+                                    scaleY, scaleType);
+                    long width = Math.round(sourceRegion.width * (double) scaling[0]);
+                    long height = Math.round(sourceRegion.height * (double) scaling[1]);
+                    String geometry = "size=" + width + "x" + height;
+                    if (!sourceRegion.equals(bounds)) {
+                        sourceRegionKey = "|r=" + sourceRegion.x + "," + sourceRegion.y + "," + sourceRegion.width + "," + sourceRegion.height;
+                        geometry += sourceRegionKey;
+                    }
+                    targetWidth = (int) width;
+                    targetHeight = (int) height;
+                    return geometry;
+                } catch (ImageManipulatorException e) {
+                    LOGGER.debug(e.getMessage());
+                }
+            }
+        }
+        String geometry = "scale=" + scaleType + ":" + scaleX + "x" + scaleY;
+        if (region != null) {
+            geometry += "|r=" + region.x + "," + region.y + "," + region.width + "," + region.height;
+        }
+        return geometry;
+    }
+
+    /************************************************************************************
+     * the cache key starts with the last two segments of the source path (usually the identifier of the work and the image name), so that all
+     * images of a work can be found and removed from the cache
+     ************************************************************************************/
+    private static String getCacheKeyPrefix(Map<String, String[]> params) {
+        String pi = null;
+        String imageNo = "-";
+        String sourcepath = getFirst(params, "sourcepath");
+        if (sourcepath != null) {
+            String[] sourcePathSplit = sourcepath.split("[/]");
+            if (sourcePathSplit.length >= 2) {
+                pi = sourcePathSplit[sourcePathSplit.length - 2];
+            }
+            imageNo = sourcePathSplit[sourcePathSplit.length - 1];
+            if (imageNo.indexOf('.') > 0) {
+                imageNo = imageNo.substring(0, imageNo.indexOf('.'));
+            }
+        }
+        return pi + "_" + imageNo;
+    }
+
+    /************************************************************************************
+     * get size information of the source file; the image header is only read again if the file has changed
+     * 
+     * @return the {@link SourceInfo} or null, if the source is no local file
+     ************************************************************************************/
+    private static SourceInfo getSourceInfo(URI sourceImageUrl) {
+        try {
+            if (!"file".equals(sourceImageUrl.getScheme())) {
+                return null;
+            }
+            URL url = sourceImageUrl.toURL();
+            File file = StreamUtils.getFileFromUrl(url);
+            if (!file.isFile()) {
+                return null;
+            }
+            String path = file.getAbsolutePath();
+            SourceInfo source = SOURCE_INFOS.get(path);
+            if (source == null || source.lastModified != file.lastModified() || source.length != file.length()) {
+                source = new SourceInfo(file.lastModified(), file.length(), ImageFileFormat.getImageInfo(url, null, null, null, null));
+                SOURCE_INFOS.put(path, source);
+            }
+            return source;
+        } catch (IOException e) {
+            LOGGER.debug("can't read source information for " + sourceImageUrl + ": " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("can't read source information for " + sourceImageUrl + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static String getFirst(Map<String, String[]> params, String name) {
+        String[] values = params.get(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    /**
+     * @return true, if the cache key contains modification time and size of the source file, so a changed source gets a new key
+     */
+    public boolean isVersioned() {
+        return versioned;
+    }
+
+    /**
+     * @return the key of the rendered image in the cache, without file extension
+     */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * @return width of the target image before rotation, -1 if the size of the source is unknown
+     */
+    public int getTargetWidth() {
+        return targetWidth;
+    }
+
+    /**
+     * @return height of the target image before rotation, -1 if the size of the source is unknown
+     */
+    public int getTargetHeight() {
+        return targetHeight;
+    }
+
+    /**
+     * @return key of the renders of the same source, region and rotation without watermark, which can be scaled into each other; null if this
+     *         render can't be derived from another one
+     */
+    public String getDerivationKey() {
+        return derivationKey;
+    }
+
+    /**
+     * @return quality of the encoded image: 100 for lossless formats, the requested compression value for lossy formats or -1 for the default
+     *         compression; a render can only be derived from a render of the same derivation key with the same or a higher quality
+     */
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * @return requested width, height or percent value (after snapping to the width bucket)
+     */
+    public int getScaleX() {
+        return scaleX;
+    }
+
+    /**
+     * @return requested height or percent value
+     */
+    public int getScaleY() {
+        return scaleY;
+    }
+
+    /**
+     * @return one of the SCALE_* constants of {@link ImageManager}
+     */
+    public int getScaleType() {
+        return scaleType;
+    }
+
+    /**
+     * @return rotation angle
+     */
+    public int getAngle() {
+        return angle;
+    }
+
+    /**
+     * @return requested region of the source image or null for the whole image
+     */
+    public Rectangle getRegion() {
+        return region == null ? null : new Rectangle(region);
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    /************************************************************************************
+     * modification time, size and header information of a source file
+     ************************************************************************************/
+    private static final class SourceInfo {
+        private final long lastModified;
+        private final long length;
+        private final ImageInfo info;
+
+        private SourceInfo(long lastModified, long length, ImageInfo info) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.info = info;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/************************************************************************************
+ * action writing the queue depth and wait time statistics of the {@link RenderScheduler} lanes and the heap tier of the caches as plain text
+ ************************************************************************************/
+public class RenderStatsAction implements Action {
+
+    /************************************************************************************
+     * write the statistics of the render scheduler to the response
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @param response {@link HttpServletResponse} for writing to response output stream
+     * @throws IOException
+     ************************************************************************************/
+    @Override
+    public void run(ServletContext servletContext, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.write(RenderScheduler.getInstance().getStatistics());
+        writer.write(CacheMemoryController.getInstance().getStatistics());
+        writer.write(CacheAdmissionFilter.getStatistics());
+        writer.write(CacheRevalidator.getInstance().getStatistics());
+        if (ContentServer.getThumbnailStore() != null) {
+            writer.write(ContentServer.getThumbnailStore().getStatistics());
+        }
+        writer.flush();
+    }
+
+    /************************************************************************************
+     * this action has no parameters
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     ************************************************************************************/
+    @Override
+    public void validateParameters(HttpServletRequest request) throws IllegalArgumentException {
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.util.stream.StreamUtils;
+
+/************************************************************************************
+ * Short lived cache of source images which are missing or larger than maxFileLength, so that repeated requests for them are answered without
+ * searching the directory for the file and without reading or rendering anything. An entry is valid for the configured time and as long as the
+ * modification time of the directory of the source is unchanged, so a file which is added or renamed in the directory is found at once. Only local
+ * files are checked.
+ ************************************************************************************/
+public final class SourceFailureCache {
+    private static final Logger LOGGER = Logger.getLogger(SourceFailureCache.class);
+
+    /* number of failed sources kept, the least recently requested one is dropped */
+    private static final int MAX_FAILURES = 10000;
+    /* number of error images kept per failed source */
+    private static final int MAX_RESPONSES = 8;
+
+    private static final Map<String, Failure> FAILURES = Collections.synchronizedMap(new LinkedHashMap<String, Failure>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+            return size() > MAX_FAILURES;
+        }
+    });
+
+    private SourceFailureCache() {
+    }
+
+    /************************************************************************************
+     * check if the source image is missing or too large; a known failure is returned from the cache, otherwise the file is looked up and a failure
+     * is remembered
+     * 
+     * @param sourceImageUrl {@link URI} of the source image
+     * @return the {@link Failure}, null if the source can be read or the cache is not used
+     ************************************************************************************/
+    public static Failure check(URI sourceImageUrl) {
+        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+        int ttl = config.getSourceFailureCacheTtl();
+        if (ttl <= 0 || !"file".equals(sourceImageUrl.getScheme())) {
+            return null;
+        }
+        try {
+            String key = sourceImageUrl.toString();
+            File directory = new File(URLDecoder.decode(sourceImageUrl.toURL().getFile(), System.getProperty("file.encoding"))).getParentFile();
+            long directoryModified = directory == null ? 0 : directory.lastModified();
+            long now = System.currentTimeMillis();
+            Failure failure = FAILURES.get(key);
+            if (failure != null && failure.expires > now && failure.directoryModified == directoryModified) {
+                return failure;
+            }
+
+            File file = StreamUtils.getFileFromUrl(sourceImageUrl.toURL());
+            int maxFileLength = config.getMaxFileLength();
+            if (!file.isFile()) {
+                failure = new Failure(true, directoryModified, now + ttl * 1000L);
+            } else if (maxFileLength != 0 && file.length() > maxFileLength) {
+                failure = new Failure(false, directoryModified, now + ttl * 1000L);
+            } else {
+                FAILURES.remove(key);
+                return null;
+            }
+            LOGGER.debug("source image " + (failure.isMissing() ? "missing" : "too large") + ": " + key);
+            FAILURES.put(key, failure);
+            return failure;
+        } catch (IOException e) {
+            LOGGER.debug("can't check source image " + sourceImageUrl + ": " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("can't check source image " + sourceImageUrl + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /************************************************************************************
+     * a missing or too large source image; the error images rendered for it are kept per cache key of the request, so per size and format
+     ************************************************************************************/
+    public static final class Failure {
+        private final boolean missing;
+        private final long directoryModified;
+        private final long expires;
+        private final Map<String, byte[]> responses = new LinkedHashMap<String, byte[]>(4, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > MAX_RESPONSES;
+            }
+        };
+
+        private Failure(boolean missing, long directoryModified, long expires) {
+            this.missing = missing;
+            this.directoryModified = directoryModified;
+            this.expires = expires;
+        }
+
+        /**
+         * @return true if the source image doesn't exist, false if it is larger than maxFileLength
+         */
+        public boolean isMissing() {
+            return missing;
+        }
+
+        /**
+         * @param cacheKey cache key of the request including the file extension of the target format
+         * @return the rendered error image for the request, null if it wasn't rendered yet
+         */
+        public synchronized byte[] getResponse(String cacheKey) {
+            return responses.get(cacheKey);
+        }
+
+        /**
+         * @param cacheKey cache key of the request including the file extension of the target format
+         * @param response the rendered error image for the request
+         */
+        public synchronized void setResponse(String cacheKey, byte[] response) {
+            responses.put(cacheKey, response);
+        }
+    }
+}
@@ -180,6 +180,15 @@ public final class ContentServerConfiguration {
         return config.getBoolean("thumbnailCache[@useShortFileNames]");
     }
 
+    /************************************************************************************
+     * get the size of the off-heap store for rendered thumbnails in front of the thumbnail cache
+     * 
+     * @return size in MB, 0 if no off-heap store is used
+     ************************************************************************************/
+    public Long getThumbnailCacheOffHeapSize() {
+        return config.getLong("thumbnailCache[@offHeapSize]", 0);
+    }
+
     /************************************************************************************
      * get boolean if pdf cache should be used or not
      * 
@@ -401,4 +410,278 @@ public final class ContentServerConfiguration {
         return config.getBoolean("watermark[@scale]", false);
     }
 
+    /************************************************************************************
+     * get boolean if heavy renders should be limited by the render scheduler
+     * 
+     * @return value of renderScheduler[@use] as Boolean
+     ************************************************************************************/
+    public Boolean getRenderSchedulerUse() {
+        return config.getBoolean("renderScheduler[@use]", false);
+    }
+
+    /************************************************************************************
+     * get the maximum time a render request waits for a free render slot before it is rejected
+     * 
+     * @return queue timeout in seconds
+     ************************************************************************************/
+    public Integer getRenderQueueTimeout() {
+        return config.getInt("renderScheduler[@queueTimeout]", 30);
+    }
+
+    /************************************************************************************
+     * get the value of the Retry-After header for rejected render requests
+     * 
+     * @return retry after in seconds
+     ************************************************************************************/
+    public Integer getRenderRetryAfter() {
+        return config.getInt("renderScheduler[@retryAfter]", 10);
+    }
+
+    /************************************************************************************
+     * get the number of renders of the given lane (thumbnail, image or pdf) that may run at the same time
+     * 
+     * @param lane name of the lane
+     * @param defaultValue value to use, if nothing is configured for the lane
+     * @return maximum number of concurrent renders
+     ************************************************************************************/
+    public Integer getRenderMaxConcurrent(String lane, int defaultValue) {
+        return config.getInt("renderScheduler." + lane + "[@maxConcurrent]", defaultValue);
+    }
+
+    /************************************************************************************
+     * get the number of render requests of the given lane (thumbnail, image or pdf) that may wait for a render slot
+     * 
+     * @param lane name of the lane
+     * @param defaultValue value to use, if nothing is configured for the lane
+     * @return maximum number of waiting render requests
+     ************************************************************************************/
+    public Integer getRenderMaxQueue(String lane, int defaultValue) {
+        return config.getInt("renderScheduler." + lane + "[@maxQueue]", defaultValue);
+    }
+
+    /************************************************************************************
+     * get boolean if images should be rendered from pre-scaled pyramid levels
+     * 
+     * @return value of imagePyramid[@use] as Boolean
+     ************************************************************************************/
+    public Boolean getPyramidUse() {
+        return config.getBoolean("imagePyramid[@use]", false);
+    }
+
+    /************************************************************************************
+     * get path of the pyramid level store; if empty, the levels are stored next to the source images
+     * 
+     * @return path of the pyramid store as {@link String}
+     ************************************************************************************/
+    public String getPyramidPath() {
+        return config.getString("imagePyramid[@path]", "");
+    }
+
+    /************************************************************************************
+     * get file format of the pyramid levels (jpg, png or tif)
+     * 
+     * @return file extension of the level format
+     ************************************************************************************/
+    public String getPyramidFormat() {
+        return config.getString("imagePyramid[@format]", "jpg");
+    }
+
+    /************************************************************************************
+     * get compression value for the pyramid levels
+     * 
+     * @return compression value
+     ************************************************************************************/
+    public Integer getPyramidCompression() {
+        return config.getInt("imagePyramid[@compression]", 90);
+    }
+
+    /************************************************************************************
+     * get the minimum size of the longer side of the smallest pyramid level
+     * 
+     * @return minimum size in pixel
+     ************************************************************************************/
+    public Integer getPyramidMinSize() {
+        return config.getInt("imagePyramid[@minSize]", 256);
+    }
+
+    /************************************************************************************
+     * get the width bucket for the cache keys of the content and thumbnail cache; requested widths are rounded up to a multiple of this value
+     * 
+     * @return width bucket in pixel, 0 if widths are not rounded
+     ************************************************************************************/
+    public Integer getCacheWidthBucket() {
+        return config.getInt("cacheKey[@widthBucket]", 0);
+    }
+
+    /************************************************************************************
+     * get boolean if ETag, Last-Modified and Cache-Control headers should be sent and conditional requests answered with 304
+     * 
+     * @return value of httpCaching[@use] as Boolean
+     ************************************************************************************/
+    public Boolean getHttpCachingUse() {
+        return config.getBoolean("httpCaching[@use]", true);
+    }
+
+    /************************************************************************************
+     * get the max-age of the Cache-Control header
+     * 
+     * @return max-age in seconds
+     ************************************************************************************/
+    public Integer getHttpCachingMaxAge() {
+        return config.getInt("httpCaching[@maxAge]", 86400);
+    }
+
+    /************************************************************************************
+     * scale images down from larger renders of the same source in the content or thumbnail cache instead of reading the source image
+     * 
+     * @return true, if images are derived from larger cached renders
+     ************************************************************************************/
+    public Boolean getCacheDeriveUse() {
+        return config.getBoolean("cacheDerive[@use]", false);
+    }
+
+    /************************************************************************************
+     * render the pages following a requested mets image into the cache in the background
+     * 
+     * @return true, if following pages are prefetched
+     ************************************************************************************/
+    public Boolean getPagePrefetchUse() {
+        return config.getBoolean("pagePrefetch[@use]", false);
+    }
+
+    /************************************************************************************
+     * get the number of following pages which are prefetched
+     * 
+     * @return number of pages
+     ************************************************************************************/
+    public int getPagePrefetchPages() {
+        return config.getInt("pagePrefetch[@pages]", 2);
+    }
+
+    /************************************************************************************
+     * get the time missing and too large source images are remembered
+     * 
+     * @return time in seconds, 0 if failed sources are not remembered
+     ************************************************************************************/
+    public int getSourceFailureCacheTtl() {
+        return config.getInt("sourceFailureCache[@ttl]", 0);
+    }
+
+    /************************************************************************************
+     * detect colour scans which are effectively greyscale and render them as greyscale images
+     * 
+     * @return true, if colour scans are checked
+     ************************************************************************************/
+    public Boolean getGreyDetectionUse() {
+        return config.getBoolean("greyDetection[@use]", false);
+    }
+
+    /************************************************************************************
+     * get the maximal chroma of pixels of greyscale images, the largest difference between the red, green and blue values of a pixel
+     * 
+     * @return threshold between 0 and 255
+     ************************************************************************************/
+    public int getGreyDetectionThreshold() {
+        return config.getInt("greyDetection[@threshold]", 8);
+    }
+
+    /************************************************************************************
+     * get boolean if large target images should be drawn in parallel bands
+     * 
+     * @return value of parallelRender[@use] as Boolean
+     ************************************************************************************/
+    public Boolean getParallelRenderUse() {
+        return config.getBoolean("parallelRender[@use]", false);
+    }
+
+    /************************************************************************************
+     * get the number of threads drawing the bands of large target images, shared by all renders
+     * 
+     * @return number of threads, 0 for the number of processors
+     ************************************************************************************/
+    public int getParallelRenderThreads() {
+        return config.getInt("parallelRender[@threads]", 0);
+    }
+
+    /************************************************************************************
+     * get the size of the smallest target image drawn in parallel bands
+     * 
+     * @return number of pixels of the target image
+     ************************************************************************************/
+    public long getParallelRenderMinPixels() {
+        return config.getLong("parallelRender[@minPixels]", 1000000L);
+    }
+
+    /************************************************************************************
+     * get the soft expiry of the content and thumbnail cache; older entries are still served, but revalidated in the background
+     * 
+     * @return soft expiry in seconds, 0 if entries are not revalidated
+     ************************************************************************************/
+    public Integer getCacheRevalidationSoftExpiry() {
+        return config.getInt("cacheRevalidation[@softExpiry]", 0);
+    }
+
+    /************************************************************************************
+     * get the number of background threads revalidating stale cache entries
+     * 
+     * @return number of threads
+     ************************************************************************************/
+    public Integer getCacheRevalidationThreads() {
+        return config.getInt("cacheRevalidation[@threads]", 1);
+    }
+
+    /************************************************************************************
+     * put rendered images into the content and thumbnail cache only if they are requested more often than the entries they would push out
+     * 
+     * @return true, if the frequency based cache admission is used
+     ************************************************************************************/
+    public Boolean getCacheAdmissionUse() {
+        return config.getBoolean("cacheAdmission[@use]", false);
+    }
+
+    /************************************************************************************
+     * get the number of cache keys the request frequencies are counted for
+     * 
+     * @return number of keys
+     ************************************************************************************/
+    public Integer getCacheAdmissionSize() {
+        return config.getInt("cacheAdmission[@size]", 100000);
+    }
+
+    /************************************************************************************
+     * shrink the heap tier of the content and thumbnail cache if the old generation is getting full
+     * 
+     * @return true, if the cache memory control is used
+     ************************************************************************************/
+    public Boolean getCacheMemoryControlUse() {
+        return config.getBoolean("cacheMemoryControl[@use]", false);
+    }
+
+    /************************************************************************************
+     * get the occupancy of the old generation above which the heap tier of the caches is shrunk
+     * 
+     * @return threshold between 0 and 1
+     ************************************************************************************/
+    public Double getCacheMemoryControlThreshold() {
+        return config.getDouble("cacheMemoryControl[@threshold]", 0.8);
+    }
+
+    /************************************************************************************
+     * get the interval between two checks of the old generation
+     * 
+     * @return interval in seconds
+     ************************************************************************************/
+    public Integer getCacheMemoryControlInterval() {
+        return config.getInt("cacheMemoryControl[@interval]", 10);
+    }
+
+    /************************************************************************************
+     * get the size below which the heap tier of a cache is not shrunk
+     * 
+     * @return minimal heap tier size in MB
+     ************************************************************************************/
+    public Integer getCacheMemoryControlMinSize() {
+        return config.getInt("cacheMemoryControl[@minSize]", 16);
+    }
+
 }
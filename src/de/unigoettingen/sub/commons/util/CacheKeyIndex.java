@@ -0,0 +1,128 @@
+package de.unigoettingen.sub.commons.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+
+/**
+ * Index from identifier to the keys of an Ehcache, kept up to date as a listener of the cache. Cache keys are written by {@code RenderSpec} as
+ * identifier of the work, image name and hash of the render parameters, separated by underscores; since the identifier may contain underscores
+ * itself, it is taken as everything before the last two underscores. So the keys of an identifier are found without looking at any other key of
+ * the cache.
+ */
+public class CacheKeyIndex extends CacheEventListenerAdapter {
+
+    private final Map<String, Set<String>> keysByIdentifier = new HashMap<String, Set<String>>();
+
+    /**
+     * Adds the given keys, used to fill the index with the elements which were in the cache before the index was registered.
+     *
+     * @param keys keys of the cache
+     */
+    public synchronized void addAll(Collection<?> keys) {
+        for (Object key : keys) {
+            add(key);
+        }
+    }
+
+    /**
+     * Returns the keys of the given identifier.
+     *
+     * @param identifier the identifier
+     * @return the keys, an empty list if there are none
+     */
+    public synchronized List<String> getKeys(String identifier) {
+        Set<String> keys = keysByIdentifier.get(identifier);
+        return keys == null ? new ArrayList<String>() : new ArrayList<String>(keys);
+    }
+
+    /**
+     * @return number of identifiers in the index
+     */
+    public synchronized int size() {
+        return keysByIdentifier.size();
+    }
+
+    private void add(Object key) {
+        String identifier = getIdentifier(key);
+        if (identifier == null) {
+            return;
+        }
+        Set<String> keys = keysByIdentifier.get(identifier);
+        if (keys == null) {
+            keys = new HashSet<String>(4);
+            keysByIdentifier.put(identifier, keys);
+        }
+        keys.add((String) key);
+    }
+
+    private void remove(Object key) {
+        String identifier = getIdentifier(key);
+        if (identifier == null) {
+            return;
+        }
+        Set<String> keys = keysByIdentifier.get(identifier);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByIdentifier.remove(identifier);
+            }
+        }
+    }
+
+    /**
+     * @return the identifier part of the given key, null if the key is not written by {@code RenderSpec}
+     */
+    private static String getIdentifier(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String keyString = (String) key;
+        int hashStart = keyString.lastIndexOf('_');
+        int imageStart = hashStart > 0 ? keyString.lastIndexOf('_', hashStart - 1) : -1;
+        return imageStart > 0 ? keyString.substring(0, imageStart) : null;
+    }
+
+    @Override
+    public synchronized void notifyElementPut(Ehcache cache, Element element) {
+        add(element.getObjectKey());
+    }
+
+    @Override
+    public synchronized void notifyElementUpdated(Ehcache cache, Element element) {
+        add(element.getObjectKey());
+    }
+
+    @Override
+    public synchronized void notifyElementRemoved(Ehcache cache, Element element) {
+        remove(element.getObjectKey());
+    }
+
+    @Override
+    public synchronized void notifyElementExpired(Ehcache cache, Element element) {
+        remove(element.getObjectKey());
+    }
+
+    @Override
+    public synchronized void notifyElementEvicted(Ehcache cache, Element element) {
+        remove(element.getObjectKey());
+    }
+
+    @Override
+    public synchronized void notifyRemoveAll(Ehcache cache) {
+        keysByIdentifier.clear();
+    }
+
+    @Override
+    public synchronized void dispose() {
+        keysByIdentifier.clear();
+    }
+}
@@ -6,12 +6,46 @@ public class CacheObject implements Serializable {
 
     private static final long serialVersionUID = 5644747498518951177L;
     private byte[] data;
+    /* objects written before these fields existed are read with 0, i.e. as old and with unknown source */
+    private long created;
+    private long sourceLastModified;
 
     public CacheObject(byte[] in) {
+        this(in, 0);
+    }
+
+    /**
+     * @param in the cached data
+     * @param sourceLastModified modification time of the source the data was created from, 0 if unknown
+     */
+    public CacheObject(byte[] in, long sourceLastModified) {
         data = in;
+        created = System.currentTimeMillis();
+        this.sourceLastModified = sourceLastModified;
     }
 
     public byte[] getData() {
         return data;
     }
+
+    /**
+     * @return size of the cached data in bytes
+     */
+    public int getSize() {
+        return data == null ? 0 : data.length;
+    }
+
+    /**
+     * @return time this object was created, i.e. the data was rendered or last confirmed to be up to date
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return modification time of the source the data was created from, 0 if unknown
+     */
+    public long getSourceLastModified() {
+        return sourceLastModified;
+    }
 }
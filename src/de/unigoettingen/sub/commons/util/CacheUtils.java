@@ -1,7 +1,10 @@
 package de.unigoettingen.sub.commons.util;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import net.sf.ehcache.Cache;
@@ -19,52 +22,25 @@ public class CacheUtils {
 
     private static final Logger LOGGER = Logger.getLogger(CacheUtils.class);
 
-    /**
-     * Removes Ehcache elements whose key starts with any of the given identifiers.
-     * 
-     * @param identifiers
-     * @param fromContentCache
-     * @param fromThumbnailCache
-     * @return
-     */
-    public static int deleteFromCache(List<String> identifiers, boolean fromContentCache, boolean fromThumbnailCache) {
-        int count = 0;
-
-        if (identifiers != null) {
-            for (String identifier : identifiers) {
-                count += deleteFromCache(identifier, fromContentCache, fromThumbnailCache);
-            }
-        }
-
-        return count;
-    }
+    private static final Map<Cache, CacheKeyIndex> KEY_INDEXES = new IdentityHashMap<Cache, CacheKeyIndex>();
 
     /**
-     * Removes Ehcache elements whose key starts with the given identifier.
+     * Removes Ehcache elements whose key starts with any of the given identifiers. The keys are looked up in an index per cache, so only the
+     * elements of the given identifiers are touched, and all of them are removed in one pass per cache.
      * 
-     * @param identifier
+     * @param identifiers
      * @param fromContentCache If true, cache elements will be removed from the content cache.
      * @param fromThumbnailCache If true, cache elements will be removed from the thumbnail cache.
      * @return Total number of deleted Ehcache elements.
      */
-    @SuppressWarnings("unchecked")
-    public static int deleteFromCache(String identifier, boolean fromContentCache, boolean fromThumbnailCache) {
+    public static int deleteFromCache(List<String> identifiers, boolean fromContentCache, boolean fromThumbnailCache) {
         int countContent = 0;
         int countThumbs = 0;
 
-        if (StringUtils.isNotBlank(identifier)) {
+        if (identifiers != null && !identifiers.isEmpty()) {
             if (fromContentCache) {
                 try {
-                    Cache cc = ContentServer.getContentCache();
-                    List<String> keys = cc.getKeys();
-                    Set<String> keysToRemove = new HashSet<String>();
-                    for (String key : keys) {
-                        if (key.startsWith(identifier + "_")) {
-                            keysToRemove.add(key);
-                            ++countContent;
-                        }
-                    }
-                    cc.removeAll(keysToRemove);
+                    countContent = deleteFromCache(ContentServer.getContentCache(), identifiers, null);
                 } catch (CacheException e) {
                     LOGGER.error(e.getMessage(), e);
                     countContent = 0;
@@ -72,16 +48,7 @@ public class CacheUtils {
             }
             if (fromThumbnailCache) {
                 try {
-                    Cache cc = ContentServer.getThumbnailCache();
-                    List<String> keys = cc.getKeys();
-                    Set<String> keysToRemove = new HashSet<String>();
-                    for (String key : keys) {
-                        if (key.startsWith(identifier + "_")) {
-                            keysToRemove.add(key);
-                            ++countThumbs;
-                        }
-                    }
-                    cc.removeAll(keysToRemove);
+                    countThumbs = deleteFromCache(ContentServer.getThumbnailCache(), identifiers, ContentServer.getThumbnailStore());
                 } catch (CacheException e) {
                     LOGGER.error(e.getMessage(), e);
                     countThumbs = 0;
@@ -92,6 +59,65 @@ public class CacheUtils {
         return countContent + countThumbs;
     }
 
+    /**
+     * Removes Ehcache elements whose key starts with the given identifier.
+     * 
+     * @param identifier
+     * @param fromContentCache If true, cache elements will be removed from the content cache.
+     * @param fromThumbnailCache If true, cache elements will be removed from the thumbnail cache.
+     * @return Total number of deleted Ehcache elements.
+     */
+    public static int deleteFromCache(String identifier, boolean fromContentCache, boolean fromThumbnailCache) {
+        return deleteFromCache(Collections.singletonList(identifier), fromContentCache, fromThumbnailCache);
+    }
+
+    /**
+     * Removes the elements of the given identifiers from the cache and the off-heap store in front of it.
+     * 
+     * @param cc the cache
+     * @param identifiers
+     * @param store off-heap store holding copies of the cache elements, may be null
+     * @return number of removed elements
+     */
+    private static int deleteFromCache(Cache cc, List<String> identifiers, OffHeapSlabStore store) {
+        if (cc == null) {
+            return 0;
+        }
+        CacheKeyIndex index = registerKeyIndex(cc);
+        Set<String> keysToRemove = new HashSet<String>();
+        for (String identifier : identifiers) {
+            if (StringUtils.isNotBlank(identifier)) {
+                keysToRemove.addAll(index.getKeys(identifier));
+            }
+        }
+        cc.removeAll(keysToRemove);
+        if (store != null) {
+            for (String key : keysToRemove) {
+                store.remove(key);
+            }
+        }
+        return keysToRemove.size();
+    }
+
+    /**
+     * Returns the key index of the given cache. The index is created when the cache is created: it is registered as listener of the cache and
+     * filled with the keys which are already in the cache (e.g. from the persistent disk store), this is the only time all keys are read.
+     * 
+     * @param cc the cache
+     * @return the index
+     */
+    public static synchronized CacheKeyIndex registerKeyIndex(Cache cc) {
+        CacheKeyIndex index = KEY_INDEXES.get(cc);
+        if (index == null) {
+            index = new CacheKeyIndex();
+            cc.getCacheEventNotificationService().registerListener(index);
+            index.addAll(cc.getKeys());
+            KEY_INDEXES.put(cc, index);
+            LOGGER.debug("Key index of cache " + cc.getName() + " created with " + index.size() + " identifiers");
+        }
+        return index;
+    }
+
     /**
      * Removes all elements from Ehcache.
      * 
@@ -106,9 +132,12 @@ public class CacheUtils {
                 LOGGER.error(e.getMessage(), e);
             }
         }
-        if (contentCache) {
+        if (thumbnailCache) {
             try {
                 ContentServer.getThumbnailCache().removeAll();
+                if (ContentServer.getThumbnailStore() != null) {
+                    ContentServer.getThumbnailStore().clear();
+                }
             } catch (CacheException e) {
                 LOGGER.error(e.getMessage(), e);
             }
@@ -0,0 +1,106 @@
+package de.unigoettingen.sub.commons.util;
+
+/**
+ * Count-min sketch estimating how often a key was seen recently, with 4 bit counters in four rows. A key increments only its smallest counters
+ * (conservative update), and after ten times as many increments as there are counters per row all counters are halved, so that old popularity
+ * fades out. The sketch needs half a byte per counter, independent of the number of keys.
+ */
+public class FrequencySketch {
+
+    private static final int ROWS = 4;
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int rowLength;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * Creates a sketch for about the given number of keys.
+     *
+     * @param expectedKeys number of keys which should be distinguishable, e.g. the maximal number of entries of a cache
+     */
+    public FrequencySketch(int expectedKeys) {
+        int counters = Integer.highestOneBit(Math.max(16, Math.min(expectedKeys, 1 << 26)) - 1) << 1;
+        counterMask = counters - 1;
+        rowLength = counters / 16;
+        table = new long[ROWS * rowLength];
+        sampleSize = 10 * counters;
+    }
+
+    /**
+     * Counts one occurrence of the key.
+     *
+     * @param key the key
+     */
+    public synchronized void increment(String key) {
+        long hash = spread(key);
+        int min = frequency(hash);
+        if (min >= MAX_COUNT) {
+            return;
+        }
+        for (int row = 0; row < ROWS; row++) {
+            int index = index(hash, row);
+            int shift = shift(hash, row);
+            if ((int) ((table[index] >>> shift) & 0xf) == min) {
+                table[index] += 1L << shift;
+            }
+        }
+        if (++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Estimates how often the key was seen; the estimate is never lower than the real number (up to the maximum of 15).
+     *
+     * @param key the key
+     * @return estimated number of occurrences between 0 and 15
+     */
+    public synchronized int frequency(String key) {
+        return frequency(spread(key));
+    }
+
+    private int frequency(long hash) {
+        int min = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++) {
+            min = Math.min(min, (int) ((table[index(hash, row)] >>> shift(hash, row)) & 0xf));
+        }
+        return min;
+    }
+
+    /**
+     * halve all counters
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int index(long hash, int row) {
+        return row * rowLength + (counter(hash, row) >>> 4);
+    }
+
+    private int shift(long hash, int row) {
+        return (counter(hash, row) & 15) << 2;
+    }
+
+    private int counter(long hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 32;
+        return (int) h & counterMask;
+    }
+
+    private static long spread(String key) {
+        long h = key.hashCode() * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,67 @@
+package de.unigoettingen.sub.commons.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Registry of running computations keyed by an id. The first caller for a key runs the computation on its own thread, every caller arriving while it
+ * is still running waits for and shares the same result instead of computing it again. The entry is removed as soon as the computation has
+ * finished, so later callers start a new one.
+ *
+ * @param <V> type of the computed value
+ */
+public class InFlightRegistry<V> {
+
+    private final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    /**
+     * Returns the result of the computation registered for the given key, running the given task if no computation for this key is in progress.
+     *
+     * @param key id of the computation
+     * @param task computation to run if this caller is the first one for the key
+     * @return result of the (possibly shared) computation
+     * @throws Exception the exception thrown by the computation
+     */
+    public V execute(String key, Callable<V> task) throws Exception {
+        FutureTask<V> own = new FutureTask<V>(task);
+        FutureTask<V> running = inFlight.putIfAbsent(key, own);
+        if (running == null) {
+            try {
+                own.run();
+            } finally {
+                inFlight.remove(key, own);
+            }
+            running = own;
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param key id of the computation
+     * @return true, if a computation for the given key is currently running
+     */
+    public boolean isInFlight(String key) {
+        return inFlight.containsKey(key);
+    }
+
+    /**
+     * @return number of computations currently running
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,523 @@
+package de.unigoettingen.sub.commons.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Store for many small byte arrays outside of the Java heap. The memory is allocated in pages of direct buffers, each page is assigned to one size
+ * class and cut into chunks of that size (slab allocation), so that storing and removing entries never fragments the memory. An entry is kept in the
+ * smallest chunk it fits in, together with its key, and found by an open addressing hash index which only holds a 64 bit hash and the chunk
+ * position per entry on the heap. If all pages are in use, entries of the same size class are evicted in CLOCK order (entries read since the last
+ * pass of the clock hand get a second chance). A size class which has no chunk to evict takes over a whole page of another class, so that the
+ * pages follow the sizes which are actually stored.
+ *
+ * Entries returned by {@link #get(String)} are pinned and can't be evicted or overwritten until {@link Entry#release()} is called, so the content can
+ * be written from the buffer without holding a lock and without copying it to the heap.
+ */
+public class OffHeapSlabStore {
+
+    /* chunk header: length of the data (int) and of the key (short) */
+    private static final int HEADER = 6;
+    /* growth factor between two size classes */
+    private static final double CLASS_FACTOR = 1.25;
+    private static final int CHUNK_BITS = 16;
+    private static final long FREE = 0L;
+    /* hash of an entry which was removed while it was pinned, the chunk is freed on release */
+    private static final long REMOVED = -1L;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int pageSize;
+    private final int maxPages;
+    private final SlabClass[] classes;
+    private final List<Page> pages = new ArrayList<Page>();
+    /* next page to be taken over by another size class */
+    private int pageHand = 0;
+
+    /* hash index, refs are stored +1 so that 0 marks an empty slot */
+    private long[] indexHashes = new long[1024];
+    private int[] indexRefs = new int[1024];
+    private int indexCount = 0;
+    /* incremented by clear, entries pinned before are not released into the new pages */
+    private int generation = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long rejected = 0;
+
+    /**
+     * Creates a store, the memory is allocated page by page when it is needed.
+     *
+     * @param capacity maximal memory in bytes
+     * @param pageSize size of one page in bytes, the largest storable entry (including its key) has this size
+     * @param minChunkSize size of the chunks of the smallest size class in bytes
+     */
+    public OffHeapSlabStore(long capacity, int pageSize, int minChunkSize) {
+        if (minChunkSize <= HEADER || pageSize < minChunkSize || pageSize / minChunkSize > 1 << CHUNK_BITS) {
+            throw new IllegalArgumentException("invalid page size " + pageSize + " or chunk size " + minChunkSize);
+        }
+        this.pageSize = pageSize;
+        this.maxPages = (int) Math.min(capacity / pageSize, Integer.MAX_VALUE >> CHUNK_BITS);
+        List<SlabClass> sizes = new ArrayList<SlabClass>();
+        int size = minChunkSize;
+        while (size < pageSize) {
+            sizes.add(new SlabClass(size));
+            size = Math.max(size + 8, (int) (size * CLASS_FACTOR) & ~7);
+        }
+        sizes.add(new SlabClass(pageSize));
+        classes = sizes.toArray(new SlabClass[sizes.size()]);
+    }
+
+    /**
+     * Stores a copy of the given data, replacing an entry with the same key.
+     *
+     * @param key key of the entry
+     * @param data content of the entry
+     * @return false, if the entry is too large or no chunk could be freed for it
+     */
+    public boolean put(String key, byte[] data) {
+        byte[] keyBytes = key.getBytes(UTF8);
+        long size = (long) HEADER + keyBytes.length + data.length;
+        SlabClass slabClass = getSlabClass(size);
+        if (slabClass == null || keyBytes.length > Short.MAX_VALUE) {
+            synchronized (this) {
+                rejected++;
+            }
+            return false;
+        }
+        long hash = hash(key);
+        synchronized (this) {
+            remove(hash);
+            int ref = allocate(slabClass);
+            if (ref < 0) {
+                rejected++;
+                return false;
+            }
+            Page page = pages.get(ref >>> CHUNK_BITS);
+            int chunk = ref & ((1 << CHUNK_BITS) - 1);
+            ByteBuffer buffer = page.buffer.duplicate();
+            buffer.position(chunk * page.slabClass.chunkSize);
+            buffer.putInt(data.length);
+            buffer.putShort((short) keyBytes.length);
+            buffer.put(keyBytes);
+            buffer.put(data);
+            page.hashes[chunk] = hash;
+            page.referenced[chunk] = false;
+            indexPut(hash, ref);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the entry for the given key. The entry is pinned and must be released after its content has been read.
+     *
+     * @param key key of the entry
+     * @return the pinned entry, null if there is no entry for this key
+     */
+    public synchronized Entry get(String key) {
+        long hash = hash(key);
+        int ref = indexGet(hash);
+        if (ref < 0) {
+            misses++;
+            return null;
+        }
+        Page page = pages.get(ref >>> CHUNK_BITS);
+        int chunk = ref & ((1 << CHUNK_BITS) - 1);
+        int offset = chunk * page.slabClass.chunkSize;
+        int dataLength = page.buffer.getInt(offset);
+        int keyLength = page.buffer.getShort(offset + 4);
+        byte[] keyBytes = key.getBytes(UTF8);
+        boolean equal = keyBytes.length == keyLength;
+        for (int i = 0; equal && i < keyLength; i++) {
+            equal = page.buffer.get(offset + HEADER + i) == keyBytes[i];
+        }
+        if (!equal) {
+            /* another key with the same hash */
+            misses++;
+            return null;
+        }
+        hits++;
+        page.referenced[chunk] = true;
+        page.pins[chunk]++;
+        ByteBuffer content = page.buffer.duplicate();
+        content.position(offset + HEADER + keyLength);
+        content.limit(offset + HEADER + keyLength + dataLength);
+        return new Entry(ref, generation, content.slice());
+    }
+
+    /**
+     * Removes the entry for the given key.
+     *
+     * @param key key of the entry
+     */
+    public synchronized void remove(String key) {
+        remove(hash(key));
+    }
+
+    /**
+     * Removes all entries and gives the pages back, the direct memory is freed by the garbage collector. Entries which are still pinned stay
+     * readable.
+     */
+    public synchronized void clear() {
+        pages.clear();
+        pageHand = 0;
+        for (SlabClass slabClass : classes) {
+            slabClass.clear();
+        }
+        indexHashes = new long[1024];
+        indexRefs = new int[1024];
+        indexCount = 0;
+        generation++;
+    }
+
+    /**
+     * @return number of stored entries
+     */
+    public synchronized int size() {
+        return indexCount;
+    }
+
+    /**
+     * @return allocated off-heap memory in bytes
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) pages.size() * pageSize;
+    }
+
+    /**
+     * @return hit, miss and eviction counters and the memory use as text, one line
+     */
+    public synchronized String getStatistics() {
+        return "offHeapEntries=" + indexCount + " allocatedBytes=" + getAllocatedBytes() + " maxBytes=" + (long) maxPages * pageSize + " hits="
+                + hits + " misses=" + misses + " evictions=" + evictions + " rejected=" + rejected + "\n";
+    }
+
+    private synchronized void release(int ref, int entryGeneration) {
+        if (entryGeneration != generation) {
+            /* cleared in the meantime */
+            return;
+        }
+        Page page = pages.get(ref >>> CHUNK_BITS);
+        int chunk = ref & ((1 << CHUNK_BITS) - 1);
+        page.pins[chunk]--;
+        if (page.pins[chunk] == 0 && page.hashes[chunk] == REMOVED) {
+            page.hashes[chunk] = FREE;
+            page.slabClass.pushFree(ref);
+        }
+    }
+
+    private SlabClass getSlabClass(long size) {
+        for (SlabClass slabClass : classes) {
+            if (slabClass.chunkSize >= size) {
+                return slabClass;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * get a free chunk of the given class: from the free list, from a new page or by evicting an entry
+     *
+     * @return the chunk, -1 if every chunk of the class is pinned
+     */
+    private int allocate(SlabClass slabClass) {
+        if (slabClass.freeCount == 0 && pages.size() < maxPages) {
+            pages.add(null);
+            assignPage(pages.size() - 1, ByteBuffer.allocateDirect(pageSize), slabClass);
+        }
+        if (slabClass.freeCount > 0) {
+            return slabClass.free[--slabClass.freeCount];
+        }
+        int ref = evict(slabClass);
+        if (ref < 0 && reassignPage(slabClass)) {
+            ref = slabClass.free[--slabClass.freeCount];
+        }
+        return ref;
+    }
+
+    /**
+     * free a chunk of the given class in CLOCK order, in two rounds as the first one may only clear the referenced flags
+     *
+     * @return the freed chunk, -1 if all chunks are pinned
+     */
+    private int evict(SlabClass slabClass) {
+        for (int step = 0; step < 2 * slabClass.chunkCount; step++) {
+            int ref = slabClass.chunks[slabClass.hand];
+            slabClass.hand = (slabClass.hand + 1) % slabClass.chunkCount;
+            Page page = pages.get(ref >>> CHUNK_BITS);
+            int chunk = ref & ((1 << CHUNK_BITS) - 1);
+            if (page.pins[chunk] > 0 || page.hashes[chunk] == FREE || page.hashes[chunk] == REMOVED) {
+                continue;
+            }
+            if (page.referenced[chunk]) {
+                page.referenced[chunk] = false;
+                continue;
+            }
+            indexRemove(page.hashes[chunk]);
+            page.hashes[chunk] = FREE;
+            evictions++;
+            return ref;
+        }
+        return -1;
+    }
+
+    /**
+     * take a page without pinned chunks away from another size class and give it to the given one, the entries of the page are dropped
+     *
+     * @return false, if every page is in use by this class or pinned
+     */
+    private boolean reassignPage(SlabClass slabClass) {
+        for (int step = 0; step < pages.size(); step++) {
+            int pageIndex = pageHand;
+            pageHand = (pageHand + 1) % pages.size();
+            Page page = pages.get(pageIndex);
+            if (page.slabClass == slabClass || page.isPinned()) {
+                continue;
+            }
+            for (int chunk = 0; chunk < page.hashes.length; chunk++) {
+                if (page.hashes[chunk] != FREE) {
+                    indexRemove(page.hashes[chunk]);
+                    evictions++;
+                }
+            }
+            page.slabClass.removePage(pageIndex);
+            assignPage(pageIndex, page.buffer, slabClass);
+            return true;
+        }
+        return false;
+    }
+
+    private void assignPage(int pageIndex, ByteBuffer buffer, SlabClass slabClass) {
+        Page page = new Page(slabClass, buffer);
+        pages.set(pageIndex, page);
+        for (int chunk = page.hashes.length - 1; chunk >= 0; chunk--) {
+            int ref = pageIndex << CHUNK_BITS | chunk;
+            slabClass.addChunk(ref);
+            slabClass.pushFree(ref);
+        }
+    }
+
+    private void remove(long hash) {
+        int ref = indexRemove(hash);
+        if (ref < 0) {
+            return;
+        }
+        Page page = pages.get(ref >>> CHUNK_BITS);
+        int chunk = ref & ((1 << CHUNK_BITS) - 1);
+        if (page.pins[chunk] > 0) {
+            page.hashes[chunk] = REMOVED;
+        } else {
+            page.hashes[chunk] = FREE;
+            page.slabClass.pushFree(ref);
+        }
+    }
+
+    private int indexGet(long hash) {
+        int mask = indexHashes.length - 1;
+        for (int slot = (int) hash & mask; indexRefs[slot] != 0; slot = (slot + 1) & mask) {
+            if (indexHashes[slot] == hash) {
+                return indexRefs[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    private void indexPut(long hash, int ref) {
+        if (2 * (indexCount + 1) > indexHashes.length) {
+            long[] oldHashes = indexHashes;
+            int[] oldRefs = indexRefs;
+            indexHashes = new long[oldHashes.length * 2];
+            indexRefs = new int[oldRefs.length * 2];
+            indexCount = 0;
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldRefs[i] != 0) {
+                    indexPut(oldHashes[i], oldRefs[i] - 1);
+                }
+            }
+        }
+        int mask = indexHashes.length - 1;
+        int slot = (int) hash & mask;
+        while (indexRefs[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        indexHashes[slot] = hash;
+        indexRefs[slot] = ref + 1;
+        indexCount++;
+    }
+
+    /**
+     * remove the hash from the index, following entries of the probe sequence are shifted back so that no tombstones are needed
+     *
+     * @return the chunk of the removed entry, -1 if the hash was not in the index
+     */
+    private int indexRemove(long hash) {
+        int mask = indexHashes.length - 1;
+        int slot = (int) hash & mask;
+        while (indexRefs[slot] != 0 && indexHashes[slot] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        if (indexRefs[slot] == 0) {
+            return -1;
+        }
+        int ref = indexRefs[slot] - 1;
+        indexRefs[slot] = 0;
+        indexCount--;
+        int next = (slot + 1) & mask;
+        while (indexRefs[next] != 0) {
+            int home = (int) indexHashes[next] & mask;
+            /* move the entry into the gap if the gap lies on its probe sequence */
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                indexHashes[slot] = indexHashes[next];
+                indexRefs[slot] = indexRefs[next];
+                indexRefs[next] = 0;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return ref;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the key, mixed with the finalizer of MurmurHash3; 0 and -1 are reserved for the chunk states
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == FREE || hash == REMOVED ? 1L : hash;
+    }
+
+    /**
+     * A pinned entry of the store.
+     */
+    public class Entry {
+        private final int ref;
+        private final int generation;
+        private final ByteBuffer content;
+        private boolean released = false;
+
+        private Entry(int ref, int generation, ByteBuffer content) {
+            this.ref = ref;
+            this.generation = generation;
+            this.content = content;
+        }
+
+        /**
+         * @return the content of the entry, a buffer positioned at the first byte; only valid until the entry is released
+         */
+        public ByteBuffer getContent() {
+            return content.duplicate();
+        }
+
+        /**
+         * @return length of the content in bytes
+         */
+        public int getLength() {
+            return content.remaining();
+        }
+
+        /**
+         * Unpins the entry, it may be evicted afterwards.
+         */
+        public void release() {
+            if (!released) {
+                released = true;
+                OffHeapSlabStore.this.release(ref, generation);
+            }
+        }
+    }
+
+    private static class Page {
+        private final SlabClass slabClass;
+        private final ByteBuffer buffer;
+        /* hash of the entry per chunk, FREE or REMOVED */
+        private final long[] hashes;
+        private final boolean[] referenced;
+        private final int[] pins;
+
+        private Page(SlabClass slabClass, ByteBuffer buffer) {
+            this.slabClass = slabClass;
+            this.buffer = buffer;
+            int chunks = buffer.capacity() / slabClass.chunkSize;
+            hashes = new long[chunks];
+            referenced = new boolean[chunks];
+            pins = new int[chunks];
+        }
+
+        private boolean isPinned() {
+            for (int pin : pins) {
+                if (pin > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class SlabClass {
+        private final int chunkSize;
+        /* all chunks of this class in clock order */
+        private int[] chunks = new int[0];
+        private int chunkCount = 0;
+        private int hand = 0;
+        private int[] free = new int[0];
+        private int freeCount = 0;
+
+        private SlabClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        private void addChunk(int ref) {
+            if (chunkCount == chunks.length) {
+                chunks = Arrays.copyOf(chunks, Math.max(16, chunks.length * 2));
+            }
+            chunks[chunkCount++] = ref;
+        }
+
+        private void pushFree(int ref) {
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, Math.max(16, free.length * 2));
+            }
+            free[freeCount++] = ref;
+        }
+
+        /**
+         * drop all chunks of the given page from the clock and the free list
+         */
+        private void removePage(int pageIndex) {
+            int count = 0;
+            for (int i = 0; i < chunkCount; i++) {
+                if (chunks[i] >>> CHUNK_BITS != pageIndex) {
+                    chunks[count++] = chunks[i];
+                }
+            }
+            chunkCount = count;
+            hand = chunkCount == 0 ? 0 : hand % chunkCount;
+            count = 0;
+            for (int i = 0; i < freeCount; i++) {
+                if (free[i] >>> CHUNK_BITS != pageIndex) {
+                    free[count++] = free[i];
+                }
+            }
+            freeCount = count;
+        }
+
+        private void clear() {
+            chunks = new int[0];
+            chunkCount = 0;
+            hand = 0;
+            free = new int[0];
+            freeCount = 0;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information.
+ *         - http://gdz.sub.uni-goettingen.de
+ *         - http://www.intranda.com
+ *         - http://www.digiverso.com
+ *
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.util.stream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Stream writing into a temporary file, which is copied to another stream afterwards. Documents are generated into the spool file, so that a
+ * slow client only holds the thread sending the file, not the resources needed to generate it.
+ */
+public class SpoolOutputStream extends BufferedOutputStream {
+
+    private final File file;
+    private boolean closed = false;
+
+    /**
+     * Creates a stream into a new temporary file.
+     *
+     * @throws IOException if the temporary file can't be created
+     */
+    public SpoolOutputStream() throws IOException {
+        this(File.createTempFile("spool", ".tmp"));
+    }
+
+    private SpoolOutputStream(File file) throws IOException {
+        super(new FileOutputStream(file));
+        this.file = file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            super.close();
+        }
+    }
+
+    /**
+     * Closes the stream and copies the spooled content to the given stream.
+     *
+     * @param out the stream to write to
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        close();
+        InputStream in = new FileInputStream(file);
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Closes the stream and deletes the temporary file.
+     */
+    public void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            // the file is removed anyway
+        }
+        file.delete();
+    }
+}
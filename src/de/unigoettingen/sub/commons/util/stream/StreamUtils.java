@@ -130,51 +130,80 @@ public class StreamUtils {
             }
             inStream = con.getInputStream();
         } else if (url.getProtocol().equalsIgnoreCase("file")) {
-            int size = url.openConnection().getContentLength();
-            Integer maxFileLength = ContentServerConfiguration.getInstance().getMaxFileLength();
-
-            if (maxFileLength != 0 && size > maxFileLength) {
-                // System.out.println("File " + url.getFile() + " is too large (" + size + "/" + maxFileLength + ")");
-                return getInputStreamFromUrl(new URL(ContentServerConfiguration.getInstance().getErrorFile()));
+            URL fileUrl = resolveFileOrErrorFile(url);
+            if (fileUrl != url) {
+                return getInputStreamFromUrl(fileUrl);
             }
+            inStream = new FileInputStream(getFileFromUrl(url));
+
+        } else if (url.getProtocol().length() == 0) {
             String filepath = url.getFile();
+            // we just have the relative path, need to find the absolute path
+            String path = basepath + filepath;
+
+            // call this method again
+            URL completeurl = new URL(path);
+            inStream = getInputStreamFromUrl(completeurl);
+        }
+
+        return inStream;
+    }
+
+    /************************************************************************************
+     * get the {@link File} for a file url; if there is no file with exactly this name, a file with the same name in different case is searched
+     * 
+     * @param url the file url
+     * @return the {@link File} for the url; the file may not exist, if no file with this name was found
+     * @throws IOException
+     ************************************************************************************/
+    public static File getFileFromUrl(URL url) throws IOException {
+        String filepath = url.getFile();
 
-            filepath = URLDecoder.decode(filepath, System.getProperty("file.encoding"));
+        filepath = URLDecoder.decode(filepath, System.getProperty("file.encoding"));
 
-            File f = new File(filepath);
-            if (!f.isFile()) {
-                // try for a file with different suffix case
-                int suffixIndex = filepath.lastIndexOf('.');
+        File f = new File(filepath);
+        if (!f.isFile()) {
+            // try for a file with different suffix case
+            int suffixIndex = filepath.lastIndexOf('.');
+            if (suffixIndex > filepath.lastIndexOf('/')) {
                 f = new File(filepath.substring(0, suffixIndex) + filepath.substring(suffixIndex).toLowerCase());
                 if (!f.isFile()) {
                     f = new File(filepath.substring(0, suffixIndex) + filepath.substring(suffixIndex).toUpperCase());
                 }
-                // search all files in this directory for this case-insensitive name
-                if (!f.isFile()) {
-                    File[] files = f.getParentFile().listFiles();
-                    if (files != null) {
-                        for (File file : files) {
-                            if (file.getName().compareToIgnoreCase(f.getName()) == 0) {
-                                f = file;
-                                break;
-                            }
+            }
+            // search all files in this directory for this case-insensitive name
+            if (!f.isFile() && f.getParentFile() != null) {
+                File[] files = f.getParentFile().listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().compareToIgnoreCase(f.getName()) == 0) {
+                            f = file;
+                            break;
                         }
                     }
                 }
             }
-            inStream = new FileInputStream(f);
-
-        } else if (url.getProtocol().length() == 0) {
-            String filepath = url.getFile();
-            // we just have the relative path, need to find the absolute path
-            String path = basepath + filepath;
-
-            // call this method again
-            URL completeurl = new URL(path);
-            inStream = getInputStreamFromUrl(completeurl);
         }
+        return f;
+    }
 
-        return inStream;
+    /************************************************************************************
+     * get the url to read instead of the given one: files larger than the configured maxFileLength are replaced by the configured error file
+     * 
+     * @param url the url of the source
+     * @return the given url, or the url of the error file if the url is a file larger than maxFileLength
+     * @throws IOException if the error file url is not valid
+     ************************************************************************************/
+    public static URL resolveFileOrErrorFile(URL url) throws IOException {
+        if (!url.getProtocol().equalsIgnoreCase("file")) {
+            return url;
+        }
+        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+        Integer maxFileLength = config.getMaxFileLength();
+        if (maxFileLength != 0 && getFileFromUrl(url).length() > maxFileLength) {
+            return new URL(config.getErrorFile());
+        }
+        return url;
     }
 
     /************************************************************************************
@@ -30,27 +30,59 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.comparator.LastModifiedFileComparator;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.Logger;
 
 import de.unigoettingen.sub.commons.contentlib.exceptions.CacheException;
+import de.unigoettingen.sub.commons.contentlib.servlet.HttpCacheHeaders;
+import de.unigoettingen.sub.commons.contentlib.servlet.RangeResponseWriter;
 
 /************************************************************************************
  * the class ContentCache manages the cache for the generated pdf files, which are requested more than one time, until its size exeeds the configured
  * maximum size
  * 
+ * The cached files are spread over 256 subfolders by the hash of their name. The size of the cache is kept in an in-memory index in least recently
+ * used order, which is rebuilt in the background when the cache is created. If the size exceeds the high watermark, a background thread removes the
+ * least recently used files until the low watermark is reached.
+ * 
  * @version 13.01.2009
  * @author Steffen Hankiewicz
  * @author Igor Toker
  ************************************************************************************/
 public class ContentCache {
+    private static final Logger LOGGER = Logger.getLogger(ContentCache.class);
+
+    /* eviction starts above this part of the maximum size ... */
+    private static final double HIGH_WATERMARK = 0.9;
+    /* ... and removes files until the cache is below this part of the maximum size */
+    private static final double LOW_WATERMARK = 0.75;
+    private static final String TEMP_SUFFIX = ".tmp";
+
     private File cacheFolder;
     private long maxSizeInMB;
 
-    private static final Logger LOGGER = Logger.getLogger(ContentCache.class);
+    /* file names (id and suffix) with their size in least recently used order */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+    private long currentSize = 0;
+
+    private final Object evictionLock = new Object();
+    private boolean evictionRequested = false;
+    private volatile boolean running = true;
+    private Thread evictionThread;
 
     /************************************************************************************
      * Constructor for ContentCache
@@ -78,25 +110,46 @@ public class ContentCache {
             throw new CacheException("Cache folder not writeable: " + cacheFolder.getAbsolutePath());
         }
 
-        /* check cache folder size */
-        if (isCacheSizeExceeded()) {
-            // long currentSize = FileUtils.sizeOfDirectory(cacheFolder);
-            // long maxSize = maxSizeInMB * 1024 * 1024;
-            cleanCache();
-            // throw new CacheException("Given maximum size of cache (" + maxSize + " byte) already exeeded ("
-            // + currentSize + " byte)");
-        }
+        evictionThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runEviction();
+            }
+        }, "ContentCache-eviction " + cacheFolder.getName());
+        evictionThread.setDaemon(true);
+        evictionThread.start();
+
+        /* read the files already in cache without blocking the start of the servlet */
+        Thread indexThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rebuildIndex();
+            }
+        }, "ContentCache-index " + cacheFolder.getName());
+        indexThread.setDaemon(true);
+        indexThread.start();
     }
 
-    @SuppressWarnings("unchecked")
+    /*************************************************************************************
+     * remove the least recently used files until the size of the cache is below the low watermark
+     ************************************************************************************/
     public void cleanCache() {
-        long limit = (long) ((maxSizeInMB * 1024 * 1024) * 0.75);
-        File[] files = cacheFolder.listFiles();
-        Arrays.sort(files, LastModifiedFileComparator.LASTMODIFIED_COMPARATOR);
-        for (File file : files) {
-            FileUtils.deleteQuietly(file);
-            if (FileUtils.sizeOfDirectory(cacheFolder) < limit) {
-                return;
+        long limit = (long) (getMaxSize() * LOW_WATERMARK);
+        while (true) {
+            String name;
+            synchronized (index) {
+                if (currentSize <= limit || index.isEmpty()) {
+                    return;
+                }
+                Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+                Map.Entry<String, Long> eldest = it.next();
+                name = eldest.getKey();
+                currentSize -= eldest.getValue();
+                it.remove();
+            }
+            File file = getFileForName(name);
+            if (file.exists() && !file.delete()) {
+                LOGGER.warn("File " + file.getAbsolutePath() + " can not be deleted.");
             }
         }
     }
@@ -109,7 +162,12 @@ public class ContentCache {
      ************************************************************************************/
     public boolean cacheContains(String inId, String suffix) {
         File file = getFileForId(inId, suffix);
-        return file.exists() && file.length() > 0;
+        long length = file.length();
+        if (length > 0) {
+            register(inId + "." + suffix, length);
+            return true;
+        }
+        return false;
     }
 
     /*************************************************************************************
@@ -120,8 +178,67 @@ public class ContentCache {
      * @throws CacheException
      ************************************************************************************/
     public void writeToStream(OutputStream out, String inId, String suffix) throws CacheException {
+        File file = getReadableFile(inId, suffix);
+
+        /*
+         * -------------------------------- write File to OutputStream --------------------------------
+         */
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = 0;
+                long length = channel.size();
+                while (position < length) {
+                    long written = channel.transferTo(position, length - position, target);
+                    if (written <= 0) {
+                        break;
+                    }
+                    position += written;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            throw new CacheException("File " + file.getAbsolutePath() + " does not exist.", e);
+        } catch (IOException e) {
+            throw new CacheException("IO-Error while writing file to stream", e);
+        }
+    }
+
+    /*************************************************************************************
+     * write file from cache with given id to the servlet response, setting Content-Length and answering byte range requests, so that large files
+     * can be resumed
+     * 
+     * @param request {@link HttpServletRequest} with the optional Range header
+     * @param response {@link HttpServletResponse} to write the cached file to
+     * @param inId ID as String (no file name, no file extension)
+     * @param validators the {@link HttpCacheHeaders} sent with the response, a resumed download has to match them; null if none were sent
+     * @throws CacheException
+     ************************************************************************************/
+    public void writeToResponse(HttpServletRequest request, HttpServletResponse response, String inId, String suffix, HttpCacheHeaders validators)
+            throws CacheException {
+        File file = getReadableFile(inId, suffix);
+        try {
+            RangeResponseWriter.writeFile(request, response, file, validators);
+        } catch (FileNotFoundException e) {
+            throw new CacheException("File " + file.getAbsolutePath() + " does not exist.", e);
+        } catch (IOException e) {
+            throw new CacheException("IO-Error while writing file to stream", e);
+        }
+    }
+
+    /*************************************************************************************
+     * get the cached file with given id and update its timestamp
+     * 
+     * @param inId ID as String (no file name, no file extension)
+     * @return the cached file
+     * @throws CacheException if the file is not in cache or can not be read
+     ************************************************************************************/
+    private File getReadableFile(String inId, String suffix) throws CacheException {
         if (!cacheContains(inId, suffix)) {
-            throw new CacheException("File already exists in cache.");
+            throw new CacheException("File does not exist in cache.");
         }
         /*
          * -------------------------------- File exists and can be read? --------------------------------
@@ -130,24 +247,59 @@ public class ContentCache {
         if (!file.exists() || !file.canRead()) {
             throw new CacheException("File with given ID (" + inId + ") can not be read. (" + file.getAbsolutePath() + ")");
         }
-        // Update Timestamp to be able to find old cache items
+        // Update Timestamp to be able to find old cache items after a restart
         file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
 
-        /*
-         * -------------------------------- write File to OutputStream --------------------------------
-         */
+    /*************************************************************************************
+     * get a stream writing into the cache file with given id and to a second stream (eg. the servlet response). The file is written under a
+     * temporary name of its own and added to the cache when the stream is closed, so that incomplete files are never delivered from the cache, even
+     * if the same file is written by concurrent requests.
+     * 
+     * @param inId ID as String (no file name, no file extension)
+     * @param out the second OutputStream where to write
+     * @return the {@link CacheOutputStream}
+     * @throws CacheException if the file can not be created
+     ************************************************************************************/
+    public CacheOutputStream getCacheOutputStream(final String inId, final String suffix, OutputStream out) throws CacheException {
+        final File file = getFileForId(inId, suffix);
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new CacheException("Can't create cache folder: " + file.getParentFile().getAbsolutePath());
+        }
+        final File tempFile;
         try {
-            FileInputStream in = new FileInputStream(file);
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-            in.close();
-        } catch (FileNotFoundException e) {
-            throw new CacheException("File " + file.getAbsolutePath() + " does not exist.", e);
+            tempFile = File.createTempFile(file.getName(), TEMP_SUFFIX, file.getParentFile());
         } catch (IOException e) {
-            throw new CacheException("IO-Error while writing file to stream", e);
+            throw new CacheException("Temporary file for " + file.getAbsolutePath() + " can not be created.", e);
+        }
+        try {
+            return new CacheOutputStream(tempFile, out) {
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        if (file.exists() && !file.delete()) {
+                            LOGGER.warn("File " + file.getAbsolutePath() + " can not be replaced.");
+                        }
+                        if (tempFile.renameTo(file)) {
+                            register(inId + "." + suffix, file.length());
+                        } else {
+                            LOGGER.warn("File " + tempFile.getAbsolutePath() + " can not be renamed.");
+                            tempFile.delete();
+                        }
+                    }
+                }
+            };
+        } catch (FileNotFoundException e) {
+            throw new CacheException("Cache file " + tempFile.getAbsolutePath() + " can not be created.", e);
         }
     }
 
@@ -159,7 +311,8 @@ public class ContentCache {
      ************************************************************************************/
     public void delete(String inId, String suffix) throws CacheException {
         File file = getFileForId(inId, suffix);
-        if (cacheContains(inId, suffix)) {
+        unregister(inId + "." + suffix);
+        if (file.exists()) {
             if (!file.delete()) {
                 throw new CacheException("File " + file.getAbsolutePath() + " can not be deleted.");
             }
@@ -167,23 +320,17 @@ public class ContentCache {
     }
 
     /*************************************************************************************
-     * check if maximum size of cache already exceeded
+     * check if maximum size of cache already exceeded; this only reads the size from the index
      * 
      * @return true, if size of cache is already bigger than configured maximum
      * @throws CacheException
      ************************************************************************************/
     public boolean isCacheSizeExceeded() throws CacheException {
-        LOGGER.debug("Checking cache size");
-        long currentSize = FileUtils.sizeOfDirectory(cacheFolder);
-        long maxSize = maxSizeInMB * 1024 * 1024;
-        LOGGER.debug("Current cache size = " + currentSize);
-        if (currentSize >= maxSize) {
-            LOGGER.debug("Cleaning cache");
-            cleanCache();
-            currentSize = FileUtils.sizeOfDirectory(cacheFolder);
-            LOGGER.debug("Done cleaning cache");
+        long size = getCurrentSize();
+        if (size >= getMaxSize() * HIGH_WATERMARK) {
+            requestEviction();
         }
-        return (currentSize >= maxSize);
+        return size >= getMaxSize();
     }
 
     /*************************************************************************************
@@ -193,6 +340,170 @@ public class ContentCache {
      * @return File for given ID from cache
      ************************************************************************************/
     public File getFileForId(String inId, String suffix) {
-        return new File(cacheFolder, inId + "." + suffix);
+        return getFileForName(inId + "." + suffix);
+    }
+
+    /**
+     * @return the size of all files in the cache in bytes, as far as they are indexed
+     */
+    public long getCurrentSize() {
+        synchronized (index) {
+            return currentSize;
+        }
+    }
+
+    /**
+     * @return the number of files in the cache, as far as they are indexed
+     */
+    public int getFileCount() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+
+    /*************************************************************************************
+     * stop the background eviction
+     ************************************************************************************/
+    public void shutdown() {
+        running = false;
+        evictionThread.interrupt();
+    }
+
+    private long getMaxSize() {
+        return maxSizeInMB * 1024 * 1024;
+    }
+
+    /*************************************************************************************
+     * the cached files are stored in 256 subfolders named by the first two hex digits of the md5 sum of the file name
+     ************************************************************************************/
+    private File getFileForName(String name) {
+        return new File(new File(cacheFolder, DigestUtils.md5Hex(name).substring(0, 2)), name);
+    }
+
+    /*************************************************************************************
+     * add the file to the index or mark it as most recently used
+     ************************************************************************************/
+    private void register(String name, long length) {
+        boolean exceeded;
+        synchronized (index) {
+            Long old = index.put(name, length);
+            currentSize += length - (old == null ? 0 : old);
+            exceeded = currentSize >= getMaxSize() * HIGH_WATERMARK;
+        }
+        if (exceeded) {
+            requestEviction();
+        }
+    }
+
+    private void unregister(String name) {
+        synchronized (index) {
+            Long old = index.remove(name);
+            if (old != null) {
+                currentSize -= old;
+            }
+        }
+    }
+
+    private void requestEviction() {
+        synchronized (evictionLock) {
+            evictionRequested = true;
+            evictionLock.notifyAll();
+        }
+    }
+
+    /*************************************************************************************
+     * loop of the eviction thread
+     ************************************************************************************/
+    private void runEviction() {
+        while (running) {
+            try {
+                synchronized (evictionLock) {
+                    while (!evictionRequested) {
+                        evictionLock.wait();
+                    }
+                    evictionRequested = false;
+                }
+                LOGGER.debug("Cleaning cache, current size = " + getCurrentSize());
+                cleanCache();
+                LOGGER.debug("Done cleaning cache, current size = " + getCurrentSize());
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.error("Error while cleaning cache", e);
+            }
+        }
+    }
+
+    /*************************************************************************************
+     * read all files of the cache folder into the index, oldest first; files from the former flat layout are moved into their subfolder.
+     * Files which have been requested meanwhile are already in the index and stay the most recently used ones.
+     ************************************************************************************/
+    private void rebuildIndex() {
+        long start = System.currentTimeMillis();
+        final List<File> found = new ArrayList<File>();
+        File[] entries = cacheFolder.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                File[] files = entry.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        addFoundFile(file, start, found);
+                    }
+                }
+            } else {
+                File target = getFileForName(entry.getName());
+                target.getParentFile().mkdirs();
+                if (!entry.getName().endsWith(TEMP_SUFFIX) && entry.renameTo(target)) {
+                    entry = target;
+                }
+                addFoundFile(entry, start, found);
+            }
+        }
+        final Map<File, Long> modified = new LinkedHashMap<File, Long>();
+        for (File file : found) {
+            modified.put(file, file.lastModified());
+        }
+        Collections.sort(found, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return modified.get(f1).compareTo(modified.get(f2));
+            }
+        });
+        synchronized (index) {
+            LinkedHashMap<String, Long> recent = new LinkedHashMap<String, Long>(index);
+            index.clear();
+            currentSize = 0;
+            for (File file : found) {
+                if (!recent.containsKey(file.getName())) {
+                    index.put(file.getName(), file.length());
+                    currentSize += file.length();
+                }
+            }
+            for (Map.Entry<String, Long> entry : recent.entrySet()) {
+                index.put(entry.getKey(), entry.getValue());
+                currentSize += entry.getValue();
+            }
+        }
+        LOGGER.info("Cache index for " + cacheFolder.getAbsolutePath() + " built in " + (System.currentTimeMillis() - start) + " ms: "
+                + getFileCount() + " files, " + getCurrentSize() + " bytes");
+        if (getCurrentSize() >= getMaxSize() * HIGH_WATERMARK) {
+            requestEviction();
+        }
+    }
+
+    /*************************************************************************************
+     * incomplete files of a write interrupted before the start are removed, empty files are ignored
+     ************************************************************************************/
+    private void addFoundFile(File file, long start, List<File> found) {
+        if (file.getName().endsWith(TEMP_SUFFIX)) {
+            if (file.lastModified() < start) {
+                file.delete();
+            }
+        } else if (file.isFile() && file.length() > 0) {
+            found.add(file);
+        }
     }
 }
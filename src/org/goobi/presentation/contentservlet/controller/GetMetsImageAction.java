@@ -28,6 +28,7 @@ package org.goobi.presentation.contentservlet.controller;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Map;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -111,6 +112,16 @@ public class GetMetsImageAction implements Action {
         request.setAttribute("sourcepath", fileUrl.toString());
         GetImageAction imageAction = new GetImageAction();
         imageAction.run(servletContext, request, response);
+
+        /*
+         * -------------------------------- render the following pages into the cache --------------------------------
+         */
+        PagePrefetcher.getInstance().prefetch(metsparser, pageid, getParameters(request));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String[]> getParameters(HttpServletRequest request) {
+        return request.getParameterMap();
     }
 
     /************************************************************************************
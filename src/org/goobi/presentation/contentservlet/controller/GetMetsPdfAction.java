@@ -36,6 +36,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -48,6 +49,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 
@@ -61,6 +63,7 @@ import com.lowagie.text.pdf.PdfWriter;
 import de.unigoettingen.sub.commons.contentlib.exceptions.CacheException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ContentLibException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ContentLibPdfException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.RenderQueueFullException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.WatermarkException;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ContentLibUtil;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManipulator;
@@ -69,16 +72,21 @@ import de.unigoettingen.sub.commons.contentlib.pdflib.PDFManager;
 import de.unigoettingen.sub.commons.contentlib.pdflib.PDFManager.PdfPageSize;
 import de.unigoettingen.sub.commons.contentlib.pdflib.PDFTitlePage;
 import de.unigoettingen.sub.commons.contentlib.pdflib.PDFTitlePageLine;
+import de.unigoettingen.sub.commons.contentlib.servlet.HttpCacheHeaders;
 import de.unigoettingen.sub.commons.contentlib.servlet.ServletWatermark;
 import de.unigoettingen.sub.commons.contentlib.servlet.Util;
 import de.unigoettingen.sub.commons.contentlib.servlet.controller.Action;
 import de.unigoettingen.sub.commons.contentlib.servlet.controller.ContentServer;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler.Lane;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler.Ticket;
 import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
 import de.unigoettingen.sub.commons.simplemets.METSParser;
 import de.unigoettingen.sub.commons.simplemets.SimplePDFMetadataExtractor;
 import de.unigoettingen.sub.commons.simplemets.SimpleStructureMetadataExtractor;
 import de.unigoettingen.sub.commons.util.datasource.Structure;
 import de.unigoettingen.sub.commons.util.datasource.UrlImage;
+import de.unigoettingen.sub.commons.util.stream.SpoolOutputStream;
 
 /************************************************************************************
  * pdf action for all kinds of simple pdf handlings first of all validate all request parameters, and than interprete all request parameters for
@@ -113,14 +121,26 @@ public class GetMetsPdfAction implements Action {
          * -------------------------------- get central configuration and retrieve source image from url --------------------------------
          */
         ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+
+        /* answer conditional requests before the mets file is parsed */
+        HttpCacheHeaders validators = HttpCacheHeaders.forRequest(request, getMetsUrl(request, config));
+        if (validators != null && validators.handleNotModified(request, response)) {
+            return;
+        }
+
         if (config.getWatermarkUse()) {
             File watermarkfile = new File(new URI(config.getWatermarkConfigFilePath()));
             myWatermark = Watermark.generateWatermark(request, watermarkfile);
         }
-        OutputStream myOutStream = response.getOutputStream();
+        OutputStream responseStream = response.getOutputStream();
+        /* the pdf is written into the cache or a spool file and sent after the render slot is released */
+        OutputStream myOutStream = null;
+        SpoolOutputStream spool = null;
+        boolean rendered = false;
         ContentCache cc = ContentServer.getPdfCache();
         String myUniqueID = getContentCacheIdForRequest(request, config);
         setTargetNameAndMimeType(request, response, config);
+        Ticket ticket = null;
         try {
             /*
              * -------------------------------- ask ContentCache, if object already exists --------------------------------
@@ -142,21 +162,20 @@ public class GetMetsPdfAction implements Action {
                 /* if cache should not be ignored and cache contains file, write it back to stream */
                 if (!ignoreCache && cc.cacheContains(myUniqueID, "pdf")) {
                     LOGGER.debug("get file from cache: " + myUniqueID);
-                    cc.writeToStream(response.getOutputStream(), myUniqueID, "pdf");
+                    cc.writeToResponse(request, response, myUniqueID, "pdf", validators);
                     return;
                 } else if (ignoreCache == false) {
                     LOGGER.debug("file not found in cache: " + myUniqueID);
                 }
 
+                /* wait for a free render slot before the mets file is parsed */
+                ticket = RenderScheduler.getInstance().acquire(Lane.PDF);
+
                 /*
                  * -------------------------------- if Cache is not used, parse mets file name and add it to repository path
                  * --------------------------------
                  */
-                String metsFile = request.getParameter("metsFile");
-                if (!metsFile.endsWith(".xml")) {
-                    metsFile += ".xml";
-                }
-                URL fullMetsPath = new URL(config.getRepositoryPathMets() + metsFile);
+                URL fullMetsPath = getMetsUrl(request, config);
                 LOGGER.debug("mets file to parse: " + fullMetsPath);
 
                 /*
@@ -313,11 +332,15 @@ public class GetMetsPdfAction implements Action {
                 /* if cache size is exceeded write it to response stream only */
                 if (cc != null && !cc.isCacheSizeExceeded()) {
                     LOGGER.info("write file to cache and servlet response: " + cc.getFileForId(myUniqueID, "pdf"));
-                    myOutStream = new CacheOutputStream(cc.getFileForId(myUniqueID, "pdf"), response.getOutputStream());
-                } else if (cc == null) {
-                    LOGGER.info("file will not be written to cache, cache is deactivated in configuration");
-                } else if (cc.isCacheSizeExceeded()) {
-                    LOGGER.info("file will not be written to cache, maximum cache size exceeded defined configuration");
+                    myOutStream = cc.getCacheOutputStream(myUniqueID, "pdf", new NullOutputStream());
+                } else {
+                    if (cc == null) {
+                        LOGGER.info("file will not be written to cache, cache is deactivated in configuration");
+                    } else {
+                        LOGGER.info("file will not be written to cache, maximum cache size exceeded defined configuration");
+                    }
+                    spool = new SpoolOutputStream();
+                    myOutStream = spool;
                 }
             } catch (NullPointerException e) {
                 throw new NullPointerException("Nullpointer occured before pdf-generation");
@@ -325,13 +348,22 @@ public class GetMetsPdfAction implements Action {
             /* write to stream */
             if (pdfmanager != null) {
                 pdfmanager.createPDF(myOutStream, getPageSize(request), myWatermark);
+                myOutStream.close();
+                rendered = true;
             }
+        } catch (RenderQueueFullException e) {
+            /* nothing has been written yet, the servlet answers with 503 */
+            responseStream = null;
+            throw e;
         } catch (Exception e) {
             LOGGER.error("error during pdf generation (" + e.getClass().getName() + ")", e);
+            if (ticket != null) {
+                ticket.release();
+            }
             Document pdfdoc = new Document();
             PdfWriter writer;
             try {
-                writer = PdfWriter.getInstance(pdfdoc, myOutStream);
+                writer = PdfWriter.getInstance(pdfdoc, responseStream);
             } catch (DocumentException e1) {
                 throw new ContentLibException("wrapped DocumentException", e1);
             }
@@ -393,9 +425,23 @@ public class GetMetsPdfAction implements Action {
                 }
             }
         } finally {
-            if (myOutStream != null) {
-                myOutStream.flush();
-                myOutStream.close();
+            if (ticket != null) {
+                ticket.release();
+            }
+            try {
+                if (rendered && spool != null) {
+                    spool.writeTo(responseStream);
+                } else if (rendered) {
+                    cc.writeToResponse(request, response, myUniqueID, "pdf", validators);
+                }
+            } finally {
+                if (spool != null) {
+                    spool.delete();
+                }
+                if (responseStream != null) {
+                    responseStream.flush();
+                    responseStream.close();
+                }
             }
         }
     }
@@ -536,6 +582,21 @@ public class GetMetsPdfAction implements Action {
         LOGGER.debug("METS file " + request.getParameter("metsFile"));
     }
 
+    /*************************************************************************************
+     * get the url of the requested mets file inside the mets repository
+     * 
+     * @param request the current {@link HttpServletRequest}
+     * @param inConfig current internal {@link ContentServerConfiguration} objekt
+     * @throws MalformedURLException
+     ************************************************************************************/
+    private URL getMetsUrl(HttpServletRequest request, ContentServerConfiguration inConfig) throws MalformedURLException {
+        String metsFile = request.getParameter("metsFile");
+        if (!metsFile.endsWith(".xml")) {
+            metsFile += ".xml";
+        }
+        return new URL(inConfig.getRepositoryPathMets() + metsFile);
+    }
+
     /*************************************************************************************
      * generate an ID for a pdf file, to cache it under an unique name
      * 
@@ -63,10 +63,14 @@ import de.unigoettingen.sub.commons.contentlib.pdflib.PDFCreator;
 import de.unigoettingen.sub.commons.contentlib.pdflib.PDFTitlePage;
 import de.unigoettingen.sub.commons.contentlib.servlet.ServletWatermark;
 import de.unigoettingen.sub.commons.contentlib.servlet.Util;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler.Lane;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler.Ticket;
 import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
 import de.unigoettingen.sub.commons.simplemets.SimplePDFMetadataExtractor;
 import de.unigoettingen.sub.commons.simplemets.SimpleStructureMetadataExtractor;
 import de.unigoettingen.sub.commons.simplemets.StructureMetadataExtractor;
+import de.unigoettingen.sub.commons.util.stream.SpoolOutputStream;
 
 /************************************************************************************
  * pdf multi mets action for pdf creation of multiple mets files first of all validate all request parameters, and than interprete all request
@@ -101,7 +105,7 @@ public class GetPdfMultiMetsAction extends GetMetsPdfAction {
          * -------------------------------- get central configuration and --------------------------------
          */
         ContentServerConfiguration config = ContentServerConfiguration.getInstance();
-        OutputStream myOutStream = response.getOutputStream();
+        OutputStream responseStream = response.getOutputStream();
         setTargetNameAndMimeType(request, response, config);
         Watermark myWatermark = null;
         /* get mets filegroup from request or from configuration */
@@ -110,7 +114,11 @@ public class GetPdfMultiMetsAction extends GetMetsPdfAction {
             strMetsFileGroup = config.getDefaultMetsFileGroup();
         }
 
+        /* the pdf is written to a spool file, so that the render slot is released before it is sent */
+        Ticket ticket = RenderScheduler.getInstance().acquire(Lane.PDF);
+        SpoolOutputStream myOutStream = null;
         try {
+            myOutStream = new SpoolOutputStream();
             if (config.getWatermarkUse()) {
 
                 File watermarkfile = new File(new URI(config.getWatermarkConfigFilePath()));
@@ -228,10 +236,16 @@ public class GetPdfMultiMetsAction extends GetMetsPdfAction {
                 myOutStream.close();
             }
         } finally {
+            ticket.release();
             if (myOutStream != null) {
-                myOutStream.flush();
-                myOutStream.close();
+                try {
+                    myOutStream.writeTo(responseStream);
+                } finally {
+                    myOutStream.delete();
+                }
             }
+            responseStream.flush();
+            responseStream.close();
         }
     }
 
@@ -32,6 +32,7 @@ import javax.servlet.ServletException;
 import de.unigoettingen.sub.commons.contentlib.servlet.controller.Action;
 import de.unigoettingen.sub.commons.contentlib.servlet.controller.ContentServer;
 import de.unigoettingen.sub.commons.contentlib.servlet.controller.GetImageAction;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderStatsAction;
 
 /************************************************************************************
  * simple contentserver class for requesting images
@@ -56,6 +57,16 @@ public class GoobiContentServer extends ContentServer {
         actions.put("pdf", GetMetsPdfAction.class);
         actions.put("multipdf", GetPdfMultiMetsAction.class);
         actions.put("image", GetImageAction.class);
+        actions.put("renderstats", RenderStatsAction.class);
+    }
+
+    /************************************************************************************
+     * stop the prefetching of pages before the servlet is taken out of service
+     ************************************************************************************/
+    @Override
+    public void destroy() {
+        PagePrefetcher.getInstance().shutdown();
+        super.destroy();
     }
 
 }
@@ -0,0 +1,202 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ *         - http://gdz.sub.uni-goettingen.de 
+ *         - http://www.intranda.com 
+ *         - http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goobi.presentation.contentservlet.controller;
+
+import gov.loc.mets.DivType;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.GetImageAction;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler.Lane;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler.Ticket;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.simplemets.METSParser;
+import de.unigoettingen.sub.commons.simplemets.exceptions.MetsException;
+
+/************************************************************************************
+ * Prefetcher rendering the pages following a requested mets image into the content or thumbnail cache, with the same parameters as the request, so
+ * that the next page turn is served from the cache. The pages are taken in the order of the physical structure of the mets file. Prefetching runs
+ * on a single low priority thread and stops as soon as the render lane of the {@link RenderScheduler} has no spare slot, so it never delays
+ * requests of readers. Lanes with a single render slot have no spare slot and are not prefetched.
+ ************************************************************************************/
+public final class PagePrefetcher {
+    private static final Logger LOGGER = Logger.getLogger(PagePrefetcher.class);
+
+    private static final int MAX_QUEUE = 20;
+
+    private static PagePrefetcher instance;
+
+    private final ThreadPoolExecutor executor;
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private PagePrefetcher() {
+        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUE), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PagePrefetcher");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /************************************************************************************
+     * get the prefetcher
+     * 
+     * @return the instance of the prefetcher
+     ************************************************************************************/
+    public static synchronized PagePrefetcher getInstance() {
+        if (instance == null) {
+            instance = new PagePrefetcher();
+        }
+        return instance;
+    }
+
+    /************************************************************************************
+     * schedule the prefetch of the pages following the given page
+     * 
+     * @param metsparser the {@link METSParser} of the requested mets file, with the file group set
+     * @param pageid ID of the div of the requested page
+     * @param requestParams parameters of the image request
+     ************************************************************************************/
+    public void prefetch(METSParser metsparser, String pageid, Map<String, String[]> requestParams) {
+        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+        int pages = config.getPagePrefetchPages();
+        boolean thumbnail = requestParams.get("thumbnail") != null;
+        boolean cacheUsed = thumbnail ? config.getThumbnailCacheUse() : config.getContentCacheUse();
+        if (!config.getPagePrefetchUse() || pages <= 0 || !cacheUsed || requestParams.get("format") == null
+                || requestParams.get("highlight") != null) {
+            return;
+        }
+        final Lane lane = thumbnail ? Lane.THUMBNAIL : Lane.IMAGE;
+        final RenderScheduler scheduler = RenderScheduler.getInstance();
+        if (scheduler.isEnabled() && scheduler.getMaxConcurrent(lane) < 2) {
+            return;
+        }
+
+        /*
+         * -------------------------------- urls of the following pages, from the same parent div --------------------------------
+         */
+        final List<URL> urls = new ArrayList<URL>();
+        try {
+            DivType page = metsparser.getDIVbyID(pageid);
+            DivType parent = page == null ? null : metsparser.getParentDiv(page);
+            if (parent == null) {
+                return;
+            }
+            List<DivType> siblings = parent.getDivList();
+            int index = -1;
+            for (int i = 0; i < siblings.size() && index < 0; i++) {
+                if (pageid.equals(siblings.get(i).getID())) {
+                    index = i;
+                }
+            }
+            for (int i = index + 1; index >= 0 && i < siblings.size() && urls.size() < pages; i++) {
+                urls.add(metsparser.getURLForSingleDiv(siblings.get(i).getID()));
+            }
+        } catch (MetsException e) {
+            LOGGER.debug("can't find pages following " + pageid + ": " + e.getMessage());
+        } catch (MalformedURLException e) {
+            LOGGER.debug("can't find pages following " + pageid + ": " + e.getMessage());
+        }
+        if (urls.isEmpty()) {
+            return;
+        }
+
+        final Map<String, String[]> params = new HashMap<String, String[]>(requestParams);
+        params.remove("ignoreCache");
+        final String key = urls.get(0) + "|" + getParameterString(params);
+        if (!pending.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (URL url : urls) {
+                            // one slot is always kept free for requests of readers
+                            Ticket ticket = scheduler.tryAcquire(lane, 1);
+                            if (ticket == null) {
+                                LOGGER.debug("render lane " + lane.getName() + " busy, prefetch stopped before " + url);
+                                return;
+                            }
+                            try {
+                                Map<String, String[]> pageParams = new HashMap<String, String[]>(params);
+                                pageParams.put("sourcepath", new String[] { url.toString() });
+                                new GetImageAction().getImageHolder(pageParams, ticket);
+                            } finally {
+                                ticket.release();
+                            }
+                        }
+                    } catch (Exception e) {
+                        LOGGER.debug("prefetch failed: " + e.getMessage());
+                    } finally {
+                        pending.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            LOGGER.debug("prefetch queue full, pages following " + pageid + " not prefetched");
+        }
+    }
+
+    private static String getParameterString(Map<String, String[]> params) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : new TreeSet<String>(params.keySet())) {
+            String[] values = params.get(name);
+            sb.append(name).append('=').append(values == null || values.length == 0 ? "" : values[0]).append('&');
+        }
+        return sb.toString();
+    }
+
+    /************************************************************************************
+     * stop the prefetch thread, pending prefetches are discarded
+     ************************************************************************************/
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information.
+ *         - http://gdz.sub.uni-goettingen.de
+ *         - http://www.intranda.com
+ *         - http://www.digiverso.com
+ *
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.unigoettingen.sub.commons.util.OffHeapSlabStore.Entry;
+
+/**
+ * Tests of the {@link OffHeapSlabStore}. The stores of these tests have pages of 1024 bytes; small entries go into chunks of 256 bytes, four per
+ * page, large entries into a size class with one chunk per page.
+ */
+public class OffHeapSlabStoreTest {
+
+    private static final int PAGE_SIZE = 1024;
+    private static final int MIN_CHUNK_SIZE = 256;
+    /* size of the index of an empty store */
+    private static final int INDEX_SIZE = 1024;
+
+    @Test
+    public void testPutGetReplace() {
+        OffHeapSlabStore store = new OffHeapSlabStore(4 * PAGE_SIZE, PAGE_SIZE, MIN_CHUNK_SIZE);
+        assertTrue(store.put("a", data(1, 100)));
+        assertTrue(store.put("b", data(2, 200)));
+        assertContent(store, "a", data(1, 100));
+        assertContent(store, "b", data(2, 200));
+
+        assertTrue(store.put("a", data(3, 50)));
+        assertContent(store, "a", data(3, 50));
+        assertEquals(2, store.size());
+
+        store.remove("a");
+        assertNull(store.get("a"));
+        assertContent(store, "b", data(2, 200));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testTooLargeEntryIsRejected() {
+        OffHeapSlabStore store = new OffHeapSlabStore(4 * PAGE_SIZE, PAGE_SIZE, MIN_CHUNK_SIZE);
+        assertFalse(store.put("a", data(1, PAGE_SIZE)));
+        assertNull(store.get("a"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testClockEvictsUnreferencedEntry() {
+        OffHeapSlabStore store = new OffHeapSlabStore(PAGE_SIZE, PAGE_SIZE, MIN_CHUNK_SIZE);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(store.put("k" + i, data(i, 200)));
+        }
+        // entries read since the last pass of the clock hand get a second chance
+        for (int i : new int[] { 0, 2, 3 }) {
+            store.get("k" + i).release();
+        }
+        assertTrue(store.put("k4", data(4, 200)));
+
+        assertNull(store.get("k1"));
+        for (int i : new int[] { 0, 2, 3, 4 }) {
+            assertContent(store, "k" + i, data(i, 200));
+        }
+        assertEquals(4, store.size());
+    }
+
+    @Test
+    public void testPinnedEntriesAreNotEvicted() {
+        OffHeapSlabStore store = new OffHeapSlabStore(PAGE_SIZE, PAGE_SIZE, MIN_CHUNK_SIZE);
+        List<Entry> pinned = new ArrayList<Entry>();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(store.put("k" + i, data(i, 200)));
+            pinned.add(store.get("k" + i));
+        }
+        assertFalse(store.put("k4", data(4, 200)));
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(data(i, 200), toArray(pinned.get(i).getContent()));
+        }
+
+        pinned.get(1).release();
+        assertTrue(store.put("k4", data(4, 200)));
+        assertNull(store.get("k1"));
+        for (int i : new int[] { 0, 2, 3 }) {
+            assertArrayEquals(data(i, 200), toArray(pinned.get(i).getContent()));
+            pinned.get(i).release();
+        }
+        assertContent(store, "k4", data(4, 200));
+    }
+
+    @Test
+    public void testRemovedPinnedEntryIsFreedOnRelease() {
+        OffHeapSlabStore store = new OffHeapSlabStore(PAGE_SIZE, PAGE_SIZE, MIN_CHUNK_SIZE);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(store.put("k" + i, data(i, 200)));
+        }
+        Entry entry = store.get("k0");
+        store.remove("k0");
+        assertNull(store.get("k0"));
+        assertArrayEquals(data(0, 200), toArray(entry.getContent()));
+
+        entry.release();
+        entry.release();
+        // the freed chunk is used without evicting another entry
+        assertTrue(store.put("k4", data(4, 200)));
+        for (int i = 1; i < 5; i++) {
+            assertContent(store, "k" + i, data(i, 200));
+        }
+    }
+
+    @Test
+    public void testReassignPage() {
+        OffHeapSlabStore store = new OffHeapSlabStore(PAGE_SIZE, PAGE_SIZE, MIN_CHUNK_SIZE);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(store.put("k" + i, data(i, 200)));
+        }
+        // the large entry has no chunk of its size, so it takes over the page of the small entries
+        assertTrue(store.put("large", data(9, 900)));
+        for (int i = 0; i < 4; i++) {
+            assertNull(store.get("k" + i));
+        }
+        assertContent(store, "large", data(9, 900));
+        assertEquals(1, store.size());
+        assertEquals(PAGE_SIZE, store.getAllocatedBytes());
+    }
+
+    @Test
+    public void testPinnedPageIsNotReassigned() {
+        OffHeapSlabStore store = new OffHeapSlabStore(PAGE_SIZE, PAGE_SIZE, MIN_CHUNK_SIZE);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(store.put("k" + i, data(i, 200)));
+        }
+        Entry entry = store.get("k2");
+        assertFalse(store.put("large", data(9, 900)));
+        for (int i = 0; i < 4; i++) {
+            assertContent(store, "k" + i, data(i, 200));
+        }
+
+        entry.release();
+        assertTrue(store.put("large", data(9, 900)));
+        assertContent(store, "large", data(9, 900));
+    }
+
+    @Test
+    public void testIndexRemoveWrapsAround() {
+        OffHeapSlabStore store = new OffHeapSlabStore(4 * PAGE_SIZE, PAGE_SIZE, MIN_CHUNK_SIZE);
+        // three keys for the last slot of the index fill it and the first two slots, the fourth key belongs into the first slot
+        List<String> keys = findKeys(INDEX_SIZE - 1, 3);
+        keys.addAll(findKeys(0, 1));
+        for (int i = 0; i < keys.size(); i++) {
+            assertTrue(store.put(keys.get(i), data(i, 100)));
+        }
+
+        store.remove(keys.get(0));
+        assertNull(store.get(keys.get(0)));
+        for (int i = 1; i < keys.size(); i++) {
+            assertContent(store, keys.get(i), data(i, 100));
+        }
+
+        store.remove(keys.get(2));
+        assertNull(store.get(keys.get(2)));
+        for (int i : new int[] { 1, 3 }) {
+            assertContent(store, keys.get(i), data(i, 100));
+        }
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testClearWhilePinned() {
+        OffHeapSlabStore store = new OffHeapSlabStore(PAGE_SIZE, PAGE_SIZE, MIN_CHUNK_SIZE);
+        assertTrue(store.put("a", data(1, 200)));
+        Entry entry = store.get("a");
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getAllocatedBytes());
+        assertNull(store.get("a"));
+        assertArrayEquals(data(1, 200), toArray(entry.getContent()));
+
+        assertTrue(store.put("a", data(2, 200)));
+        // releasing the entry of the old pages must not touch the new ones
+        entry.release();
+        assertContent(store, "a", data(2, 200));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(store.put("k" + i, data(i, 200)));
+        }
+        assertContent(store, "a", data(2, 200));
+    }
+
+    private static void assertContent(OffHeapSlabStore store, String key, byte[] expected) {
+        Entry entry = store.get(key);
+        assertNotNull("no entry for " + key, entry);
+        try {
+            assertEquals(expected.length, entry.getLength());
+            assertArrayEquals(expected, toArray(entry.getContent()));
+        } finally {
+            entry.release();
+        }
+    }
+
+    private static byte[] data(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * find keys whose hash belongs into the given slot of an empty index
+     */
+    private static List<String> findKeys(int slot, int count) {
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; keys.size() < count; i++) {
+            String key = "key" + i;
+            if (((int) OffHeapSlabStore.hash(key) & (INDEX_SIZE - 1)) == slot) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}